@@ -0,0 +1,97 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.benchmarks;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.fcrepo.oai.MetadataFormat;
+import org.fcrepo.oai.ResumptionToken;
+import org.fcrepo.oai.service.OAIProviderService;
+import org.fcrepo.oai.service.OAIProviderServiceAccessor;
+import org.openarchives.oai._2.VerbType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Construction of the SPARQL queries of the ListIdentifiers and ListRecords verbs, for the first page of an
+ * unrestricted harvest, an offset page restricted to a set and its subsets, and a cursor page following a keyed
+ * resumption token.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListQueryBenchmark {
+
+    private OAIProviderServiceAccessor service;
+
+    private MetadataFormat format;
+
+    private Collection<String> sets;
+
+    private ResumptionToken offsetToken;
+
+    private ResumptionToken keyedToken;
+
+    @Setup
+    public void setup() throws Exception {
+        final OAIProviderService providerService = new OAIProviderService();
+        providerService.setPropertyIsPartOfSet("http://fedora.info/definitions/v4/config#isPartOfOAISet");
+        service = new OAIProviderServiceAccessor(providerService);
+        format = new MetadataFormat();
+        format.setPrefix("oai_dc");
+        format.setNamespace("http://www.openarchives.org/OAI/2.0/oai_dc/");
+        format.setSchemaUrl("http://www.openarchives.org/OAI/2.0/oai_dc.xsd");
+        format.setPropertyName("http://fedora.info/definitions/v4/config#hasOaiDCRecord");
+        sets = Arrays.asList("collections", "collections:images", "collections:images:scans",
+                "collections:texts");
+        offsetToken = new ResumptionToken(VerbType.LIST_RECORDS.value(), "oai_dc", "2014-01-01T00:00:00Z",
+                "2014-12-31T23:59:59Z", 1500, "collections");
+        keyedToken = new ResumptionToken(VerbType.LIST_RECORDS.value(), "oai_dc", "2014-01-01T00:00:00Z",
+                "2014-12-31T23:59:59Z", 1500, "collections", "2014-06-15T12:30:45.123Z",
+                "/objects/collections/images/image-1500", 1500, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public String firstPage() {
+        return service.buildListQuery(format, null, null, null, null, false, 101);
+    }
+
+    @Benchmark
+    public String offsetPageOfSets() {
+        return service.buildListQuery(format, offsetToken.getFrom(), offsetToken.getUntil(), sets, offsetToken,
+                false, 101);
+    }
+
+    @Benchmark
+    public String cursorPageOfSets() {
+        return service.buildListQuery(format, keyedToken.getFrom(), keyedToken.getUntil(), sets, keyedToken, true,
+                101);
+    }
+}
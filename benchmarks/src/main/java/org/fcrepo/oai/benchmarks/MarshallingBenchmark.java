@@ -0,0 +1,126 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.benchmarks;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Marshaller;
+import javax.xml.datatype.DatatypeFactory;
+
+import org.fcrepo.oai.service.JAXBPool;
+import org.openarchives.oai._2.HeaderType;
+import org.openarchives.oai._2.ListIdentifiersType;
+import org.openarchives.oai._2.OAIPMHtype;
+import org.openarchives.oai._2.ObjectFactory;
+import org.openarchives.oai._2.RequestType;
+import org.openarchives.oai._2.ResumptionTokenType;
+import org.openarchives.oai._2.VerbType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JAXB marshalling of ListIdentifiers pages of different sizes, using a marshaller of the provider's pool. The
+ * output is discarded, so only the marshalling itself is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MarshallingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int pageSize;
+
+    private JAXBPool pool;
+
+    private Marshaller marshaller;
+
+    private JAXBElement<OAIPMHtype> page;
+
+    private final OutputStream sink = new OutputStream() {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setup() throws Exception {
+        pool = new JAXBPool(1);
+        marshaller = pool.borrowMarshaller();
+
+        final ObjectFactory oaiFactory = new ObjectFactory();
+        final DatatypeFactory dataFactory = DatatypeFactory.newInstance();
+        final long now = System.currentTimeMillis();
+        final ListIdentifiersType ids = oaiFactory.createListIdentifiersType();
+        for (int i = 0; i < pageSize; i++) {
+            final HeaderType header = oaiFactory.createHeaderType();
+            header.setIdentifier("oai:fcrepo:/objects/collections/images/image-" + i);
+            header.setDatestamp("2014-06-15T12:30:45Z");
+            header.getSetSpec().add("collections");
+            header.getSetSpec().add("collections:images");
+            ids.getHeader().add(header);
+        }
+        final ResumptionTokenType token = oaiFactory.createResumptionTokenType();
+        token.setValue("AQEGb2FpX2RjAAAAAAAAAF3cAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA");
+        token.setCursor(BigInteger.ZERO);
+        ids.setResumptionToken(token);
+
+        final RequestType req = oaiFactory.createRequestType();
+        req.setVerb(VerbType.LIST_IDENTIFIERS);
+        req.setMetadataPrefix("oai_dc");
+        req.setValue("http://localhost:8080/oai");
+
+        final GregorianCalendar responseDate = new GregorianCalendar();
+        responseDate.setTimeInMillis(now);
+        final OAIPMHtype oai = oaiFactory.createOAIPMHtype();
+        oai.setResponseDate(dataFactory.newXMLGregorianCalendar(responseDate));
+        oai.setListIdentifiers(ids);
+        oai.setRequest(req);
+        page = oaiFactory.createOAIPMH(oai);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.returnMarshaller(marshaller);
+    }
+
+    @Benchmark
+    public void marshalListIdentifiers() throws Exception {
+        marshaller.marshal(page, sink);
+    }
+}
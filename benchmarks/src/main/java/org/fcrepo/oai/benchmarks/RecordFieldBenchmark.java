@@ -0,0 +1,74 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.fcrepo.oai.MetadataFormat;
+import org.fcrepo.oai.service.OAIProviderService;
+import org.fcrepo.oai.service.OAIProviderServiceAccessor;
+import org.openarchives.oai._2.MetadataFormatType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per record work of building a response: formatting the datestamp of a header and converting a metadata
+ * format to its JAXB type.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecordFieldBenchmark {
+
+    private OAIProviderServiceAccessor service;
+
+    private MetadataFormat format;
+
+    private long datestamp;
+
+    @Setup
+    public void setup() throws Exception {
+        service = new OAIProviderServiceAccessor(new OAIProviderService());
+        format = new MetadataFormat();
+        format.setPrefix("oai_dc");
+        format.setNamespace("http://www.openarchives.org/OAI/2.0/oai_dc/");
+        format.setSchemaUrl("http://www.openarchives.org/OAI/2.0/oai_dc.xsd");
+        format.setPropertyName("http://fedora.info/definitions/v4/config#hasOaiDCRecord");
+        datestamp = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public String formatDatestamp() {
+        return service.formatDatestamp(datestamp);
+    }
+
+    @Benchmark
+    public MetadataFormatType asMetadataFormatType() {
+        return format.asMetadataFormatType();
+    }
+}
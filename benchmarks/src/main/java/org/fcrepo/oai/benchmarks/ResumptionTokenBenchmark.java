@@ -0,0 +1,89 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.benchmarks;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.fcrepo.oai.ResumptionToken;
+import org.fcrepo.oai.service.ResumptionTokenCodec;
+import org.openarchives.oai._2.VerbType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of resumption tokens, which happens once for every page of a list request. The offset
+ * token carries a date range and a set, the keyed token additionally carries the key of the last record.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResumptionTokenBenchmark {
+
+    private ResumptionTokenCodec codec;
+
+    private ResumptionToken offsetToken;
+
+    private ResumptionToken keyedToken;
+
+    private String encodedOffsetToken;
+
+    private String encodedKeyedToken;
+
+    @Setup
+    public void setup() {
+        codec = new ResumptionTokenCodec("benchmark-secret".getBytes(Charset.forName("UTF-8")), 0);
+        offsetToken = new ResumptionToken(VerbType.LIST_RECORDS.value(), "oai_dc", "2014-01-01T00:00:00Z",
+                "2014-12-31T23:59:59Z", 1500, "collections:images");
+        keyedToken = new ResumptionToken(VerbType.LIST_RECORDS.value(), "oai_dc", "2014-01-01T00:00:00Z",
+                "2014-12-31T23:59:59Z", 1500, "collections:images", "2014-06-15T12:30:45.123Z",
+                "/objects/collections/images/image-1500", 1500, System.currentTimeMillis());
+        encodedOffsetToken = codec.encode(offsetToken);
+        encodedKeyedToken = codec.encode(keyedToken);
+    }
+
+    @Benchmark
+    public String encodeOffsetToken() {
+        return codec.encode(offsetToken);
+    }
+
+    @Benchmark
+    public String encodeKeyedToken() {
+        return codec.encode(keyedToken);
+    }
+
+    @Benchmark
+    public ResumptionToken decodeOffsetToken() {
+        return codec.decode(encodedOffsetToken);
+    }
+
+    @Benchmark
+    public ResumptionToken decodeKeyedToken() {
+        return codec.decode(encodedKeyedToken);
+    }
+}
@@ -29,6 +29,12 @@ public class MetadataFormat {
 
     private String propertyName;
 
+    private String sourcePrefix;
+
+    private String stylesheet;
+
+    private RecordTemplate template;
+
     public String getPropertyName() {
         return propertyName;
     }
@@ -61,6 +67,56 @@ public class MetadataFormat {
         return namespace;
     }
 
+    /**
+     * The prefix of the format this format is derived from, or null if the records of this format are stored in
+     * datastreams of their own
+     */
+    public String getSourcePrefix() {
+        return sourcePrefix;
+    }
+
+    public void setSourcePrefix(String sourcePrefix) {
+        this.sourcePrefix = sourcePrefix;
+    }
+
+    /**
+     * The location of the XSLT stylesheet transforming the records of the source format into this format, either a
+     * class path resource prefixed by <code>classpath:</code>, a URL or a file
+     */
+    public String getStylesheet() {
+        return stylesheet;
+    }
+
+    public void setStylesheet(String stylesheet) {
+        this.stylesheet = stylesheet;
+    }
+
+    /**
+     * Whether the records of this format are transformed from the datastreams of another format
+     */
+    public boolean isDerived() {
+        return sourcePrefix != null;
+    }
+
+    /**
+     * The template rendering the records of this format from the properties of their objects, or null if the
+     * records are read from datastreams. The objects having a value of the property name have a record.
+     */
+    public RecordTemplate getTemplate() {
+        return template;
+    }
+
+    public void setTemplate(RecordTemplate template) {
+        this.template = template;
+    }
+
+    /**
+     * Whether the records of this format are rendered from the properties of their objects
+     */
+    public boolean isRendered() {
+        return template != null;
+    }
+
     public MetadataFormatType asMetadataFormatType() {
         final ObjectFactory objectFactory = new ObjectFactory();
         final MetadataFormatType type = objectFactory.createMetadataFormatType();
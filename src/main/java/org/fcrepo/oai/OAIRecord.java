@@ -0,0 +1,68 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.openarchives.oai._2.HeaderType;
+
+public class OAIRecord {
+
+    private final HeaderType header;
+
+    private final InputStream metadata;
+
+    private final ByteBuffer fragment;
+
+    public OAIRecord(HeaderType header) {
+        this(header, null, null);
+    }
+
+    public OAIRecord(HeaderType header, InputStream metadata) {
+        this(header, metadata, null);
+    }
+
+    public OAIRecord(HeaderType header, ByteBuffer fragment) {
+        this(header, null, fragment);
+    }
+
+    private OAIRecord(HeaderType header, InputStream metadata, ByteBuffer fragment) {
+        this.header = header;
+        this.metadata = metadata;
+        this.fragment = fragment;
+    }
+
+    public HeaderType getHeader() {
+        return header;
+    }
+
+    /**
+     * The serialized metadata of this record, or null if only the header is available
+     */
+    public InputStream getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * The serialized record element including the header and the metadata, or null if the record has not been
+     * serialized in advance
+     */
+    public ByteBuffer getFragment() {
+        return fragment;
+    }
+}
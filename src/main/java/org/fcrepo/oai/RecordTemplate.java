@@ -0,0 +1,196 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.NodeIterator;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+
+/**
+ * A template rendering the metadata of a record from the properties of its object, so that simple formats like
+ * oai_dc do not need a datastream of their own. The template maps RDF predicates to XML elements: every value of a
+ * mapped predicate becomes an element holding the literal value or the URI of the resource, in the order of the
+ * mapping. The template is compiled into the serialized tags once, so rendering a record only appends the escaped
+ * values.
+ */
+public class RecordTemplate {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+
+    private String rootElement;
+
+    private Map<String, String> namespaces = new LinkedHashMap<>();
+
+    private Map<String, String> elements = new LinkedHashMap<>();
+
+    private volatile Compiled compiled;
+
+    /**
+     * The qualified name of the root element, e.g. <code>oai_dc:dc</code>
+     */
+    public void setRootElement(String rootElement) {
+        this.rootElement = rootElement;
+    }
+
+    public String getRootElement() {
+        return rootElement;
+    }
+
+    /**
+     * The namespaces of the prefixes used by the element names
+     */
+    public void setNamespaces(Map<String, String> namespaces) {
+        this.namespaces = namespaces;
+    }
+
+    public Map<String, String> getNamespaces() {
+        return namespaces;
+    }
+
+    /**
+     * The qualified names of the elements keyed by the URI of the predicate holding their values
+     */
+    public void setElements(Map<String, String> elements) {
+        this.elements = elements;
+    }
+
+    public Map<String, String> getElements() {
+        return elements;
+    }
+
+    /**
+     * Compile the template for a metadata format, the root element declares all namespaces and the schema location
+     * of the format
+     *
+     * @throws IllegalArgumentException if an element uses an undeclared namespace prefix
+     */
+    public void compile(MetadataFormat mdf) {
+        if (rootElement == null) {
+            throw new IllegalArgumentException("The template of " + mdf.getPrefix() + " has no root element");
+        }
+        final StringBuilder root = new StringBuilder("<").append(checkName(rootElement));
+        for (Map.Entry<String, String> ns : namespaces.entrySet()) {
+            root.append(" xmlns:").append(ns.getKey()).append("=\"").append(escape(ns.getValue())).append('"');
+        }
+        if (mdf.getNamespace() != null && mdf.getSchemaUrl() != null) {
+            root.append(" xmlns:xsi=\"").append(XSI_NS).append("\" xsi:schemaLocation=\"")
+                    .append(escape(mdf.getNamespace() + " " + mdf.getSchemaUrl())).append('"');
+        }
+        root.append('>');
+        final Property[] predicates = new Property[elements.size()];
+        final String[] startTags = new String[elements.size()];
+        final String[] endTags = new String[elements.size()];
+        int i = 0;
+        for (Map.Entry<String, String> element : elements.entrySet()) {
+            predicates[i] = ResourceFactory.createProperty(element.getKey());
+            startTags[i] = "<" + checkName(element.getValue()) + ">";
+            endTags[i] = "</" + element.getValue() + ">";
+            i++;
+        }
+        this.compiled = new Compiled(root.toString(), "</" + rootElement + ">", predicates, startTags, endTags);
+    }
+
+    private String checkName(String name) {
+        final int colon = name.indexOf(':');
+        if (colon > 0 && !namespaces.containsKey(name.substring(0, colon))) {
+            throw new IllegalArgumentException("The namespace prefix of the element " + name + " is not declared");
+        }
+        return name;
+    }
+
+    /**
+     * Render the metadata of an object
+     *
+     * @param model the properties of the object
+     * @param subject the object
+     * @return the serialized metadata, without an XML declaration
+     */
+    public byte[] render(Model model, Resource subject) {
+        final Compiled template = this.compiled;
+        if (template == null) {
+            throw new IllegalStateException("The template has not been compiled");
+        }
+        final StringBuilder xml = new StringBuilder(512).append(template.root);
+        for (int i = 0; i < template.predicates.length; i++) {
+            final NodeIterator values = model.listObjectsOfProperty(subject, template.predicates[i]);
+            while (values.hasNext()) {
+                final RDFNode value = values.next();
+                xml.append(template.startTags[i])
+                        .append(escape(value.isLiteral() ? value.asLiteral().getLexicalForm() :
+                                value.isURIResource() ? value.asResource().getURI() : ""))
+                        .append(template.endTags[i]);
+            }
+        }
+        return xml.append(template.end).toString().getBytes(UTF8);
+    }
+
+    /**
+     * Escape the markup characters of a value and remove the characters which are not allowed in XML at all, the
+     * control characters other than tab, line feed and carriage return as well as U+FFFE and U+FFFF
+     */
+    static String escape(String value) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final String entity = c == '<' ? "&lt;" : c == '>' ? "&gt;" : c == '&' ? "&amp;" : c == '"' ? "&quot;" :
+                    isIllegal(c) ? "" : null;
+            if (entity != null && escaped == null) {
+                escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (entity != null) {
+                escaped.append(entity);
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+
+    private static boolean isIllegal(char c) {
+        return c < 0x20 && c != '\t' && c != '\n' && c != '\r' || c == '\uFFFE' || c == '\uFFFF';
+    }
+
+    private static class Compiled {
+
+        private final String root;
+
+        private final String end;
+
+        private final Property[] predicates;
+
+        private final String[] startTags;
+
+        private final String[] endTags;
+
+        private Compiled(String root, String end, Property[] predicates, String[] startTags, String[] endTags) {
+            this.root = root;
+            this.end = end;
+            this.predicates = predicates;
+            this.startTags = startTags;
+            this.endTags = endTags;
+        }
+    }
+}
@@ -30,13 +30,43 @@ public class ResumptionToken {
 
     private final String metadataPrefix;
 
+    private final String lastDatestamp;
+
+    private final String lastIdentifier;
+
+    private final int cursor;
+
+    private final long issued;
+
+    private final String session;
+
     public ResumptionToken(String verb, String metadataPrefix, String from, String until, int offset, String set) {
+        this(verb, metadataPrefix, from, until, offset, set, null, null);
+    }
+
+    public ResumptionToken(String verb, String metadataPrefix, String from, String until, int offset, String set,
+            String lastDatestamp, String lastIdentifier) {
+        this(verb, metadataPrefix, from, until, offset, set, lastDatestamp, lastIdentifier, 0, 0);
+    }
+
+    public ResumptionToken(String verb, String metadataPrefix, String from, String until, int offset, String set,
+            String lastDatestamp, String lastIdentifier, int cursor, long issued) {
+        this(verb, metadataPrefix, from, until, offset, set, lastDatestamp, lastIdentifier, cursor, issued, null);
+    }
+
+    public ResumptionToken(String verb, String metadataPrefix, String from, String until, int offset, String set,
+            String lastDatestamp, String lastIdentifier, int cursor, long issued, String session) {
         this.verb = verb;
         this.from = from;
         this.metadataPrefix = metadataPrefix;
         this.until = until;
         this.offset = offset;
         this.set = set;
+        this.lastDatestamp = lastDatestamp;
+        this.lastIdentifier = lastIdentifier;
+        this.cursor = cursor;
+        this.issued = issued;
+        this.session = session;
     }
 
     public String getMetadataPrefix() {
@@ -62,4 +92,41 @@ public class ResumptionToken {
     public String getSet() {
         return set;
     }
+
+    /**
+     * The datestamp of the last record on the previous page, set if the next page continues after the key of that
+     * record, i.e. in cursor pagination mode or if the previous page has been read from the datestamp index
+     */
+    public String getLastDatestamp() {
+        return lastDatestamp;
+    }
+
+    /**
+     * The identifier of the last record on the previous page, set along with {@link #getLastDatestamp()}
+     */
+    public String getLastIdentifier() {
+        return lastIdentifier;
+    }
+
+    /**
+     * The number of records handed out before the page this token continues with
+     */
+    public int getCursor() {
+        return cursor;
+    }
+
+    /**
+     * The time the token has been issued at, in milliseconds since the epoch
+     */
+    public long getIssued() {
+        return issued;
+    }
+
+    /**
+     * The value of the token which referenced a harvest session this token has been restored from, or null if the
+     * token has been decoded from its value
+     */
+    public String getSession() {
+        return session;
+    }
 }
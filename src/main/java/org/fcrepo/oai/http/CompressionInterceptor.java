@@ -0,0 +1,238 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.fcrepo.oai.service.OAIProviderService;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Compresses OAI-PMH responses with gzip or deflate, depending on the Accept-Encoding header of the request. The
+ * response is compressed while it is being written; only the first bytes up to the configured threshold are
+ * buffered, so that small responses can still be sent uncompressed.
+ */
+@Provider
+@Compress
+public class CompressionInterceptor implements WriterInterceptor {
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    @Context
+    private HttpHeaders headers;
+
+    @Autowired
+    private OAIProviderService providerService;
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        final MultivaluedMap<String, Object> responseHeaders = context.getHeaders();
+        if (!providerService.isCompressionEnabled() || responseHeaders.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            context.proceed();
+            return;
+        }
+        if (!responseHeaders.containsKey(HttpHeaders.VARY)) {
+            responseHeaders.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        final String encoding = negotiate(headers.getRequestHeader(HttpHeaders.ACCEPT_ENCODING), GZIP, DEFLATE);
+        if (encoding == null) {
+            context.proceed();
+            return;
+        }
+        final ThresholdOutputStream output = new ThresholdOutputStream(context.getOutputStream(), responseHeaders,
+                encoding, providerService.getCompressionLevel(), providerService.getCompressionThreshold());
+        context.setOutputStream(output);
+        try {
+            context.proceed();
+        } finally {
+            output.finish();
+        }
+    }
+
+    /**
+     * Choose the content coding with the highest quality value from an Accept-Encoding header
+     *
+     * @param acceptEncoding the values of the Accept-Encoding header, may be null
+     * @param supported the supported codings in order of preference
+     * @return the chosen coding or null if only the identity coding is acceptable
+     */
+    public static String negotiate(List<String> acceptEncoding, String... supported) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        final double[] quality = new double[supported.length];
+        double wildcard = -1;
+        for (String value : acceptEncoding) {
+            for (String coding : value.split(",")) {
+                final String[] parts = coding.trim().split(";");
+                final double q = quality(parts);
+                final String name = parts[0].trim();
+                if (name.equals("*")) {
+                    wildcard = q;
+                }
+                for (int i = 0; i < supported.length; i++) {
+                    if (name.equalsIgnoreCase(supported[i]) || (name.equalsIgnoreCase("x-" + supported[i]))) {
+                        quality[i] = q > 0 ? q : -1;
+                    }
+                }
+            }
+        }
+        String chosen = null;
+        double best = 0;
+        for (int i = 0; i < supported.length; i++) {
+            final double q = quality[i] == 0 ? wildcard : quality[i];
+            if (q > best) {
+                best = q;
+                chosen = supported[i];
+            }
+        }
+        return chosen;
+    }
+
+    private static double quality(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            final String param = parts[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Buffers the response until the threshold has been reached and compresses everything written after that. The
+     * Content-Encoding header is only set once it is certain that the response will be compressed, which is before
+     * the first byte is written to the underlying stream.
+     */
+    static class ThresholdOutputStream extends OutputStream {
+
+        private final OutputStream sink;
+
+        private final MultivaluedMap<String, Object> responseHeaders;
+
+        private final String encoding;
+
+        private final int level;
+
+        private final int threshold;
+
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private DeflaterOutputStream compressor;
+
+        private Deflater deflater;
+
+        private boolean finished;
+
+        ThresholdOutputStream(OutputStream sink, MultivaluedMap<String, Object> responseHeaders,
+                String encoding, int level, int threshold) {
+            this.sink = sink;
+            this.responseHeaders = responseHeaders;
+            this.encoding = encoding;
+            this.level = level;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (compressor != null) {
+                compressor.write(b, off, len);
+                return;
+            }
+            buffer.write(b, off, len);
+            if (buffer.size() >= threshold) {
+                startCompression();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            /* flushing while buffering would commit the headers before the encoding is known */
+            if (compressor != null) {
+                compressor.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            sink.close();
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (compressor != null) {
+                try {
+                    compressor.finish();
+                } finally {
+                    deflater.end();
+                }
+            } else {
+                buffer.writeTo(sink);
+                buffer = null;
+            }
+            sink.flush();
+        }
+
+        private void startCompression() throws IOException {
+            responseHeaders.putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+            responseHeaders.remove(HttpHeaders.CONTENT_LENGTH);
+            if (GZIP.equals(encoding)) {
+                compressor = new GZIPOutputStream(sink, 8192, true) {
+
+                    {
+                        def.setLevel(level);
+                        deflater = def;
+                    }
+                };
+            } else {
+                deflater = new Deflater(level);
+                compressor = new DeflaterOutputStream(sink, deflater, 8192, true);
+            }
+            buffer.writeTo(compressor);
+            buffer = null;
+        }
+    }
+}
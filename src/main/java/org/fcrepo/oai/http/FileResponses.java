@@ -0,0 +1,151 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Serves files generated by the provider, honouring conditional requests and single byte ranges, so that
+ * interrupted downloads of large files can be resumed. Requests for several ranges are answered with the whole
+ * file.
+ */
+public final class FileResponses {
+
+    private FileResponses() {
+    }
+
+    /**
+     * @param range the value of the Range header, may be null
+     * @param ifRange the value of the If-Range header, may be null
+     */
+    public static Response serve(final File file, final String mediaType, final Request request, final String range,
+            final String ifRange) {
+        final long length = file.length();
+        /* HTTP dates have a resolution of seconds */
+        final Date lastModified = new Date(file.lastModified() / 1000 * 1000);
+        final EntityTag etag =
+                new EntityTag(Long.toHexString(file.lastModified()) + "-" + Long.toHexString(length));
+        final ResponseBuilder notModified = request.evaluatePreconditions(lastModified, etag);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        long first = 0;
+        long last = length - 1;
+        boolean partial = false;
+        if (range != null && (ifRange == null || ifRange.equals(etag.toString()))) {
+            final long[] bounds = parseRange(range, length);
+            if (bounds != null && bounds.length == 0) {
+                return Response.status(416).header("Content-Range", "bytes */" + length).build();
+            }
+            if (bounds != null) {
+                first = bounds[0];
+                last = bounds[1];
+                partial = true;
+            }
+        }
+        final ResponseBuilder response = partial ? Response.status(206)
+                .header("Content-Range", "bytes " + first + "-" + last + "/" + length) : Response.ok();
+        return response.entity(new FileRegion(file, first, last - first + 1))
+                .type(mediaType)
+                .header("Accept-Ranges", "bytes")
+                .header(HttpHeaders.CONTENT_LENGTH, last - first + 1)
+                .lastModified(lastModified)
+                .tag(etag)
+                .build();
+    }
+
+    /**
+     * Parse a single byte range
+     *
+     * @return the first and last byte of the range, an empty array if the range can not be satisfied, or null if
+     *         the header is malformed or requests several ranges and the whole file has to be sent
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = range.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            if (dash == 0) {
+                /* the last n bytes */
+                final long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                return new long[] { Math.max(0, length - suffix), length - 1 };
+            }
+            final long first = Long.parseLong(spec.substring(0, dash));
+            final long last = dash == spec.length() - 1 ? length - 1 :
+                    Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            if (last < first) {
+                return first >= length ? new long[0] : null;
+            }
+            return first >= length ? new long[0] : new long[] { first, last };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class FileRegion implements StreamingOutput {
+
+        private final File file;
+
+        private final long position;
+
+        private final long count;
+
+        private FileRegion(File file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                final FileChannel channel = raf.getChannel();
+                final WritableByteChannel target = Channels.newChannel(output);
+                long written = 0;
+                while (written < count) {
+                    final long n = channel.transferTo(position + written, count - written, target);
+                    if (n <= 0) {
+                        break;
+                    }
+                    written += n;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.fcrepo.oai.service.CachedFragment;
+import org.fcrepo.oai.service.JAXBPool;
+import org.openarchives.oai._2.RequestType;
+
+/**
+ * Writes a response whose verb specific content has been serialized in advance
+ */
+public class FragmentStreamingOutput extends OAIStreamingOutput {
+
+    private final CachedFragment fragment;
+
+    public FragmentStreamingOutput(JAXBPool jaxbPool, RequestType request, CachedFragment fragment) {
+        super(jaxbPool, request);
+        this.fragment = fragment;
+    }
+
+    @Override
+    protected void writeContent(XMLStreamWriter writer, OutputStream output) throws XMLStreamException,
+            IOException {
+        writer.flush();
+        output.write(fragment.getContent());
+    }
+}
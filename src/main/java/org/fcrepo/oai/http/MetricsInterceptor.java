@@ -0,0 +1,85 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Priority;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.fcrepo.oai.service.OAIMetrics;
+import org.fcrepo.oai.service.OAIProviderService;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Counts the bytes of a response and finishes the metrics of its request once the response has been written. The
+ * interceptor runs before the {@link CompressionInterceptor}, so the bytes are counted as sent.
+ */
+@Provider
+@Metered
+@Priority(Priorities.HEADER_DECORATOR)
+public class MetricsInterceptor implements WriterInterceptor {
+
+    @Autowired
+    private OAIProviderService providerService;
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+        final OAIMetrics.Request request = providerService.getMetrics().current();
+        if (request == null) {
+            context.proceed();
+            return;
+        }
+        context.setOutputStream(new CountingOutputStream(context.getOutputStream(), request));
+        try {
+            context.proceed();
+        } catch (IOException | RuntimeException e) {
+            request.exception();
+            throw e;
+        } finally {
+            request.finish();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private final OAIMetrics.Request request;
+
+        private CountingOutputStream(OutputStream out, OAIMetrics.Request request) {
+            super(out);
+            this.request = request;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            request.addBytes(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            request.addBytes(len);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import java.io.File;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
+
+import org.fcrepo.oai.service.DumpGenerator;
+import org.fcrepo.oai.service.DumpJob;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Scope;
+
+/**
+ * Starts the generation of dumps, reports their progress and serves the published dumps
+ */
+@Scope("prototype")
+@Path("/oai/dumps")
+public class OAIDumpResource {
+
+    private static final String GZIP = "application/gzip";
+
+    @Autowired(required = false)
+    private DumpGenerator dumpGenerator;
+
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response startDump(@QueryParam("metadataPrefix") final String metadataPrefix,
+            @QueryParam("set") final String set,
+            @QueryParam("format") @DefaultValue("xml") final String format,
+            @Context final UriInfo uriInfo, @Context final SecurityContext securityContext) {
+        if (dumpGenerator == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        if (!securityContext.isUserInRole(dumpGenerator.getAdminRole())) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        if (metadataPrefix == null || metadataPrefix.isEmpty()) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("metadataPrefix is required").build();
+        }
+        final DumpJob job;
+        try {
+            job = dumpGenerator.start(metadataPrefix, set, DumpGenerator.Format.fromName(format),
+                    uriInfo.getBaseUri());
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN_TYPE)
+                    .entity(e.getMessage()).build();
+        } catch (IllegalStateException e) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE)
+                    .entity(e.getMessage()).build();
+        }
+        return Response.status(Response.Status.ACCEPTED).entity(job.toJson()).build();
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response listDumps() {
+        if (dumpGenerator == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        final StringBuilder json = new StringBuilder("[");
+        for (DumpJob job : dumpGenerator.getJobs()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(job.toJson());
+        }
+        return Response.ok(json.append(']').toString()).build();
+    }
+
+    @GET
+    @Path("/{name}")
+    @Produces(GZIP)
+    public Response getDump(@PathParam("name") final String name, @Context final Request request,
+            @HeaderParam("Range") final String range,
+            @HeaderParam("If-Range") final String ifRange) {
+        final File file = dumpGenerator == null ? null : dumpGenerator.getDumpFile(name);
+        if (file == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return FileResponses.serve(file, GZIP, request, range, ifRange);
+    }
+}
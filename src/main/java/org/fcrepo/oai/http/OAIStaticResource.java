@@ -0,0 +1,68 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import java.io.File;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+
+import org.fcrepo.oai.service.StaticRepositoryGenerator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Scope;
+
+/**
+ * Serves the static repository document and starts its generation
+ */
+@Scope("prototype")
+@Path("/oai/static")
+public class OAIStaticResource {
+
+    @Autowired(required = false)
+    private StaticRepositoryGenerator staticRepositoryGenerator;
+
+    @GET
+    public Response getStaticRepository(@Context final Request request,
+            @HeaderParam("Range") final String range,
+            @HeaderParam("If-Range") final String ifRange) {
+        final File file = staticRepositoryGenerator == null ? null : staticRepositoryGenerator.getFile();
+        if (file == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        return FileResponses.serve(file, MediaType.TEXT_XML, request, range, ifRange);
+    }
+
+    @POST
+    public Response generateStaticRepository(@Context final SecurityContext securityContext) {
+        if (staticRepositoryGenerator == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        if (!securityContext.isUserInRole(staticRepositoryGenerator.getAdminRole())) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        /* a request is merged into a pending or running generation */
+        staticRepositoryGenerator.generateLater();
+        return Response.status(Response.Status.ACCEPTED).build();
+    }
+}
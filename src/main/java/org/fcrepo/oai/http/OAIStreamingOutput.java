@@ -0,0 +1,263 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.fcrepo.oai.service.JAXBPool;
+import org.openarchives.oai._2.RequestType;
+
+/**
+ * Writes an OAI-PMH response envelope directly to the response stream using StAX. Subclasses only have to
+ * write the verb specific content, which allows large responses to be serialized record by record instead of
+ * building the whole JAXB tree in memory first.
+ */
+public abstract class OAIStreamingOutput implements StreamingOutput {
+
+    public static final String OAI_NS = "http://www.openarchives.org/OAI/2.0/";
+
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+
+    private static final String OAI_SCHEMA_LOCATION = OAI_NS + " http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd";
+
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    private static final DateTimeFormatter dateFormat =
+            ISODateTimeFormat.dateTimeNoMillis().withZone(DateTimeZone.UTC);
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final JAXBPool jaxbPool;
+
+    private final RequestType request;
+
+    protected OAIStreamingOutput(JAXBPool jaxbPool, RequestType request) {
+        this.jaxbPool = jaxbPool;
+        this.request = request;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        try {
+            final XMLStreamWriter writer = createWriter(output);
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.setDefaultNamespace(OAI_NS);
+            writer.writeStartElement(OAI_NS, "OAI-PMH");
+            writer.writeDefaultNamespace(OAI_NS);
+            writer.writeNamespace("xsi", XSI_NS);
+            writer.writeAttribute(XSI_NS, "schemaLocation", OAI_SCHEMA_LOCATION);
+
+            writer.writeStartElement(OAI_NS, "responseDate");
+            writer.writeCharacters(dateFormat.print(System.currentTimeMillis()));
+            writer.writeEndElement();
+            marshal(writer, "request", RequestType.class, request);
+
+            writeContent(writer, output);
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException | JAXBException e) {
+            throw new WebApplicationException(e);
+        }
+    }
+
+    /**
+     * Write only the verb specific part of the response, so that it can be buffered and wrapped into an envelope of
+     * its own later, see {@link SerializedContentOutput}
+     */
+    public void writeContent(OutputStream output) throws IOException {
+        try {
+            final XMLStreamWriter writer = createWriter(output);
+            /* the default namespace is declared by the envelope the content is copied into */
+            writer.setDefaultNamespace(OAI_NS);
+            writeContent(writer, output);
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException | JAXBException e) {
+            throw new IOException("Unable to write the content of the response", e);
+        }
+    }
+
+    /**
+     * Write the verb specific part of the response, i.e. everything following the request element. Raw bytes
+     * may be written to the output stream after flushing the writer.
+     */
+    protected abstract void writeContent(XMLStreamWriter writer, OutputStream output) throws XMLStreamException,
+            JAXBException, IOException;
+
+    protected <T> void marshal(XMLStreamWriter writer, String name, Class<T> type, T value) throws JAXBException {
+        marshal(jaxbPool, writer, name, type, value);
+    }
+
+    /**
+     * Marshal a single element using a marshaller of the pool. The marshaller is returned right after the element
+     * has been written and is never held while the rest of the response is produced, since producing it may
+     * borrow marshallers as well, e.g. for serializing records, and may block on slow clients.
+     */
+    protected static <T> void marshal(JAXBPool jaxbPool, XMLStreamWriter writer, String name, Class<T> type,
+            T value) throws JAXBException {
+        final Marshaller marshaller = jaxbPool.borrowMarshaller();
+        try {
+            marshaller.marshal(new JAXBElement<T>(new QName(OAI_NS, name), type, value), writer);
+        } finally {
+            jaxbPool.returnMarshaller(marshaller);
+        }
+    }
+
+    /**
+     * The request element written into the envelope
+     */
+    public RequestType getRequest() {
+        return request;
+    }
+
+    protected JAXBPool getJAXBPool() {
+        return jaxbPool;
+    }
+
+    protected static XMLStreamWriter createWriter(OutputStream output) throws XMLStreamException {
+        return outputFactory.createXMLStreamWriter(output, "UTF-8");
+    }
+
+    /**
+     * Copy the root element of an XML document into the response, dropping the prolog of the source document
+     */
+    protected static void copyXml(XMLStreamWriter writer, InputStream src) throws XMLStreamException {
+        copyXml(writer, src, null);
+    }
+
+    /**
+     * Copy the root element of an XML document into the response, dropping the prolog of the source document and
+     * all elements of the given name including their content
+     */
+    protected static void copyXml(XMLStreamWriter writer, InputStream src, QName skip) throws XMLStreamException {
+        final XMLStreamReader reader = inputFactory.createXMLStreamReader(src);
+        try {
+            int depth = 0;
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        if (skip != null && skip.equals(reader.getName())) {
+                            skipElement(reader);
+                            break;
+                        }
+                        writeStartElement(writer, reader, depth++ == 0);
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        writer.writeEndElement();
+                        depth--;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                        if (depth > 0) {
+                            writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(),
+                                    reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.CDATA:
+                        if (depth > 0) {
+                            writer.writeCData(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        if (depth > 0) {
+                            writer.writeComment(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        if (depth > 0) {
+                            writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static void writeStartElement(XMLStreamWriter writer, XMLStreamReader reader, boolean root)
+            throws XMLStreamException {
+        final String prefix = reader.getPrefix() == null ? "" : reader.getPrefix();
+        final String ns = reader.getNamespaceURI() == null ? "" : reader.getNamespaceURI();
+        writer.writeStartElement(prefix, reader.getLocalName(), ns);
+        boolean defaultDeclared = false;
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            final String nsPrefix = reader.getNamespacePrefix(i);
+            if (nsPrefix == null || nsPrefix.isEmpty()) {
+                writer.writeDefaultNamespace(reader.getNamespaceURI(i));
+                defaultDeclared = true;
+            } else {
+                writer.writeNamespace(nsPrefix, reader.getNamespaceURI(i));
+            }
+        }
+        if (root && !defaultDeclared) {
+            /* do not let unqualified metadata elements inherit the OAI-PMH default namespace */
+            writer.writeDefaultNamespace("");
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            final String attPrefix = reader.getAttributePrefix(i);
+            final String attNs = reader.getAttributeNamespace(i);
+            if (attNs == null || attNs.isEmpty()) {
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            } else {
+                writer.writeAttribute(attPrefix == null ? "" : attPrefix, attNs, reader.getAttributeLocalName(i),
+                        reader.getAttributeValue(i));
+            }
+        }
+    }
+}
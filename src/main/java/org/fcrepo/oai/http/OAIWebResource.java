@@ -18,24 +18,38 @@ package org.fcrepo.oai.http;
 
 import static org.openarchives.oai._2.VerbType.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 
 import javax.inject.Inject;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 
 import org.fcrepo.oai.ResumptionToken;
+import org.fcrepo.oai.service.CachedFragment;
+import org.fcrepo.oai.service.OAIMetrics;
 import org.fcrepo.oai.service.OAIProviderService;
+import org.fcrepo.oai.service.PageCache;
+import org.openarchives.oai._2.OAIPMHerrorType;
 import org.openarchives.oai._2.OAIPMHerrorcodeType;
 import org.openarchives.oai._2.OAIPMHtype;
+import org.openarchives.oai._2.RequestType;
+import org.modeshape.jcr.api.ServletCredentials;
 import org.openarchives.oai._2.VerbType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
@@ -47,6 +61,9 @@ public class OAIWebResource {
     @Inject
     private Session session;
 
+    @Context
+    private HttpServletRequest servletRequest;
+
     @Autowired
     private OAIProviderService providerService;
 
@@ -54,11 +71,19 @@ public class OAIWebResource {
     @Path("/sets")
     @Consumes(MediaType.TEXT_XML)
     public Response createSet(@Context final UriInfo uriInfo, final InputStream src) throws RepositoryException {
-        final String path = this.providerService.createSet(session, uriInfo, src);
+        final String path;
+        try {
+            path = this.providerService.createSet(session, uriInfo, src);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN_TYPE)
+                    .entity(e.getMessage()).build();
+        }
         return Response.created(URI.create(path)).build();
     }
 
     @GET
+    @Compress
+    @Metered
     @Produces(MediaType.TEXT_XML)
     public Object getOAIResponse(
             @QueryParam("verb") String verb,
@@ -68,17 +93,84 @@ public class OAIWebResource {
             @QueryParam("until") String until,
             @QueryParam("set") String set,
             @QueryParam("resumptionToken") final String resumptionToken,
-            @Context final UriInfo uriInfo) throws RepositoryException {
-        int offset = 0;
+            @Context final UriInfo uriInfo,
+            @Context final Request request,
+            @Context final HttpHeaders headers) throws RepositoryException {
+        /* the metrics of a response with an entity are finished by the MetricsInterceptor once it has been written */
+        final OAIMetrics.Request metrics = providerService.getMetrics().start(verb);
+        try {
+            final Object result = cachedRespond(verb, identifier, metadataPrefix, from, until, set, resumptionToken,
+                    uriInfo, request, headers);
+            if (result instanceof JAXBElement && ((JAXBElement<?>) result).getValue() instanceof OAIPMHtype) {
+                for (OAIPMHerrorType error : ((OAIPMHtype) ((JAXBElement<?>) result).getValue()).getError()) {
+                    metrics.error(error.getCode().value());
+                }
+            }
+            if (result instanceof Response && !((Response) result).hasEntity()) {
+                metrics.finish();
+            }
+            return result;
+        } catch (RepositoryException | RuntimeException e) {
+            metrics.exception();
+            metrics.finish();
+            throw e;
+        }
+    }
+
+    private Object cachedRespond(String verb, final String identifier, String metadataPrefix, String from,
+            String until, String set, final String resumptionToken, final UriInfo uriInfo, final Request request,
+            final HttpHeaders headers) throws RepositoryException {
+        final PageCache pageCache = providerService.getPageCache();
+        if (pageCache == null || !isCacheable(verb, resumptionToken)) {
+            return respond(verb, identifier, metadataPrefix, from, until, set, resumptionToken, uriInfo, request);
+        }
+        final String key = cacheKey(uriInfo, verb, identifier, metadataPrefix, from, until, set, resumptionToken);
+        PageCache.Entry entry = pageCache.get(key);
+        if (entry == null) {
+            final Object result =
+                    respond(verb, identifier, metadataPrefix, from, until, set, resumptionToken, uriInfo, request);
+            if (!(result instanceof StreamingOutput)) {
+                /* errors are not cached */
+                return result;
+            }
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try {
+                ((StreamingOutput) result).write(body);
+                entry = pageCache.put(key, body.toByteArray());
+            } catch (IOException e) {
+                throw new RepositoryException("Unable to write the response", e);
+            }
+        }
+        final ResponseBuilder response = Response.ok().type(MediaType.TEXT_XML_TYPE)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        /* the cached gzip body is only sent if the interceptor would have compressed the response with gzip as well,
+         * it does not compress a response which already has a content encoding */
+        if (providerService.isCompressionEnabled() &&
+                entry.getIdentity().length >= providerService.getCompressionThreshold() &&
+                CompressionInterceptor.GZIP.equals(CompressionInterceptor.negotiate(
+                        headers.getRequestHeader(HttpHeaders.ACCEPT_ENCODING), CompressionInterceptor.GZIP,
+                        CompressionInterceptor.DEFLATE))) {
+            return response.entity(entry.getGzip()).header(HttpHeaders.CONTENT_ENCODING, "gzip").build();
+        }
+        return response.entity(entry.getIdentity()).build();
+    }
+
+    private Object respond(String verb, final String identifier, String metadataPrefix, String from, String until,
+            String set, final String resumptionToken, final UriInfo uriInfo, final Request request)
+            throws RepositoryException {
+        ResumptionToken token = null;
         if (resumptionToken != null && !resumptionToken.isEmpty()) {
+            final StreamingOutput prefetched = providerService.takePrefetchedPage(resumptionToken, uriInfo);
+            if (prefetched != null) {
+                return prefetched;
+            }
             try {
-                final ResumptionToken token = OAIProviderService.decodeResumptionToken(resumptionToken);
+                token = providerService.decodeResumptionToken(resumptionToken);
                 verb = token.getVerb();
                 from = token.getFrom();
                 until = token.getUntil();
                 set = token.getSet();
                 metadataPrefix = token.getMetadataPrefix();
-                offset = token.getOffset();
             } catch (Exception e) {
                 return providerService.error(null, null, null, OAIPMHerrorcodeType.BAD_RESUMPTION_TOKEN, "Resumption token is invalid");
             }
@@ -93,14 +185,14 @@ public class OAIWebResource {
             }catch(IllegalArgumentException e) {
                 return providerService.error(VerbType.IDENTIFY, identifier, metadataPrefix, OAIPMHerrorcodeType.BAD_ARGUMENT, "Invalid arguments");
             }
-            return identifyRepository(uriInfo);
+            return identifyRepository(uriInfo, request);
         } else if (verb.equals(LIST_METADATA_FORMATS.value())) {
             try {
                 verifyEmpty(from, until, set);
             }catch(IllegalArgumentException e) {
                 return providerService.error(VerbType.LIST_METADATA_FORMATS, identifier, metadataPrefix, OAIPMHerrorcodeType.BAD_ARGUMENT, "Invalid arguments");
             }
-            return metadataFormats(uriInfo, identifier);
+            return metadataFormats(uriInfo, request, identifier);
         } else if (verb.equals(GET_RECORD.value())) {
             try {
                 verifyEmpty(from, until, set);
@@ -114,29 +206,57 @@ public class OAIWebResource {
             }catch(IllegalArgumentException e) {
                 return providerService.error(VerbType.LIST_IDENTIFIERS, identifier, metadataPrefix, OAIPMHerrorcodeType.BAD_ARGUMENT, "Invalid arguments");
             }
-            return listIdentifiers(uriInfo, metadataPrefix, from, until, set, offset);
+            return listIdentifiers(uriInfo, metadataPrefix, from, until, set, token);
         } else if (verb.equals(LIST_SETS.value())) {
             try {
                 verifyEmpty(identifier);
             }catch(IllegalArgumentException e) {
                 return providerService.error(VerbType.LIST_SETS, identifier, metadataPrefix, OAIPMHerrorcodeType.BAD_ARGUMENT, "Invalid arguments");
             }
-            return listSets(uriInfo, offset);
+            return listSets(uriInfo, token);
         } else if (verb.equals(LIST_RECORDS.value())) {
             try {
                 verifyEmpty(identifier);
             }catch(IllegalArgumentException e) {
                 return providerService.error(VerbType.LIST_SETS, identifier, metadataPrefix, OAIPMHerrorcodeType.BAD_ARGUMENT, "Invalid arguments");
             }
-            return listRecords(uriInfo, metadataPrefix, from, until, set, offset);
+            return listRecords(uriInfo, metadataPrefix, from, until, set, token);
         } else {
             return providerService.error(null, identifier, metadataPrefix, OAIPMHerrorcodeType.BAD_VERB,
                     "The verb '" + verb + "' is invalid");
         }
     }
 
-    private JAXBElement<OAIPMHtype> listRecords(UriInfo uriInfo, String metadataPrefix, String from, String until, String set, int offset) throws RepositoryException {
-        return providerService.listRecords(this.session, uriInfo, metadataPrefix, from, until, set, offset);
+    private boolean isCacheable(String verb, String resumptionToken) {
+        if (resumptionToken != null && !resumptionToken.isEmpty()) {
+            return true;
+        }
+        if (LIST_RECORDS.value().equals(verb) || LIST_IDENTIFIERS.value().equals(verb)) {
+            /* with stateful resumption the first page starts a harvest session of its own, which must not be
+             * shared by different harvesters */
+            return providerService.getHarvestSessionStore() == null;
+        }
+        return GET_RECORD.value().equals(verb);
+    }
+
+    /**
+     * Build the page cache key from the base URI, which is part of the record identifiers, and the arguments of the
+     * request in a fixed order
+     */
+    private static String cacheKey(UriInfo uriInfo, String... arguments) {
+        final StringBuilder key = new StringBuilder(uriInfo.getBaseUri().toASCIIString());
+        for (String argument : arguments) {
+            key.append('\n');
+            if (argument != null) {
+                key.append(argument);
+            }
+        }
+        return key.toString();
+    }
+
+    private Object listRecords(UriInfo uriInfo, String metadataPrefix, String from, String until, String set, ResumptionToken token) throws RepositoryException {
+        return providerService.listRecords(this.session, credentials(), uriInfo, metadataPrefix, from, until, set,
+                token);
     }
 
     private void verifyEmpty(String ... data) throws IllegalArgumentException{
@@ -147,13 +267,22 @@ public class OAIWebResource {
         }
     }
 
-    private JAXBElement<OAIPMHtype> listSets(UriInfo uriInfo, int offset) throws RepositoryException {
-        return providerService.listSets(session, uriInfo, offset);
+    private JAXBElement<OAIPMHtype> listSets(UriInfo uriInfo, ResumptionToken token) throws RepositoryException {
+        return providerService.listSets(session, uriInfo, token);
+    }
+
+    private Object listIdentifiers(UriInfo uriInfo, String metadataPrefix, String from,
+            String until, String set, ResumptionToken token) throws RepositoryException {
+        return providerService.listIdentifiers(this.session, credentials(), uriInfo, metadataPrefix, from, until,
+                set, token);
     }
 
-    private JAXBElement<OAIPMHtype> listIdentifiers(UriInfo uriInfo, String metadataPrefix, String from,
-            String until, String set, int offset) throws RepositoryException {
-        return providerService.listIdentifiers(this.session, uriInfo, metadataPrefix, from, until, set, offset);
+    /**
+     * The credentials of the requesting user, which the threads hydrating the records of a list page log in with,
+     * so that they read the repository with the rights of the request session
+     */
+    private ServletCredentials credentials() {
+        return servletRequest == null ? null : new ServletCredentials(servletRequest);
     }
 
     private Object getRecord(final UriInfo uriInfo, final String identifier, final String metadataPrefix)
@@ -161,16 +290,43 @@ public class OAIWebResource {
         return providerService.getRecord(this.session, uriInfo, identifier, metadataPrefix);
     }
 
-    private Object metadataFormats(UriInfo uriInfo, final String identifier) throws RepositoryException {
-        return providerService.listMetadataFormats(this.session, uriInfo, identifier);
+    private Object metadataFormats(UriInfo uriInfo, final Request request, final String identifier)
+            throws RepositoryException {
+        if (identifier != null && !identifier.isEmpty()) {
+            return providerService.listMetadataFormats(this.session, uriInfo, identifier);
+        }
+        try {
+            return cachedResponse(uriInfo, request, VerbType.LIST_METADATA_FORMATS,
+                    providerService.listMetadataFormats());
+        } catch (JAXBException e) {
+            throw new RepositoryException(e);
+        }
     }
 
-    private Object identifyRepository(final UriInfo uriInfo) throws RepositoryException {
+    private Object identifyRepository(final UriInfo uriInfo, final Request request) throws RepositoryException {
         try {
-            return providerService.identify(this.session, uriInfo);
+            return cachedResponse(uriInfo, request, VerbType.IDENTIFY, providerService.identify(this.session));
         } catch (JAXBException e) {
             throw new RepositoryException(e);
         }
     }
 
+    private Response cachedResponse(final UriInfo uriInfo, final Request request, final VerbType verb,
+            final CachedFragment fragment) {
+        /* the response may be sent compressed or not, so the tag only identifies the content of the fragment, which
+         * is what a weak tag is for */
+        final EntityTag etag = new EntityTag(fragment.getEtag(), true);
+        final ResponseBuilder notModified = request.evaluatePreconditions(fragment.getLastModified(), etag);
+        if (notModified != null) {
+            return notModified.build();
+        }
+        final RequestType req = new RequestType();
+        req.setVerb(verb);
+        req.setValue(uriInfo.getRequestUri().toASCIIString());
+        return Response.ok(new FragmentStreamingOutput(providerService.getJaxbPool(), req, fragment))
+                .tag(etag)
+                .lastModified(fragment.getLastModified())
+                .build();
+    }
+
 }
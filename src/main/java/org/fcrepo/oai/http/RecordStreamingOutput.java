@@ -0,0 +1,142 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.io.IOUtils;
+import org.fcrepo.oai.OAIRecord;
+import org.openarchives.oai._2.HeaderType;
+import org.fcrepo.oai.service.JAXBPool;
+import org.openarchives.oai._2.RequestType;
+import org.openarchives.oai._2.ResumptionTokenType;
+import org.openarchives.oai._2.VerbType;
+
+/**
+ * Streams a GetRecord, ListRecords or ListIdentifiers response. The records are pulled from the iterator while
+ * the response is written, so only a single record has to be held in memory at any time.
+ */
+public class RecordStreamingOutput extends OAIStreamingOutput {
+
+    private final VerbType verb;
+
+    private final Iterator<OAIRecord> records;
+
+    private final ResumptionTokenType resumptionToken;
+
+    public RecordStreamingOutput(JAXBPool jaxbPool, RequestType request, Iterator<OAIRecord> records) {
+        this(jaxbPool, request, records, null);
+    }
+
+    /**
+     * @param resumptionToken the resumption token written after the records of a list page, may be null
+     */
+    public RecordStreamingOutput(JAXBPool jaxbPool, RequestType request, Iterator<OAIRecord> records,
+            ResumptionTokenType resumptionToken) {
+        super(jaxbPool, request);
+        this.verb = request.getVerb();
+        this.records = records;
+        this.resumptionToken = resumptionToken;
+    }
+
+    /**
+     * The resumption token written after the records, or null if the response does not end with a token
+     */
+    public ResumptionTokenType getResumptionToken() {
+        return resumptionToken;
+    }
+
+    @Override
+    protected void writeContent(XMLStreamWriter writer, OutputStream output) throws XMLStreamException,
+            JAXBException, IOException {
+        writer.writeStartElement(OAI_NS, verb.value());
+        while (records.hasNext()) {
+            final OAIRecord record = records.next();
+            if (verb == VerbType.LIST_IDENTIFIERS) {
+                marshal(writer, "header", HeaderType.class, record.getHeader());
+            } else if (record.getFragment() != null) {
+                /* close a pending start tag before the serialized record is copied into the response */
+                writer.writeCharacters("");
+                writer.flush();
+                copyBytes(record.getFragment(), output);
+            } else {
+                writeRecord(writer, getJAXBPool(), record, false);
+            }
+        }
+        if (resumptionToken != null) {
+            marshal(writer, "resumptionToken", ResumptionTokenType.class, resumptionToken);
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Serialize a single record element, so that it can be stored and copied into later responses
+     */
+    public static byte[] serializeRecord(JAXBPool jaxbPool, OAIRecord record) throws XMLStreamException,
+            JAXBException {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final XMLStreamWriter writer = createWriter(sink);
+        writer.setDefaultNamespace(OAI_NS);
+        writeRecord(writer, jaxbPool, record, true);
+        writer.flush();
+        writer.close();
+        return sink.toByteArray();
+    }
+
+    private static void writeRecord(XMLStreamWriter writer, JAXBPool jaxbPool, OAIRecord record,
+            boolean declareNamespace) throws XMLStreamException, JAXBException {
+        writer.writeStartElement(OAI_NS, "record");
+        if (declareNamespace) {
+            writer.writeDefaultNamespace(OAI_NS);
+        }
+        marshal(jaxbPool, writer, "header", HeaderType.class, record.getHeader());
+        final InputStream metadata = record.getMetadata();
+        if (metadata != null) {
+            writer.writeStartElement(OAI_NS, "metadata");
+            try {
+                copyXml(writer, metadata);
+            } finally {
+                IOUtils.closeQuietly(metadata);
+            }
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    private static void copyBytes(ByteBuffer src, OutputStream output) throws IOException {
+        final ByteBuffer data = src.duplicate();
+        if (data.hasArray()) {
+            output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+        final byte[] chunk = new byte[Math.min(8192, data.remaining())];
+        while (data.hasRemaining()) {
+            final int len = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, len);
+            output.write(chunk, 0, len);
+        }
+    }
+}
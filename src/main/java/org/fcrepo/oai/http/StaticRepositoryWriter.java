@@ -0,0 +1,129 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import static org.fcrepo.oai.http.OAIStreamingOutput.OAI_NS;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.fcrepo.oai.OAIRecord;
+import org.fcrepo.oai.service.JAXBPool;
+import org.openarchives.oai._2.IdentifyType;
+import org.openarchives.oai._2.ListMetadataFormatsType;
+
+/**
+ * Writes an OAI-PMH static repository document record by record. The Identify and ListMetadataFormats elements
+ * are written first, followed by a ListRecords element for every metadata format. Sets are not supported by
+ * static repositories, so the setSpec elements are removed from the record headers.
+ */
+public class StaticRepositoryWriter implements Closeable {
+
+    public static final String SR_NS = "http://www.openarchives.org/OAI/2.0/static-repository";
+
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+
+    private static final String SR_SCHEMA_LOCATION =
+            SR_NS + " http://www.openarchives.org/OAI/2.0/static-repository.xsd";
+
+    private static final QName SET_SPEC = new QName(OAI_NS, "setSpec");
+
+    private final JAXBPool jaxbPool;
+
+    private final XMLStreamWriter writer;
+
+    public StaticRepositoryWriter(JAXBPool jaxbPool, OutputStream output) throws XMLStreamException {
+        this.jaxbPool = jaxbPool;
+        this.writer = OAIStreamingOutput.createWriter(output);
+    }
+
+    /**
+     * Start the document with the description of the repository and its metadata formats
+     */
+    public void writeStart(IdentifyType identify, ListMetadataFormatsType metadataFormats)
+            throws XMLStreamException, JAXBException {
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.setDefaultNamespace(SR_NS);
+        writer.setPrefix("oai", OAI_NS);
+        writer.writeStartElement(SR_NS, "Repository");
+        writer.writeDefaultNamespace(SR_NS);
+        writer.writeNamespace("oai", OAI_NS);
+        writer.writeNamespace("xsi", XSI_NS);
+        writer.writeAttribute(XSI_NS, "schemaLocation", SR_SCHEMA_LOCATION);
+        final Marshaller marshaller = jaxbPool.borrowMarshaller();
+        try {
+            marshaller.marshal(new JAXBElement<IdentifyType>(new QName(SR_NS, "Identify"), IdentifyType.class,
+                    identify), writer);
+            marshaller.marshal(new JAXBElement<ListMetadataFormatsType>(new QName(SR_NS, "ListMetadataFormats"),
+                    ListMetadataFormatsType.class, metadataFormats), writer);
+        } finally {
+            jaxbPool.returnMarshaller(marshaller);
+        }
+    }
+
+    public void startRecords(String metadataPrefix) throws XMLStreamException {
+        writer.writeStartElement(SR_NS, "ListRecords");
+        writer.writeAttribute("metadataPrefix", metadataPrefix);
+    }
+
+    /**
+     * Write a record, which has to be serialized
+     */
+    public void writeRecord(OAIRecord record) throws XMLStreamException {
+        OAIStreamingOutput.copyXml(writer, toStream(record.getFragment()), SET_SPEC);
+    }
+
+    public void endRecords() throws XMLStreamException {
+        writer.writeEndElement();
+    }
+
+    /**
+     * Finish the document, the output stream is left open
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to finish the static repository", e);
+        }
+    }
+
+    private static InputStream toStream(ByteBuffer fragment) {
+        final ByteBuffer data = fragment.duplicate();
+        if (data.hasArray()) {
+            return new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+}
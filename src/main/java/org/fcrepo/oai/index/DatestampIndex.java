@@ -0,0 +1,702 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An embedded on-disk index of OAI records sorted by datestamp and path, used to answer selective harvesting range
+ * scans without querying the repository.
+ * <p>
+ * The index consists of an immutable snapshot file which is memory-mapped on startup, and an append-only log of
+ * changes made since the snapshot was written. Each log record is framed by its length and a CRC32 checksum, so that
+ * a record torn by a crash is detected and discarded when the log is replayed. Once the log grows past
+ * {@link #setCompactionThreshold(int)} entries the snapshot and the log are merged into a new snapshot, which is
+ * written to a temporary file and atomically moved into place.
+ * </p>
+ */
+public class DatestampIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(DatestampIndex.class);
+
+    private static final String SNAPSHOT_FILE = "datestamps.idx";
+
+    private static final String LOG_FILE = "datestamps.log";
+
+    private static final int MAGIC = 0x4f414958;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 8;
+
+    private static final byte RECORD_PUT = 1;
+
+    private static final byte RECORD_REMOVE = 2;
+
+    private static final byte RECORD_WATERMARK = 3;
+
+    private static final Key TOMBSTONE = new Key(Long.MIN_VALUE, "");
+
+    private File directory;
+
+    private int compactionThreshold = 100000;
+
+    private volatile State state;
+
+    private FileChannel logChannel;
+
+    private long watermark;
+
+    private volatile long modCount;
+
+    /* the paths of the most recent modifications, modification n being kept at n modulo the length */
+    private String[] journal = new String[10000];
+
+    public void setDirectory(String directory) {
+        this.directory = new File(directory);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * The number of recent modifications whose paths are kept, see {@link #getModifiedPaths(long)}
+     */
+    public synchronized void setJournalSize(int journalSize) {
+        this.journal = new String[journalSize];
+    }
+
+    /**
+     * Map the snapshot and replay the change log, discarding a trailing record that has not been completely written
+     */
+    public synchronized void open() throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("No directory has been configured for the datestamp index");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create index directory " + directory.getAbsolutePath());
+        }
+        final Snapshot snapshot = Snapshot.open(new File(directory, SNAPSHOT_FILE));
+        this.state = new State(snapshot);
+        this.watermark = snapshot.watermark;
+        this.logChannel = FileChannel.open(new File(directory, LOG_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long valid = replay();
+        if (valid < logChannel.size()) {
+            log.warn("Discarding {} bytes of an incomplete record at the end of the datestamp index log",
+                    logChannel.size() - valid);
+            logChannel.truncate(valid);
+        }
+        logChannel.position(valid);
+        log.info("Opened datestamp index in {} with {} snapshot entries and {} log entries", directory, snapshot.count,
+                state.overlayKeys.size());
+    }
+
+    public synchronized void close() throws IOException {
+        if (logChannel != null) {
+            logChannel.force(false);
+            logChannel.close();
+            logChannel = null;
+        }
+    }
+
+    public boolean isOpen() {
+        return logChannel != null;
+    }
+
+    /**
+     * The datestamp up to which the repository has been indexed, or 0 if the index has never been populated
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Record the datestamp up to which the repository has been indexed
+     */
+    public synchronized void setWatermark(long watermark) throws IOException {
+        appendRecord(RECORD_WATERMARK, ByteBuffer.allocate(8).putLong(watermark).array());
+        this.watermark = watermark;
+    }
+
+    /**
+     * The number of modifications of the index since it has been opened, which allows indexes derived from this
+     * index to detect that they are outdated
+     */
+    public long getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Get the paths of the entries which have been put or removed since the index had the given modification count
+     *
+     * @return the paths in the order of their first modification, or null if the modifications are no longer kept
+     */
+    public synchronized Collection<String> getModifiedPaths(long since) {
+        if (since < 0 || since > modCount || modCount - since > journal.length) {
+            return null;
+        }
+        final Set<String> paths = new LinkedHashSet<>();
+        for (long n = since; n < modCount; n++) {
+            paths.add(journal[(int) (n % journal.length)]);
+        }
+        return paths;
+    }
+
+    /**
+     * The number of live entries in the index
+     */
+    public int size() {
+        final State current = state;
+        int size = 0;
+        final Iterator<IndexEntry> it = current.scan(Long.MIN_VALUE, Long.MAX_VALUE);
+        while (it.hasNext()) {
+            it.next();
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Look up the entry of an object
+     */
+    public IndexEntry get(String path) {
+        return state.get(path);
+    }
+
+    /**
+     * Add or replace the entry of an object
+     */
+    public synchronized void put(IndexEntry entry) throws IOException {
+        appendRecord(RECORD_PUT, encode(entry));
+        applyPut(entry);
+        maybeCompact();
+    }
+
+    /**
+     * Record the availability of a single metadata format for an object. If the index already holds an entry for the
+     * object with the same datestamp the format is added to it, otherwise the entry is replaced, since the object has
+     * been modified and its remaining formats will be reindexed on their own.
+     *
+     * @return whether the index has been changed, i.e. false if the index already held the format
+     */
+    public synchronized boolean putFormat(String path, long datestamp, String prefix, String datastreamPath,
+            List<String> sets) throws IOException {
+        final IndexEntry existing = state.get(path);
+        if (existing != null && existing.getDatestamp() == datestamp &&
+                datastreamPath.equals(existing.getDatastreams().get(prefix)) && existing.getSets().equals(sets)) {
+            /* records in the overlap of two refreshes are indexed again without having changed */
+            return false;
+        }
+        final Map<String, String> datastreams = new LinkedHashMap<>();
+        if (existing != null && existing.getDatestamp() == datestamp) {
+            datastreams.putAll(existing.getDatastreams());
+        }
+        datastreams.put(prefix, datastreamPath);
+        put(new IndexEntry(path, datestamp, datastreams, sets));
+        return true;
+    }
+
+    /**
+     * Remove the entry of an object from the index
+     */
+    public synchronized void remove(String path) throws IOException {
+        if (state.get(path) == null) {
+            return;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        IndexEntry.writeString(new DataOutputStream(bytes), path);
+        appendRecord(RECORD_REMOVE, bytes.toByteArray());
+        applyRemove(path);
+        maybeCompact();
+    }
+
+    /**
+     * Flush the change log to disk
+     */
+    public synchronized void sync() throws IOException {
+        logChannel.force(false);
+    }
+
+    /**
+     * Iterate over the entries with a datestamp in the given inclusive range in (datestamp, path) order
+     *
+     * @param from the lower bound of the datestamps in milliseconds
+     * @param until the upper bound of the datestamps in milliseconds
+     * @param afterDatestamp if not null, only entries sorted after this datestamp and afterPath are returned
+     * @param afterPath the path of the last entry already seen
+     */
+    public Iterator<IndexEntry> scan(long from, long until, Long afterDatestamp, String afterPath) {
+        Key start = new Key(from, "");
+        boolean inclusive = true;
+        if (afterDatestamp != null) {
+            final Key after = new Key(afterDatestamp, afterPath);
+            if (after.compareTo(start) >= 0) {
+                start = after;
+                inclusive = false;
+            }
+        }
+        return state.scan(start, inclusive, until);
+    }
+
+    /**
+     * Merge the change log into a new snapshot
+     */
+    public synchronized void compact() throws IOException {
+        final File target = new File(directory, SNAPSHOT_FILE);
+        final File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+        final State current = state;
+        Snapshot.write(tmp, current.scan(Long.MIN_VALUE, Long.MAX_VALUE), watermark);
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        /* a crash before the log is truncated only means the log is replayed on top of the new snapshot */
+        final Snapshot snapshot = Snapshot.open(target);
+        logChannel.truncate(0);
+        logChannel.position(0);
+        logChannel.force(true);
+        this.state = new State(snapshot);
+        log.info("Compacted datestamp index to {} entries", snapshot.count);
+    }
+
+    private void maybeCompact() throws IOException {
+        if (state.overlayKeys.size() >= compactionThreshold) {
+            logChannel.force(false);
+            compact();
+        }
+    }
+
+    private long replay() throws IOException {
+        final long size = logChannel.size();
+        final ByteBuffer frame = ByteBuffer.allocate(4 + 8 + 1);
+        long pos = 0;
+        while (pos + frame.capacity() <= size) {
+            frame.clear();
+            readFully(logChannel, frame, pos);
+            frame.flip();
+            final int length = frame.getInt();
+            final long checksum = frame.getLong();
+            final byte type = frame.get();
+            if (length < 0 || pos + frame.capacity() + length > size) {
+                break;
+            }
+            final ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(logChannel, payload, pos + frame.capacity());
+            if (checksum(type, payload.array()) != checksum) {
+                break;
+            }
+            payload.flip();
+            if (type == RECORD_PUT) {
+                applyPut(IndexEntry.read(payload));
+            } else if (type == RECORD_REMOVE) {
+                applyRemove(IndexEntry.readString(payload));
+            } else if (type == RECORD_WATERMARK) {
+                watermark = payload.getLong();
+            } else {
+                break;
+            }
+            pos += frame.capacity() + length;
+        }
+        return pos;
+    }
+
+    private void appendRecord(byte type, byte[] payload) throws IOException {
+        if (logChannel == null) {
+            throw new IllegalStateException("The datestamp index has not been opened");
+        }
+        final ByteBuffer record = ByteBuffer.allocate(4 + 8 + 1 + payload.length);
+        record.putInt(payload.length);
+        record.putLong(checksum(type, payload));
+        record.put(type);
+        record.put(payload);
+        record.flip();
+        while (record.hasRemaining()) {
+            logChannel.write(record);
+        }
+    }
+
+    private void applyPut(IndexEntry entry) {
+        modified(entry.getPath());
+        final Key key = new Key(entry.getDatestamp(), entry.getPath());
+        state.overlay.put(key, entry);
+        final Key previous = state.overlayKeys.put(entry.getPath(), key);
+        if (previous != null && previous != TOMBSTONE && !previous.equals(key)) {
+            state.overlay.remove(previous);
+        }
+    }
+
+    private void applyRemove(String path) {
+        modified(path);
+        final Key previous = state.overlayKeys.put(path, TOMBSTONE);
+        if (previous != null && previous != TOMBSTONE) {
+            state.overlay.remove(previous);
+        }
+    }
+
+    private void modified(String path) {
+        journal[(int) (modCount % journal.length)] = path;
+        modCount++;
+    }
+
+    private static byte[] encode(IndexEntry entry) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        entry.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static long checksum(byte type, byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    /**
+     * The sort key of an entry
+     */
+    private static class Key implements Comparable<Key> {
+
+        private final long datestamp;
+
+        private final String path;
+
+        private Key(long datestamp, String path) {
+            this.datestamp = datestamp;
+            this.path = path;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (datestamp != other.datestamp) {
+                return datestamp < other.datestamp ? -1 : 1;
+            }
+            return path.compareTo(other.path);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && compareTo((Key) obj) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (datestamp ^ (datestamp >>> 32)) + path.hashCode();
+        }
+    }
+
+    /**
+     * The mapped snapshot together with the changes which have been applied on top of it
+     */
+    private static class State {
+
+        private final Snapshot snapshot;
+
+        private final ConcurrentNavigableMap<Key, IndexEntry> overlay = new ConcurrentSkipListMap<>();
+
+        private final Map<String, Key> overlayKeys = new ConcurrentHashMap<>();
+
+        private State(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        private IndexEntry get(String path) {
+            final Key key = overlayKeys.get(path);
+            if (key == TOMBSTONE) {
+                return null;
+            }
+            if (key != null) {
+                final IndexEntry entry = overlay.get(key);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+            return snapshot.get(path);
+        }
+
+        private Iterator<IndexEntry> scan(long from, long until) {
+            return scan(new Key(from, ""), true, until);
+        }
+
+        private Iterator<IndexEntry> scan(final Key start, final boolean inclusive, final long until) {
+            final Iterator<IndexEntry> fromSnapshot = snapshot.scan(start, inclusive);
+            final Iterator<IndexEntry> fromOverlay = overlay.tailMap(start, inclusive).values().iterator();
+            return new Iterator<IndexEntry>() {
+
+                private IndexEntry nextSnapshot = advanceSnapshot();
+
+                private IndexEntry nextOverlay = fromOverlay.hasNext() ? fromOverlay.next() : null;
+
+                @Override
+                public boolean hasNext() {
+                    final IndexEntry next = peek();
+                    return next != null && next.getDatestamp() <= until;
+                }
+
+                @Override
+                public IndexEntry next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    final IndexEntry next = peek();
+                    if (next == nextSnapshot) {
+                        nextSnapshot = advanceSnapshot();
+                    } else {
+                        nextOverlay = fromOverlay.hasNext() ? fromOverlay.next() : null;
+                    }
+                    return next;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                private IndexEntry peek() {
+                    if (nextSnapshot == null) {
+                        return nextOverlay;
+                    }
+                    if (nextOverlay == null) {
+                        return nextSnapshot;
+                    }
+                    final Key snapshotKey = new Key(nextSnapshot.getDatestamp(), nextSnapshot.getPath());
+                    final Key overlayKey = new Key(nextOverlay.getDatestamp(), nextOverlay.getPath());
+                    return snapshotKey.compareTo(overlayKey) <= 0 ? nextSnapshot : nextOverlay;
+                }
+
+                private IndexEntry advanceSnapshot() {
+                    while (fromSnapshot.hasNext()) {
+                        final IndexEntry entry = fromSnapshot.next();
+                        /* entries which have been changed after the snapshot was written are served by the overlay */
+                        if (!overlayKeys.containsKey(entry.getPath())) {
+                            return entry;
+                        }
+                    }
+                    return null;
+                }
+            };
+        }
+    }
+
+    /**
+     * A memory-mapped, immutable snapshot file. After a fixed header the file contains the serialized entries in
+     * (datestamp, path) order followed by two tables of entry offsets, one in (datestamp, path) order and one in path
+     * order, which are binary searched to find the start of a range scan or the entry of an object.
+     */
+    private static class Snapshot {
+
+        private final ByteBuffer buffer;
+
+        private final int count;
+
+        private final long watermark;
+
+        private final int dateTable;
+
+        private final int pathTable;
+
+        private Snapshot(ByteBuffer buffer, int count, long watermark, int dateTable, int pathTable) {
+            this.buffer = buffer;
+            this.count = count;
+            this.watermark = watermark;
+            this.dateTable = dateTable;
+            this.pathTable = pathTable;
+        }
+
+        private static Snapshot open(File file) throws IOException {
+            if (!file.exists()) {
+                return new Snapshot(ByteBuffer.allocate(0), 0, 0L, 0, 0);
+            }
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                final FileChannel channel = raf.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("The datestamp index snapshot " + file + " exceeds 2GB");
+                }
+                /* the mapping stays valid after the channel has been closed */
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                    throw new IOException("The file " + file + " is not a datestamp index snapshot");
+                }
+                if (buffer.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported datestamp index snapshot version " + buffer.getInt(4));
+                }
+                return new Snapshot(buffer, buffer.getInt(8), buffer.getLong(12), (int) buffer.getLong(20),
+                        (int) buffer.getLong(28));
+            }
+        }
+
+        private static void write(File file, Iterator<IndexEntry> entries, long watermark) throws IOException {
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(0);
+                final FileChannel channel = raf.getChannel();
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Channels.newOutputStream(channel.position(HEADER_SIZE)), 65536));
+                long[] offsets = new long[1024];
+                int count = 0;
+                long pos = HEADER_SIZE;
+                while (entries.hasNext()) {
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    offsets[count++] = pos;
+                    final int before = out.size();
+                    entries.next().write(out);
+                    pos += out.size() - before;
+                }
+                final long dateTable = pos;
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(offsets[i]);
+                }
+                final long pathTable = dateTable + 8L * count;
+                out.flush();
+
+                /* sort a copy of the offsets by the path of the entries they point to */
+                final MappedByteBuffer written = channel.map(FileChannel.MapMode.READ_ONLY, 0, dateTable);
+                final Long[] byPath = new Long[count];
+                for (int i = 0; i < count; i++) {
+                    byPath[i] = offsets[i];
+                }
+                Arrays.sort(byPath, new Comparator<Long>() {
+
+                    @Override
+                    public int compare(Long o1, Long o2) {
+                        return pathAt(written, o1.intValue()).compareTo(pathAt(written, o2.intValue()));
+                    }
+                });
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(byPath[i]);
+                }
+                out.flush();
+
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(count).putLong(watermark).putLong(dateTable)
+                        .putLong(pathTable);
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+        }
+
+        private IndexEntry get(String path) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int offset = (int) buffer.getLong(pathTable + 8 * mid);
+                final int cmp = pathAt(buffer, offset).compareTo(path);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return entryAt(offset);
+                }
+            }
+            return null;
+        }
+
+        private Iterator<IndexEntry> scan(Key start, boolean inclusive) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                final int offset = (int) buffer.getLong(dateTable + 8 * mid);
+                final int cmp = new Key(buffer.getLong(offset), pathAt(buffer, offset)).compareTo(start);
+                if (cmp < 0 || (cmp == 0 && !inclusive)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            final int first = low;
+            return new Iterator<IndexEntry>() {
+
+                private int index = first;
+
+                @Override
+                public boolean hasNext() {
+                    return index < count;
+                }
+
+                @Override
+                public IndexEntry next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return entryAt((int) buffer.getLong(dateTable + 8 * index++));
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        private IndexEntry entryAt(int offset) {
+            final ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            return IndexEntry.read(view);
+        }
+
+        private static String pathAt(ByteBuffer buffer, int offset) {
+            final ByteBuffer view = buffer.duplicate();
+            view.position(offset + 8);
+            return IndexEntry.readString(view);
+        }
+    }
+}
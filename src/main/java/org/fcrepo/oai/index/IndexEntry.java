@@ -0,0 +1,113 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.index;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An entry of the {@link DatestampIndex} describing a single OAI record: the path of the Fedora object, its
+ * datestamp, the paths of its metadata datastreams keyed by metadata prefix and the names of the sets it is a
+ * member of.
+ */
+public class IndexEntry {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String path;
+
+    private final long datestamp;
+
+    private final Map<String, String> datastreams;
+
+    private final List<String> sets;
+
+    public IndexEntry(String path, long datestamp, Map<String, String> datastreams, List<String> sets) {
+        this.path = path;
+        this.datestamp = datestamp;
+        this.datastreams = Collections.unmodifiableMap(new LinkedHashMap<>(datastreams));
+        this.sets = Collections.unmodifiableList(new ArrayList<>(sets));
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getDatestamp() {
+        return datestamp;
+    }
+
+    /**
+     * The paths of the metadata datastreams of this record keyed by their metadata prefix
+     */
+    public Map<String, String> getDatastreams() {
+        return datastreams;
+    }
+
+    public List<String> getSets() {
+        return sets;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeLong(datestamp);
+        writeString(out, path);
+        out.writeInt(datastreams.size());
+        for (Map.Entry<String, String> ds : datastreams.entrySet()) {
+            writeString(out, ds.getKey());
+            writeString(out, ds.getValue());
+        }
+        out.writeInt(sets.size());
+        for (String set : sets) {
+            writeString(out, set);
+        }
+    }
+
+    static IndexEntry read(ByteBuffer buffer) {
+        final long datestamp = buffer.getLong();
+        final String path = readString(buffer);
+        final int numDatastreams = buffer.getInt();
+        final Map<String, String> datastreams = new LinkedHashMap<>(numDatastreams);
+        for (int i = 0; i < numDatastreams; i++) {
+            datastreams.put(readString(buffer), readString(buffer));
+        }
+        final int numSets = buffer.getInt();
+        final List<String> sets = new ArrayList<>(numSets);
+        for (int i = 0; i < numSets; i++) {
+            sets.add(readString(buffer));
+        }
+        return new IndexEntry(path, datestamp, datastreams, sets);
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        final byte[] data = value.getBytes(UTF8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        final byte[] data = new byte[buffer.getInt()];
+        buffer.get(data);
+        return new String(data, UTF8);
+    }
+}
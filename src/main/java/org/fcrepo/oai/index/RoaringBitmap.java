@@ -0,0 +1,409 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.index;
+
+import java.util.Arrays;
+
+/**
+ * A compressed bitmap of non-negative ints in the style of Roaring bitmaps. The values are partitioned by their
+ * upper 16 bits into chunks, each stored as a sorted array of its lower 16 bits while it holds at most 4096
+ * values, and as a plain bitmap of 65536 bits once it holds more. Sparse bitmaps thus take about two bytes per
+ * value and dense ones about one bit per value. Bitmaps are not thread safe, but may be shared once they are no
+ * longer modified.
+ */
+public class RoaringBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+
+    private char[] keys = new char[4];
+
+    private Container[] containers = new Container[4];
+
+    private int size;
+
+    /**
+     * Add a value, which is cheapest if the values are added in ascending order
+     */
+    public void add(int value) {
+        final char key = (char) (value >>> 16);
+        int i = size > 0 && keys[size - 1] == key ? size - 1 : Arrays.binarySearch(keys, 0, size, key);
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, key, new ArrayContainer());
+        }
+        containers[i] = containers[i].add((char) value);
+    }
+
+    public boolean contains(int value) {
+        final int i = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    public long getCardinality() {
+        long cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality;
+        }
+        return cardinality;
+    }
+
+    /**
+     * Count the values in the range [from, to)
+     */
+    public long getCardinality(int from, int to) {
+        long cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            final int base = keys[i] << 16;
+            if (base + 0xffff < from) {
+                continue;
+            }
+            if (base >= to) {
+                break;
+            }
+            if (base >= from && base + 0xffff < to) {
+                cardinality += containers[i].cardinality;
+            } else {
+                for (int v = containers[i].next(Math.max(0, from - base)); v >= 0 && base + v < to;
+                        v = v < 0xffff ? containers[i].next(v + 1) : -1) {
+                    cardinality++;
+                }
+            }
+        }
+        return cardinality;
+    }
+
+    /**
+     * Find the smallest value greater than or equal to the given value
+     *
+     * @return the value, or -1 if there is none
+     */
+    public int next(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        int i = Arrays.binarySearch(keys, 0, size, (char) (from >>> 16));
+        int low = from & 0xffff;
+        if (i < 0) {
+            i = -i - 1;
+            low = 0;
+        }
+        for (; i < size; i++) {
+            final int v = containers[i].next(low);
+            if (v >= 0) {
+                return keys[i] << 16 | v;
+            }
+            low = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * Compute the intersection of two bitmaps
+     */
+    public static RoaringBitmap and(RoaringBitmap a, RoaringBitmap b) {
+        final RoaringBitmap result = new RoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                final Container c = a.containers[i].and(b.containers[j]);
+                if (c.cardinality > 0) {
+                    result.insert(result.size, a.keys[i], c);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compute the union of two bitmaps
+     */
+    public static RoaringBitmap or(RoaringBitmap a, RoaringBitmap b) {
+        final RoaringBitmap result = new RoaringBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j >= b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.insert(result.size, a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (i >= a.size || a.keys[i] > b.keys[j]) {
+                result.insert(result.size, b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.insert(result.size, a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the number of bytes held by the bitmap
+     */
+    public long getSizeInBytes() {
+        long bytes = 32 + keys.length * 2 + containers.length * 8;
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    private void insert(int i, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        size++;
+    }
+
+    private abstract static class Container {
+
+        protected int cardinality;
+
+        /**
+         * Add a value, returning the container holding the value, which is a new one if the kind changed
+         */
+        abstract Container add(char value);
+
+        abstract boolean contains(char value);
+
+        /**
+         * @return the smallest value greater than or equal to the given one, or -1
+         */
+        abstract int next(int from);
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        abstract Container copy();
+
+        abstract long sizeInBytes();
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        private char[] values;
+
+        private ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        private ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            int i = cardinality > 0 && values[cardinality - 1] < value ? -cardinality - 1 :
+                    Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_MAX) {
+                return toBitmap().add(value);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        int next(int from) {
+            int i = Arrays.binarySearch(values, 0, cardinality, (char) from);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i < cardinality ? values[i] : -1;
+        }
+
+        @Override
+        Container and(Container other) {
+            final char[] result = new char[Math.min(cardinality, other.cardinality)];
+            int n = 0;
+            if (other instanceof ArrayContainer) {
+                final ArrayContainer o = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while (i < cardinality && j < o.cardinality) {
+                    if (values[i] < o.values[j]) {
+                        i++;
+                    } else if (values[i] > o.values[j]) {
+                        j++;
+                    } else {
+                        result[n++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) {
+                        result[n++] = values[i];
+                    }
+                }
+            }
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            Container result = copy();
+            final ArrayContainer o = (ArrayContainer) other;
+            for (int i = 0; i < o.cardinality; i++) {
+                result = result.add(o.values[i]);
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(1, cardinality)), cardinality);
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 32 + values.length * 2;
+        }
+
+        private BitmapContainer toBitmap() {
+            final BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words = new long[1024];
+
+        @Override
+        Container add(char value) {
+            final long bit = 1L << value;
+            if ((words[value >>> 6] & bit) == 0) {
+                words[value >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & 1L << value) != 0;
+        }
+
+        @Override
+        int next(int from) {
+            int w = from >>> 6;
+            if (w >= words.length) {
+                return -1;
+            }
+            long word = words[w] & -1L << from;
+            while (true) {
+                if (word != 0) {
+                    return w * 64 + Long.numberOfTrailingZeros(word);
+                }
+                if (++w == words.length) {
+                    return -1;
+                }
+                word = words[w];
+            }
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            final BitmapContainer o = (BitmapContainer) other;
+            final BitmapContainer result = new BitmapContainer();
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] = words[i] & o.words[i];
+                result.cardinality += Long.bitCount(result.words[i]);
+            }
+            return result.cardinality > ARRAY_MAX ? result : result.toArray();
+        }
+
+        @Override
+        Container or(Container other) {
+            final BitmapContainer result = (BitmapContainer) copy();
+            if (other instanceof ArrayContainer) {
+                final ArrayContainer o = (ArrayContainer) other;
+                for (int i = 0; i < o.cardinality; i++) {
+                    result.add(o.values[i]);
+                }
+                return result;
+            }
+            final BitmapContainer o = (BitmapContainer) other;
+            result.cardinality = 0;
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] |= o.words[i];
+                result.cardinality += Long.bitCount(result.words[i]);
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            final BitmapContainer copy = new BitmapContainer();
+            System.arraycopy(words, 0, copy.words, 0, words.length);
+            copy.cardinality = cardinality;
+            return copy;
+        }
+
+        @Override
+        long sizeInBytes() {
+            return 32 + words.length * 8;
+        }
+
+        private ArrayContainer toArray() {
+            final char[] values = new char[cardinality];
+            int n = 0;
+            for (int v = next(0); v >= 0; v = v < 0xffff ? next(v + 1) : -1) {
+                values[n++] = (char) v;
+            }
+            return new ArrayContainer(values, n);
+        }
+    }
+}
@@ -0,0 +1,465 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An in-memory index answering set restricted list requests from a {@link DatestampIndex}. The records are
+ * numbered by their position in (datestamp, path) order, and a compressed bitmap of these ordinals is kept for every
+ * set and every metadata format. A request is answered by slicing the ordinals of its from and until range from the
+ * record table and intersecting the bitmaps of its set and metadata format, instead of reading the entries of all
+ * the records in the range.
+ * <p>
+ * The index is immutable and built from the datestamp index in a single scan. Once the datestamp index has been
+ * modified, the index keeps answering requests by patching in the entries modified since it has been built, as long
+ * as the datestamp index still knows their paths, see {@link #getPendingChanges()}: the records of modified entries
+ * are skipped in the bitmaps, and their current entries are merged into the results instead.
+ * </p>
+ */
+public class SetIndex {
+
+    private static final RoaringBitmap EMPTY = new RoaringBitmap();
+
+    private final DatestampIndex datestampIndex;
+
+    private final long modCount;
+
+    private final long[] datestamps;
+
+    private final String[] paths;
+
+    /* the ordinals sorted by path, to find the record of a modified entry */
+    private final int[] byPath;
+
+    private final Map<String, RoaringBitmap> sets;
+
+    private final Map<String, RoaringBitmap> formats;
+
+    private final long buildMillis;
+
+    private SetIndex(DatestampIndex datestampIndex, long modCount, long[] datestamps, String[] paths,
+            Map<String, RoaringBitmap> sets, Map<String, RoaringBitmap> formats, long buildMillis) {
+        this.datestampIndex = datestampIndex;
+        this.modCount = modCount;
+        this.datestamps = datestamps;
+        this.paths = paths;
+        this.byPath = sortByPath(paths);
+        this.sets = Collections.unmodifiableMap(sets);
+        this.formats = Collections.unmodifiableMap(formats);
+        this.buildMillis = buildMillis;
+    }
+
+    /**
+     * Build the index from all the entries of a datestamp index
+     */
+    public static SetIndex build(DatestampIndex datestampIndex) {
+        final long started = System.currentTimeMillis();
+        /* read before the scan, so that modifications made during the scan make the index outdated */
+        final long modCount = datestampIndex.getModCount();
+        long[] datestamps = new long[1024];
+        String[] paths = new String[1024];
+        int size = 0;
+        final Map<String, RoaringBitmap> sets = new HashMap<>();
+        final Map<String, RoaringBitmap> formats = new HashMap<>();
+        final Iterator<IndexEntry> entries = datestampIndex.scan(Long.MIN_VALUE, Long.MAX_VALUE, null, null);
+        while (entries.hasNext()) {
+            final IndexEntry entry = entries.next();
+            if (size == datestamps.length) {
+                datestamps = Arrays.copyOf(datestamps, size * 2);
+                paths = Arrays.copyOf(paths, size * 2);
+            }
+            datestamps[size] = entry.getDatestamp();
+            paths[size] = entry.getPath();
+            for (String set : entry.getSets()) {
+                bitmap(sets, set).add(size);
+            }
+            for (String prefix : entry.getDatastreams().keySet()) {
+                bitmap(formats, prefix).add(size);
+            }
+            size++;
+        }
+        return new SetIndex(datestampIndex, modCount, Arrays.copyOf(datestamps, size), Arrays.copyOf(paths, size),
+                sets, formats, System.currentTimeMillis() - started);
+    }
+
+    private static int[] sortByPath(final String[] paths) {
+        final Integer[] ordinals = new Integer[paths.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = i;
+        }
+        Arrays.sort(ordinals, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return paths[o1].compareTo(paths[o2]);
+            }
+        });
+        final int[] sorted = new int[ordinals.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = ordinals[i];
+        }
+        return sorted;
+    }
+
+    private static RoaringBitmap bitmap(Map<String, RoaringBitmap> bitmaps, String key) {
+        RoaringBitmap bitmap = bitmaps.get(key);
+        if (bitmap == null) {
+            bitmap = new RoaringBitmap();
+            bitmaps.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Whether the datestamp index has not been modified since this index has been built
+     */
+    public boolean isCurrent() {
+        return datestampIndex.getModCount() == modCount;
+    }
+
+    /**
+     * The number of entries of the datestamp index which have been modified since this index has been built, and
+     * which are patched in by every request
+     *
+     * @return the number of modified entries, or -1 if the datestamp index no longer knows all of them and this index
+     *         can not be used any more
+     */
+    public int getPendingChanges() {
+        if (isCurrent()) {
+            return 0;
+        }
+        final Collection<String> modified = datestampIndex.getModifiedPaths(modCount);
+        return modified == null ? -1 : modified.size();
+    }
+
+    /**
+     * Iterate over the entries of the records of a metadata format in one of the given sets with a datestamp in the
+     * given inclusive range, in (datestamp, path) order
+     *
+     * @param sets the setSpecs of which a record has to be a member of one, or null to include all records
+     * @param afterDatestamp if not null, only entries sorted after this datestamp and afterPath are returned
+     * @throws IllegalStateException if the index can not be patched any more
+     */
+    public Iterator<IndexEntry> scan(long from, long until, Long afterDatestamp, String afterPath,
+            Collection<String> sets, String prefix) {
+        int start = lowerBound(from, "");
+        if (afterDatestamp != null) {
+            start = Math.max(start, upperBound(afterDatestamp, afterPath));
+        }
+        final int end = upperBound(until, null);
+        final Patch patch = patch();
+        final List<IndexEntry> added = new ArrayList<>();
+        for (IndexEntry entry : patch.entries) {
+            if (matches(entry, from, until, sets, prefix) && (afterDatestamp == null ||
+                    compare(entry, afterDatestamp, afterPath) > 0)) {
+                added.add(entry);
+            }
+        }
+        return new EntryIterator(filter(sets, prefix), start, end, patch.paths, added.iterator());
+    }
+
+    /**
+     * Count the records of a metadata format in one of the given sets with a datestamp in the given inclusive range
+     *
+     * @throws IllegalStateException if the index can not be patched any more
+     */
+    public long count(long from, long until, Collection<String> sets, String prefix) {
+        final int start = lowerBound(from, "");
+        final int end = upperBound(until, null);
+        final RoaringBitmap filter = filter(sets, prefix);
+        long count = start < end ? filter.getCardinality(start, end) : 0;
+        final Patch patch = patch();
+        for (String path : patch.paths) {
+            final int ordinal = ordinal(path);
+            if (ordinal >= start && ordinal < end && filter.contains(ordinal)) {
+                count--;
+            }
+        }
+        for (IndexEntry entry : patch.entries) {
+            if (matches(entry, from, until, sets, prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean matches(IndexEntry entry, long from, long until, Collection<String> sets,
+            String prefix) {
+        return entry.getDatestamp() >= from && entry.getDatestamp() <= until &&
+                entry.getDatastreams().containsKey(prefix) &&
+                (sets == null || !Collections.disjoint(entry.getSets(), sets));
+    }
+
+    /**
+     * Read the current entries of the paths modified since this index has been built, sorted in (datestamp, path)
+     * order
+     */
+    private Patch patch() {
+        if (isCurrent()) {
+            return Patch.NONE;
+        }
+        final Collection<String> modified = datestampIndex.getModifiedPaths(modCount);
+        if (modified == null) {
+            throw new IllegalStateException("The set index is outdated");
+        }
+        final List<IndexEntry> entries = new ArrayList<>(modified.size());
+        for (String path : modified) {
+            final IndexEntry entry = datestampIndex.get(path);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<IndexEntry>() {
+
+            @Override
+            public int compare(IndexEntry o1, IndexEntry o2) {
+                return SetIndex.compare(o1, o2.getDatestamp(), o2.getPath());
+            }
+        });
+        return new Patch(new HashSet<>(modified), entries);
+    }
+
+    /**
+     * Find the ordinal of the record of a path
+     *
+     * @return the ordinal, or -1 if the path is not in the index
+     */
+    private int ordinal(String path) {
+        int low = 0;
+        int high = byPath.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = paths[byPath[mid]].compareTo(path);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return byPath[mid];
+            }
+        }
+        return -1;
+    }
+
+    private RoaringBitmap filter(Collection<String> specs, String prefix) {
+        final RoaringBitmap format = formats.get(prefix);
+        if (format == null) {
+            return EMPTY;
+        }
+        if (specs == null) {
+            return format;
+        }
+        /* a set includes the records of the sets below it, so the members of all of them are united first */
+        RoaringBitmap members = null;
+        for (String spec : specs) {
+            final RoaringBitmap bitmap = sets.get(spec);
+            if (bitmap != null) {
+                members = members == null ? bitmap : RoaringBitmap.or(members, bitmap);
+            }
+        }
+        return members == null ? EMPTY : RoaringBitmap.and(members, format);
+    }
+
+    /**
+     * Find the first ordinal sorted at or after the given key
+     */
+    private int lowerBound(long datestamp, String path) {
+        int low = 0;
+        int high = datestamps.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(mid, datestamp, path) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the first ordinal sorted after the given key, a null path sorts after all paths of its datestamp
+     */
+    private int upperBound(long datestamp, String path) {
+        int low = 0;
+        int high = datestamps.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(mid, datestamp, path) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compare(int ordinal, long datestamp, String path) {
+        return compare(datestamps[ordinal], paths[ordinal], datestamp, path);
+    }
+
+    private static int compare(IndexEntry entry, long datestamp, String path) {
+        return compare(entry.getDatestamp(), entry.getPath(), datestamp, path);
+    }
+
+    private static int compare(long datestamp, String path, long otherDatestamp, String otherPath) {
+        if (datestamp != otherDatestamp) {
+            return datestamp < otherDatestamp ? -1 : 1;
+        }
+        return otherPath == null ? -1 : path.compareTo(otherPath);
+    }
+
+    /**
+     * The number of records in the index
+     */
+    public int size() {
+        return datestamps.length;
+    }
+
+    public int getSetCount() {
+        return sets.size();
+    }
+
+    /**
+     * The time it took to build the index in milliseconds
+     */
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    /**
+     * Estimate the number of bytes held by the record table and the bitmaps
+     */
+    public long getMemoryUsage() {
+        long bytes = 16L + datestamps.length * 8L + paths.length * 8L + byPath.length * 4L;
+        for (String path : paths) {
+            bytes += 40 + path.length() * 2L;
+        }
+        for (Map<String, RoaringBitmap> bitmaps : Arrays.asList(sets, formats)) {
+            for (Map.Entry<String, RoaringBitmap> bitmap : bitmaps.entrySet()) {
+                bytes += 72 + bitmap.getKey().length() * 2L + bitmap.getValue().getSizeInBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The entries modified since the index has been built
+     */
+    private static class Patch {
+
+        private static final Patch NONE =
+                new Patch(Collections.<String>emptySet(), Collections.<IndexEntry>emptyList());
+
+        private final Set<String> paths;
+
+        private final List<IndexEntry> entries;
+
+        private Patch(Set<String> paths, List<IndexEntry> entries) {
+            this.paths = paths;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Merges the entries of the records in the bitmap, skipping the modified ones, with the current entries of the
+     * modified records
+     */
+    private class EntryIterator implements Iterator<IndexEntry> {
+
+        private final RoaringBitmap ordinals;
+
+        private final int end;
+
+        private final Set<String> modified;
+
+        private final Iterator<IndexEntry> added;
+
+        private int position;
+
+        private IndexEntry indexed;
+
+        private IndexEntry patched;
+
+        private EntryIterator(RoaringBitmap ordinals, int start, int end, Set<String> modified,
+                Iterator<IndexEntry> added) {
+            this.ordinals = ordinals;
+            this.position = start;
+            this.end = end;
+            this.modified = modified;
+            this.added = added;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (indexed == null && position < end) {
+                final int ordinal = ordinals.next(position);
+                if (ordinal < 0 || ordinal >= end) {
+                    position = end;
+                    break;
+                }
+                position = ordinal + 1;
+                if (modified.contains(paths[ordinal])) {
+                    continue;
+                }
+                /* entries modified after the patch has been read are skipped as well */
+                final IndexEntry entry = datestampIndex.get(paths[ordinal]);
+                if (entry != null && entry.getDatestamp() == datestamps[ordinal]) {
+                    indexed = entry;
+                }
+            }
+            if (patched == null && added.hasNext()) {
+                patched = added.next();
+            }
+            return indexed != null || patched != null;
+        }
+
+        @Override
+        public IndexEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final IndexEntry entry;
+            if (patched == null || (indexed != null &&
+                    compare(indexed, patched.getDatestamp(), patched.getPath()) < 0)) {
+                entry = indexed;
+                indexed = null;
+            } else {
+                entry = patched;
+                patched = null;
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
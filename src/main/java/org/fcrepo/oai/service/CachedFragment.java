@@ -0,0 +1,62 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.util.Date;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * A pre-serialized part of an OAI-PMH response, which can be written to a response as is
+ */
+public class CachedFragment {
+
+    private final byte[] content;
+
+    private final String etag;
+
+    private final long sourceModified;
+
+    private final Date lastModified;
+
+    public CachedFragment(byte[] content, Date sourceModified) {
+        this.content = content;
+        this.etag = DigestUtils.md5Hex(content);
+        this.sourceModified = sourceModified.getTime();
+        /* HTTP dates only have a precision of seconds */
+        this.lastModified = new Date(sourceModified.getTime() / 1000 * 1000);
+    }
+
+    /**
+     * Check if this fragment has been created from a source with the given modification date
+     */
+    public boolean isCurrent(Date modified) {
+        return modified != null && modified.getTime() == sourceModified;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public Date getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,227 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.fcrepo.oai.MetadataFormat;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Transforms the metadata of a source format into a derived format using the XSLT stylesheet of the derived format.
+ * The stylesheets are compiled once into {@link Templates}, which are shared by all threads, and the source
+ * datastream is streamed through the transformation. The transformed records are kept in a cache keyed by the
+ * derived format, the path of the source datastream and its last modification date, which is bounded by the total
+ * number of bytes held and evicts the least recently used records first. Since a modified datastream has a new
+ * modification date, cached records never have to be invalidated.
+ * <p>
+ * The source datastreams are written by users, so they are parsed without DTDs and external entities, which would
+ * allow reading files of the server or making it fetch URLs. Stylesheets are trusted and may import others.
+ * </p>
+ */
+public class Crosswalk {
+
+    private static final String CLASSPATH = "classpath:";
+
+    private final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+    private final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+
+    private final ConcurrentMap<String, Templates> templates = new ConcurrentHashMap<>();
+
+    private final Map<String, byte[]> records = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long maxBytes;
+
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes the number of bytes of transformed records to cache, 0 disables the cache
+     */
+    public Crosswalk(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        parserFactory.setNamespaceAware(true);
+        parserFactory.setXIncludeAware(false);
+        try {
+            parserFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            parserFactory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            parserFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            parserFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IllegalStateException("Unable to disable DTDs for the source datastreams", e);
+        }
+        try {
+            transformerFactory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        } catch (IllegalArgumentException e) {
+            /* the attribute is only known to JAXP 1.5 implementations, the sources are parsed without DTDs anyway */
+        }
+    }
+
+    /**
+     * Transform the metadata of a source datastream into a derived format
+     *
+     * @param mdf the derived format
+     * @param dsPath the path of the source datastream
+     * @param lastModified the last modification date of the source datastream
+     * @param src the content of the source datastream, which is closed by the caller
+     * @return the serialized metadata of the derived format, without an XML declaration
+     */
+    public byte[] transform(MetadataFormat mdf, String dsPath, long lastModified, InputStream src)
+            throws TransformerException {
+        final String key = mdf.getPrefix() + '\n' + dsPath + '\n' + lastModified;
+        synchronized (records) {
+            final byte[] record = records.get(key);
+            if (record != null) {
+                hits.incrementAndGet();
+                return record;
+            }
+        }
+        misses.incrementAndGet();
+        final Transformer transformer = getTemplates(mdf).newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        transformer.transform(new SAXSource(newReader(), new InputSource(src)), new StreamResult(sink));
+        final byte[] record = sink.toByteArray();
+        if (record.length <= maxBytes) {
+            synchronized (records) {
+                final byte[] previous = records.put(key, record);
+                bytes += record.length - (previous == null ? 0 : previous.length);
+                final Iterator<byte[]> eldest = records.values().iterator();
+                while (bytes > maxBytes && eldest.hasNext()) {
+                    bytes -= eldest.next().length;
+                    eldest.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Create a parser for a source datastream which rejects DTDs
+     */
+    private XMLReader newReader() throws TransformerException {
+        try {
+            /* the parser factory is not thread safe */
+            synchronized (parserFactory) {
+                return parserFactory.newSAXParser().getXMLReader();
+            }
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new TransformerException("Unable to create a parser for the source datastream", e);
+        }
+    }
+
+    /**
+     * Get the compiled stylesheet of a derived format, compiling it on first use
+     */
+    public Templates getTemplates(MetadataFormat mdf) throws TransformerException {
+        final String stylesheet = mdf.getStylesheet();
+        final Templates compiled = templates.get(stylesheet);
+        if (compiled != null) {
+            return compiled;
+        }
+        /* the transformer factory is not thread safe */
+        synchronized (transformerFactory) {
+            if (!templates.containsKey(stylesheet)) {
+                templates.put(stylesheet, transformerFactory.newTemplates(new StreamSource(resolve(stylesheet))));
+            }
+            return templates.get(stylesheet);
+        }
+    }
+
+    /**
+     * Resolve the location of a stylesheet, which is either a resource on the class path prefixed by
+     * <code>classpath:</code>, a URL or a file, to a system id, so that relative imports of the stylesheet resolve
+     */
+    private static String resolve(String stylesheet) throws TransformerException {
+        if (stylesheet.startsWith(CLASSPATH)) {
+            final URL resource = Crosswalk.class.getClassLoader()
+                    .getResource(stylesheet.substring(CLASSPATH.length()).replaceFirst("^/", ""));
+            if (resource == null) {
+                throw new TransformerException("The stylesheet " + stylesheet + " does not exist");
+            }
+            return resource.toExternalForm();
+        }
+        if (stylesheet.matches("[a-zA-Z][a-zA-Z0-9+.-]+:.*")) {
+            return stylesheet;
+        }
+        return new File(stylesheet).toURI().toString();
+    }
+
+    public void invalidate() {
+        synchronized (records) {
+            records.clear();
+            bytes = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (records) {
+            return records.size();
+        }
+    }
+
+    /**
+     * The number of bytes held by the cached records
+     */
+    public long getBytes() {
+        synchronized (records) {
+            return bytes;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
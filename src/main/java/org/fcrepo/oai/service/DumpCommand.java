@@ -0,0 +1,114 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.net.URI;
+
+import org.springframework.context.support.GenericXmlApplicationContext;
+
+/**
+ * Generates a dump from the command line, using the Spring configuration of a repository, e.g.
+ *
+ * <pre>
+ * java -cp ... org.fcrepo.oai.service.DumpCommand -c classpath:spring/master.xml,classpath:oaiprovider.xml \
+ *     -b http://localhost:8080/fcrepo/rest -p oai_dc -f ndjson -o /var/lib/fcrepo/oai-dumps
+ * </pre>
+ *
+ * The repository must not be used by another process while the dump is generated.
+ */
+public final class DumpCommand {
+
+    private static final String USAGE = "Usage: DumpCommand -c <spring config locations> -b <base URL> " +
+            "-p <metadataPrefix> [-s <set>] [-f xml|ndjson] [-o <directory>]";
+
+    private DumpCommand() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String config = null;
+        String baseUrl = null;
+        String metadataPrefix = null;
+        String set = null;
+        String format = null;
+        String directory = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "-c":
+                config = args[i + 1];
+                break;
+            case "-b":
+                baseUrl = args[i + 1];
+                break;
+            case "-p":
+                metadataPrefix = args[i + 1];
+                break;
+            case "-s":
+                set = args[i + 1];
+                break;
+            case "-f":
+                format = args[i + 1];
+                break;
+            case "-o":
+                directory = args[i + 1];
+                break;
+            default:
+                usage();
+            }
+        }
+        if (args.length % 2 != 0 || config == null || baseUrl == null || metadataPrefix == null) {
+            usage();
+        }
+        if (!baseUrl.endsWith("/")) {
+            baseUrl += "/";
+        }
+
+        final GenericXmlApplicationContext ctx = new GenericXmlApplicationContext(config.split(","));
+        final DumpJob job;
+        try {
+            DumpGenerator generator = ctx.getBeanNamesForType(DumpGenerator.class).length > 0 ?
+                    ctx.getBean(DumpGenerator.class) : null;
+            if (generator == null || directory != null) {
+                if (directory == null) {
+                    usage();
+                }
+                if (generator != null) {
+                    generator.close();
+                }
+                generator = new DumpGenerator();
+                ctx.getAutowireCapableBeanFactory().autowireBean(generator);
+                generator.setDirectory(directory);
+                generator.open();
+            }
+            job = generator.start(metadataPrefix, set, DumpGenerator.Format.fromName(format), URI.create(baseUrl));
+            while (!job.isDone()) {
+                Thread.sleep(5000);
+                System.out.println(job.getName() + ": " + job.getRecords() + " records, " + job.getBytes() +
+                        " bytes");
+            }
+            generator.close();
+        } finally {
+            ctx.close();
+        }
+        System.out.println(job.toJson());
+        System.exit(job.getState() == DumpJob.State.COMPLETED ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,564 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.jcr.Session;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.fcrepo.http.api.FedoraNodes;
+import org.fcrepo.http.commons.api.rdf.HttpIdentifierTranslator;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.exception.RepositoryRuntimeException;
+import org.fcrepo.oai.MetadataFormat;
+import org.fcrepo.oai.OAIRecord;
+import org.fcrepo.oai.http.RecordStreamingOutput;
+import org.openarchives.oai._2.HeaderType;
+import org.openarchives.oai._2.RequestType;
+import org.openarchives.oai._2.VerbType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Writes all the records of a metadata format, optionally restricted to a set, into a file, so that harvesters can
+ * download the complete repository at once instead of paging through it. A dump is either a gzip compressed
+ * ListRecords response or a gzip compressed file holding a JSON object per record and line.
+ * <p>
+ * The records are fetched on the thread of the job and handed to a writer thread through a bounded queue, so that
+ * fetching and compressing overlap while the memory used stays bounded. A dump is written to a temporary file and
+ * moved into place once it is complete, so the file behind the URL of a dump is always a complete dump.
+ * </p>
+ */
+public class DumpGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(DumpGenerator.class);
+
+    public static final String DUMPS_NS = "http://fcrepo.org/oai/dumps";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final OAIRecord END = new OAIRecord(new HeaderType());
+
+    public enum Format {
+        XML(".xml.gz"), NDJSON(".ndjson.gz");
+
+        private final String suffix;
+
+        private Format(String suffix) {
+            this.suffix = suffix;
+        }
+
+        public String getSuffix() {
+            return suffix;
+        }
+
+        /**
+         * Look up a format by its case insensitive name, defaulting to XML
+         */
+        public static Format fromName(String name) {
+            return name == null || name.isEmpty() ? XML : valueOf(name.toUpperCase());
+        }
+    }
+
+    @Autowired
+    private OAIProviderService providerService;
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    private File directory;
+
+    private int queueSize = 256;
+
+    private int pageSize = 500;
+
+    private int maxQueuedJobs = 4;
+
+    private String adminRole = "fedoraAdmin";
+
+    private final Map<String, DumpJob> jobs = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    private ExecutorService writers;
+
+    private volatile long lastPublished;
+
+    public void setDirectory(String directory) {
+        this.directory = new File(directory);
+    }
+
+    /**
+     * The number of records buffered between the thread fetching and the thread writing the records
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * The number of records fetched from the repository at once
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * The maximum number of dumps waiting to be generated or being generated, further dumps are rejected
+     */
+    public void setMaxQueuedJobs(int maxQueuedJobs) {
+        this.maxQueuedJobs = maxQueuedJobs;
+    }
+
+    /**
+     * The role a user needs to start dumps over HTTP, since dumps read the whole repository with an internal session
+     */
+    public void setAdminRole(String adminRole) {
+        this.adminRole = adminRole;
+    }
+
+    public String getAdminRole() {
+        return adminRole;
+    }
+
+    public void setProviderService(OAIProviderService providerService) {
+        this.providerService = providerService;
+    }
+
+    public void setSessionFactory(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    public synchronized void open() throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("No directory has been configured for the dumps");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create dump directory " + directory.getAbsolutePath());
+        }
+        for (File dump : listDumps()) {
+            lastPublished = Math.max(lastPublished, dump.lastModified());
+        }
+        executor = Executors.newSingleThreadExecutor(threadFactory("oai-dump-"));
+        writers = Executors.newCachedThreadPool(threadFactory("oai-dump-writer-"));
+    }
+
+    public synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            writers.shutdownNow();
+            executor = null;
+            writers = null;
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String prefix) {
+        return new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Queue a dump of the records of a metadata format. Dumps are generated one at a time; if a dump of the same
+     * records into the same format is already queued or running, its job is returned instead.
+     *
+     * @param baseUri the base URI of the REST API, which the identifiers of the records are derived from
+     * @throws IllegalArgumentException if the metadata format does not exist
+     * @throws IllegalStateException if the maximum number of dumps has been queued
+     */
+    public synchronized DumpJob start(String metadataPrefix, String set, Format format, final URI baseUri) {
+        if (executor == null) {
+            throw new IllegalStateException("The dump generator has not been opened");
+        }
+        final MetadataFormat mdf = providerService.getMetadataFormat(metadataPrefix);
+        if (mdf == null) {
+            throw new IllegalArgumentException("Unavailable metadata format " + metadataPrefix);
+        }
+        final String name = dumpName(metadataPrefix, set, format);
+        final DumpJob running = jobs.get(name);
+        if (running != null && !running.isDone()) {
+            return running;
+        }
+        int queued = 0;
+        for (DumpJob job : jobs.values()) {
+            if (!job.isDone()) {
+                queued++;
+            }
+        }
+        if (queued >= maxQueuedJobs) {
+            throw new IllegalStateException("There are already " + queued + " dumps queued");
+        }
+        final DumpJob job = new DumpJob(name, metadataPrefix, set != null && set.isEmpty() ? null : set, format);
+        jobs.put(name, job);
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                generate(job, mdf, baseUri);
+            }
+        });
+        return job;
+    }
+
+    public Collection<DumpJob> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    public DumpJob getJob(String name) {
+        return jobs.get(name);
+    }
+
+    /**
+     * Get the file of a published dump
+     *
+     * @return the file, or null if no dump of that name has been published
+     */
+    public File getDumpFile(String name) {
+        if (!name.matches("[A-Za-z0-9._-]+") || (!name.endsWith(Format.XML.suffix) &&
+                !name.endsWith(Format.NDJSON.suffix))) {
+            return null;
+        }
+        final File file = new File(directory, name);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * The time the last dump has been published at, in milliseconds since the epoch
+     */
+    public long getLastPublished() {
+        return lastPublished;
+    }
+
+    private List<File> listDumps() {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(Format.XML.suffix) || name.endsWith(Format.NDJSON.suffix);
+            }
+        });
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Describe the published dumps for the Identify response
+     *
+     * @param baseUrl the base URL of the OAI-PMH interface
+     * @return the description, or null if no dump has been published
+     */
+    public Element describe(String baseUrl) throws ParserConfigurationException {
+        final List<File> dumps = listDumps();
+        if (dumps.isEmpty()) {
+            return null;
+        }
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Document doc = factory.newDocumentBuilder().newDocument();
+        final Element description = doc.createElementNS(DUMPS_NS, "dumps");
+        for (File file : dumps) {
+            final Element dump = doc.createElementNS(DUMPS_NS, "dump");
+            dump.setAttribute("format", file.getName().endsWith(Format.XML.suffix) ? "xml" : "ndjson");
+            dump.setAttribute("size", String.valueOf(file.length()));
+            dump.setAttribute("datestamp", providerService.formatDatestamp(file.lastModified()));
+            final DumpJob job = jobs.get(file.getName());
+            if (job != null && job.getState() == DumpJob.State.COMPLETED) {
+                dump.setAttribute("metadataPrefix", job.getMetadataPrefix());
+                if (job.getSet() != null) {
+                    dump.setAttribute("set", job.getSet());
+                }
+                dump.setAttribute("records", String.valueOf(job.getRecords()));
+            }
+            dump.setTextContent(dumpUrl(baseUrl, file.getName()));
+            description.appendChild(dump);
+        }
+        return description;
+    }
+
+    /**
+     * The URL a dump is published at, below the OAI-PMH endpoint
+     */
+    public static String dumpUrl(String baseUrl, String name) {
+        String endpoint = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        if (!endpoint.endsWith("/oai")) {
+            endpoint += "/oai";
+        }
+        return endpoint + "/dumps/" + name;
+    }
+
+    /**
+     * The file name of a dump. A metadata prefix without a set is used as it is if it only has characters allowed in
+     * file names; otherwise the name gets a short hash of the raw prefix and set, since replacing characters and
+     * joining the prefix and set would let different dumps, such as the sets a:b and a_b, share a file.
+     */
+    static String dumpName(String metadataPrefix, String set, Format format) {
+        final boolean hasSet = set != null && !set.isEmpty();
+        final String name = hasSet ? metadataPrefix + "-" + set : metadataPrefix;
+        final String safe = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (!hasSet && safe.equals(name)) {
+            return name + format.suffix;
+        }
+        final String hash = DigestUtils.sha1Hex(hasSet ? metadataPrefix + "\n" + set : metadataPrefix);
+        return safe + "-" + hash.substring(0, 8) + format.suffix;
+    }
+
+    private void generate(final DumpJob job, MetadataFormat mdf, URI baseUri) {
+        job.started();
+        log.info("Generating dump {}", job.getName());
+        final File tmp = new File(directory, job.getName() + ".tmp");
+        final BlockingQueue<OAIRecord> queue = new ArrayBlockingQueue<>(queueSize);
+        Future<Void> writer = null;
+        Session session = null;
+        try {
+            final CountingOutputStream counting =
+                    new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            final OutputStream out = new GZIPOutputStream(counting, 65536);
+            final URI endpoint = baseUri.resolve("oai");
+            writer = writers.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        final Iterator<OAIRecord> records = new QueueIterator(queue, job, counting);
+                        if (job.getFormat() == Format.XML) {
+                            writeXml(job, endpoint, records, out);
+                        } else {
+                            writeJson(records, out);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    return null;
+                }
+            });
+            final Future<Void> running = writer;
+            session = sessionFactory.getInternalSession();
+            final HttpIdentifierTranslator translator =
+                    new HttpIdentifierTranslator(session, FedoraNodes.class, new UriInfoSnapshot(baseUri, endpoint));
+            /* records modified while the dump is generated are left to the next dump */
+            final String until = providerService.formatDatestamp(job.getStarted());
+            providerService.walkRecords(session, translator, mdf, job.getSet(), until, pageSize,
+                    new OAIProviderService.RecordHandler() {
+
+                        @Override
+                        public void handle(OAIRecord record) throws IOException, InterruptedException {
+                            enqueue(queue, record, running);
+                        }
+                    });
+            enqueue(queue, END, running);
+            writer.get();
+            job.bytesWritten(counting.getByteCount());
+            Files.move(tmp.toPath(), new File(directory, job.getName()).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastPublished = System.currentTimeMillis();
+            job.completed();
+            providerService.invalidateIdentify();
+            log.info("Generated dump {} with {} records", job.getName(), job.getRecords());
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.error("Unable to generate dump " + job.getName(), e);
+            job.failed(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+            if (writer != null) {
+                writer.cancel(true);
+            }
+            tmp.delete();
+        } finally {
+            if (session != null) {
+                session.logout();
+            }
+        }
+    }
+
+    /**
+     * Hand a record to the writer, failing if the writer stopped instead of waiting for it forever
+     */
+    private static void enqueue(BlockingQueue<OAIRecord> queue, OAIRecord record, Future<Void> writer)
+            throws IOException, InterruptedException {
+        while (!queue.offer(record, 1, TimeUnit.SECONDS)) {
+            if (writer.isDone()) {
+                throw new IOException("The dump writer stopped unexpectedly");
+            }
+        }
+    }
+
+    private void writeXml(DumpJob job, URI endpoint, Iterator<OAIRecord> records, OutputStream out)
+            throws IOException {
+        final RequestType req = new RequestType();
+        req.setVerb(VerbType.LIST_RECORDS);
+        req.setMetadataPrefix(job.getMetadataPrefix());
+        req.setSet(job.getSet());
+        req.setValue(endpoint.toString());
+        new RecordStreamingOutput(providerService.getJaxbPool(), req, records).write(out);
+    }
+
+    private static void writeJson(Iterator<OAIRecord> records, OutputStream out) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        while (records.hasNext()) {
+            final OAIRecord record = records.next();
+            final HeaderType header = record.getHeader();
+            line.setLength(0);
+            line.append('{');
+            appendJson(line, "identifier", header.getIdentifier()).append(',');
+            appendJson(line, "datestamp", header.getDatestamp()).append(",\"setSpec\":[");
+            for (int i = 0; i < header.getSetSpec().size(); i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                appendJsonString(line, header.getSetSpec().get(i));
+            }
+            line.append("],");
+            appendJson(line, "record", UTF8.decode(record.getFragment().duplicate()).toString());
+            line.append("}\n");
+            out.write(line.toString().getBytes(UTF8));
+        }
+    }
+
+    static StringBuilder appendJson(StringBuilder json, String key, String value) {
+        appendJsonString(json, key).append(':');
+        if (value == null) {
+            return json.append("null");
+        }
+        return appendJsonString(json, value);
+    }
+
+    static StringBuilder appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                json.append("\\\"");
+                break;
+            case '\\':
+                json.append("\\\\");
+                break;
+            case '\n':
+                json.append("\\n");
+                break;
+            case '\r':
+                json.append("\\r");
+                break;
+            case '\t':
+                json.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Takes the records from the queue until the end marker, counting the records and bytes written
+     */
+    private static class QueueIterator implements Iterator<OAIRecord> {
+
+        private final BlockingQueue<OAIRecord> queue;
+
+        private final DumpJob job;
+
+        private final CountingOutputStream counting;
+
+        private OAIRecord next;
+
+        private QueueIterator(BlockingQueue<OAIRecord> queue, DumpJob job, CountingOutputStream counting) {
+            this.queue = queue;
+            this.job = job;
+            this.counting = counting;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RepositoryRuntimeException("Interrupted while writing the dump", e);
+                }
+            }
+            return next != END;
+        }
+
+        @Override
+        public OAIRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final OAIRecord record = next;
+            next = null;
+            job.recordWritten();
+            job.bytesWritten(counting.getByteCount());
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of a dump of all the records of a metadata format into a file
+ */
+public class DumpJob {
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    private final String name;
+
+    private final String metadataPrefix;
+
+    private final String set;
+
+    private final DumpGenerator.Format format;
+
+    private volatile State state = State.QUEUED;
+
+    private final AtomicLong records = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private volatile long started;
+
+    private volatile long finished;
+
+    private volatile String error;
+
+    DumpJob(String name, String metadataPrefix, String set, DumpGenerator.Format format) {
+        this.name = name;
+        this.metadataPrefix = metadataPrefix;
+        this.set = set;
+        this.format = format;
+    }
+
+    /**
+     * The name of the dump file, which is also the last segment of its URL
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getMetadataPrefix() {
+        return metadataPrefix;
+    }
+
+    public String getSet() {
+        return set;
+    }
+
+    public DumpGenerator.Format getFormat() {
+        return format;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * The number of records written so far
+     */
+    public long getRecords() {
+        return records.get();
+    }
+
+    /**
+     * The number of compressed bytes written so far
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getFinished() {
+        return finished;
+    }
+
+    /**
+     * The message of the error the job failed with, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    void started() {
+        this.started = System.currentTimeMillis();
+        this.state = State.RUNNING;
+    }
+
+    void recordWritten() {
+        records.incrementAndGet();
+    }
+
+    void bytesWritten(long count) {
+        bytes.set(count);
+    }
+
+    void completed() {
+        this.finished = System.currentTimeMillis();
+        this.state = State.COMPLETED;
+    }
+
+    void failed(String error) {
+        this.finished = System.currentTimeMillis();
+        this.error = error;
+        this.state = State.FAILED;
+    }
+
+    public boolean isDone() {
+        return state == State.COMPLETED || state == State.FAILED;
+    }
+
+    /**
+     * Render the progress of the job as a JSON object
+     */
+    public String toJson() {
+        final StringBuilder json = new StringBuilder("{");
+        DumpGenerator.appendJson(json, "name", name).append(',');
+        DumpGenerator.appendJson(json, "metadataPrefix", metadataPrefix).append(',');
+        DumpGenerator.appendJson(json, "set", set).append(',');
+        DumpGenerator.appendJson(json, "format", format.name().toLowerCase()).append(',');
+        DumpGenerator.appendJson(json, "state", state.name()).append(',');
+        json.append("\"records\":").append(records.get()).append(',');
+        json.append("\"bytes\":").append(bytes.get()).append(',');
+        json.append("\"started\":").append(started).append(',');
+        json.append("\"finished\":").append(finished).append(',');
+        DumpGenerator.appendJson(json, "error", error);
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,135 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of the metadata formats available for an object, keyed by the path of the object. The formats
+ * are bits of a mask, numbered by the position of the format in the configuration, which is why the provider service
+ * rejects configurations of more than 64 formats. An entry records which formats are known to be available or not,
+ * since list requests only reveal the availability of the format they list, and is valid as long as the last
+ * modification date of the object is unchanged.
+ */
+public class FormatCache {
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public FormatCache(final int maxSize) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Look up the formats of an object, returns null and counts a miss if the object has no entry or has been
+     * modified since
+     */
+    public Entry get(String path, long lastModified) {
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(path);
+        }
+        if (entry == null || entry.lastModified != lastModified) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Record the availability of formats for an object, merging it with the entry of the same modification date
+     *
+     * @param known the formats whose availability has been checked
+     * @param available the formats which are available, a subset of the known formats
+     */
+    public void put(String path, long lastModified, long known, long available) {
+        synchronized (entries) {
+            final Entry existing = entries.get(path);
+            if (existing != null && existing.lastModified == lastModified) {
+                if ((existing.known & known) == known) {
+                    return;
+                }
+                known |= existing.known;
+                available |= existing.available;
+            }
+            entries.put(path, new Entry(lastModified, known, available));
+        }
+    }
+
+    public void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The formats known for an object at a modification date
+     */
+    public static class Entry {
+
+        private final long lastModified;
+
+        private final long known;
+
+        private final long available;
+
+        private Entry(long lastModified, long known, long available) {
+            this.lastModified = lastModified;
+            this.known = known;
+            this.available = available;
+        }
+
+        /**
+         * Whether the availability of all the given formats is known
+         */
+        public boolean isKnown(long formats) {
+            return (known & formats) == formats;
+        }
+
+        public long getAvailable() {
+            return available;
+        }
+    }
+}
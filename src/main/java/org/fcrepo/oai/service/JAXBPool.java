@@ -0,0 +1,207 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import org.openarchives.oai._2.IdentifyType;
+import org.openarchives.oai._2.OAIPMHtype;
+import org.openarchives.oai._2.SetType;
+
+/**
+ * A bounded pool of JAXB marshallers and unmarshallers sharing a single {@link JAXBContext}. Marshallers and
+ * unmarshallers are not thread safe, so each one is only ever handed out to a single thread at a time.
+ * Marshallers are created as fragment marshallers using UTF-8 encoding.
+ */
+public class JAXBPool {
+
+    private final JAXBContext context;
+
+    private final Pool<Marshaller> marshallers;
+
+    private final Pool<Unmarshaller> unmarshallers;
+
+    private long maxWait = 5000;
+
+    public JAXBPool(int poolSize) throws JAXBException {
+        this.context = JAXBContext.newInstance(OAIPMHtype.class, IdentifyType.class, SetType.class);
+        this.marshallers = new Pool<Marshaller>(poolSize) {
+
+            @Override
+            protected Marshaller create() throws JAXBException {
+                final Marshaller marshaller = context.createMarshaller();
+                marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+                marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+                return marshaller;
+            }
+        };
+        this.unmarshallers = new Pool<Unmarshaller>(poolSize) {
+
+            @Override
+            protected Unmarshaller create() throws JAXBException {
+                return context.createUnmarshaller();
+            }
+        };
+    }
+
+    /**
+     * Set the maximum time in milliseconds to wait for a marshaller or unmarshaller to become available
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    public JAXBContext getContext() {
+        return context;
+    }
+
+    public Marshaller borrowMarshaller() throws JAXBException {
+        return marshallers.borrow(maxWait);
+    }
+
+    public void returnMarshaller(Marshaller marshaller) {
+        marshallers.release(marshaller);
+    }
+
+    public Unmarshaller borrowUnmarshaller() throws JAXBException {
+        return unmarshallers.borrow(maxWait);
+    }
+
+    public void returnUnmarshaller(Unmarshaller unmarshaller) {
+        unmarshallers.release(unmarshaller);
+    }
+
+    public int getPoolSize() {
+        return marshallers.size;
+    }
+
+    public int getIdleMarshallers() {
+        return marshallers.idle.size();
+    }
+
+    public int getIdleUnmarshallers() {
+        return unmarshallers.idle.size();
+    }
+
+    public long getBorrowCount() {
+        return marshallers.borrowed.get() + unmarshallers.borrowed.get();
+    }
+
+    /**
+     * The number of borrow requests which had to wait for an instance to be returned to the pool
+     */
+    public long getWaitCount() {
+        return marshallers.waits.get() + unmarshallers.waits.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(marshallers.waitNanos.get() + unmarshallers.waitNanos.get());
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(marshallers.maxWaitNanos.get(),
+                unmarshallers.maxWaitNanos.get()));
+    }
+
+    public long getTimeoutCount() {
+        return marshallers.timeouts.get() + unmarshallers.timeouts.get();
+    }
+
+    private abstract static class Pool<T> {
+
+        private final int size;
+
+        private final Semaphore permits;
+
+        private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+
+        private final AtomicLong borrowed = new AtomicLong();
+
+        private final AtomicLong waits = new AtomicLong();
+
+        private final AtomicLong timeouts = new AtomicLong();
+
+        private final AtomicLong waitNanos = new AtomicLong();
+
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private Pool(int size) {
+            this.size = size;
+            this.permits = new Semaphore(size, true);
+        }
+
+        protected abstract T create() throws JAXBException;
+
+        private T borrow(long maxWait) throws JAXBException {
+            borrowed.incrementAndGet();
+            if (!permits.tryAcquire()) {
+                waits.incrementAndGet();
+                final long start = System.nanoTime();
+                boolean acquired = false;
+                try {
+                    acquired = permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    recordWait(System.nanoTime() - start);
+                }
+                if (!acquired) {
+                    timeouts.incrementAndGet();
+                    throw new JAXBException("Timed out waiting for a pooled JAXB instance");
+                }
+            }
+            final T instance = idle.poll();
+            if (instance != null) {
+                return instance;
+            }
+            try {
+                return create();
+            } catch (JAXBException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        private void release(T instance) {
+            if (instance != null) {
+                idle.offer(instance);
+                permits.release();
+            }
+        }
+
+        private void recordWait(long nanos) {
+            waitNanos.addAndGet(nanos);
+            long max = maxWaitNanos.get();
+            while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+                max = maxWaitNanos.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openarchives.oai._2.VerbType;
+
+/**
+ * Request metrics of the OAI-PMH endpoint by verb: the number of requests, errors and exceptions, a histogram of
+ * the latencies, the number of records per list page, the response bytes and the number of repository calls of
+ * each kind, as well as the hits and misses of the lookups in the caches of the provider. A request is bound to the thread handling it from its start until its response has been written, so
+ * that the repository calls made on that thread are attributed to its verb; calls made by background threads are
+ * counted under the verb <code>background</code>.
+ * <p>
+ * The metrics are available through JMX once {@link #register()} has been called, and in the Prometheus text
+ * format from {@link #writePrometheus(Writer)}.
+ * </p>
+ */
+public class OAIMetrics implements OAIMetricsMXBean {
+
+    /**
+     * The kinds of repository calls counted
+     */
+    public enum RepositoryCall {
+        QUERY, OBJECT, DATASTREAM, PROPERTIES, BINARY;
+
+        private String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final String OTHER = "other";
+
+    private static final String BACKGROUND = "background";
+
+    /* the upper bounds of the latency buckets in seconds */
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private final ConcurrentMap<String, VerbMetrics> verbs = new ConcurrentHashMap<>();
+
+    private final AtomicLongArray backgroundCalls = new AtomicLongArray(RepositoryCall.values().length);
+
+    private final ThreadLocal<Request> current = new ThreadLocal<>();
+
+    private final ConcurrentMap<String, AtomicLong> cacheLookups = new ConcurrentHashMap<>();
+
+    private String objectName = "org.fcrepo.oai:type=OAIMetrics";
+
+    public void setObjectName(String objectName) {
+        this.objectName = objectName;
+    }
+
+    /**
+     * Register the metrics with the platform MBean server
+     */
+    public void register() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(objectName);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    public void unregister() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(objectName);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    /**
+     * Start a request and bind it to the current thread
+     *
+     * @param verb the verb argument of the request, unknown verbs are counted as <code>other</code>
+     */
+    public Request start(String verb) {
+        final Request request = new Request(verbMetrics(normalize(verb)));
+        current.set(request);
+        return request;
+    }
+
+    /**
+     * The request bound to the current thread, or null
+     */
+    public Request current() {
+        return current.get();
+    }
+
+    /**
+     * Count a repository call, attributing it to the request bound to the current thread
+     */
+    public void count(RepositoryCall call) {
+        final Request request = current.get();
+        if (request != null) {
+            request.calls[call.ordinal()]++;
+        } else {
+            backgroundCalls.incrementAndGet(call.ordinal());
+        }
+    }
+
+    /**
+     * Count a lookup in a cache
+     *
+     * @param cache the name of the cache
+     * @param hit whether the value has been found in the cache
+     */
+    public void countCacheLookup(String cache, boolean hit) {
+        final String key = cache + (hit ? " hit" : " miss");
+        AtomicLong count = cacheLookups.get(key);
+        if (count == null) {
+            final AtomicLong created = new AtomicLong();
+            count = cacheLookups.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Record the number of records or headers of a list page
+     */
+    public void recordPage(VerbType verb, int records) {
+        final VerbMetrics metrics = verbMetrics(verb.value());
+        metrics.pages.incrementAndGet();
+        metrics.pageRecords.addAndGet(records);
+    }
+
+    private static String normalize(String verb) {
+        for (VerbType type : VerbType.values()) {
+            if (type.value().equals(verb)) {
+                return verb;
+            }
+        }
+        return OTHER;
+    }
+
+    private VerbMetrics verbMetrics(String verb) {
+        VerbMetrics metrics = verbs.get(verb);
+        if (metrics == null) {
+            final VerbMetrics created = new VerbMetrics();
+            metrics = verbs.putIfAbsent(verb, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    private Map<String, VerbMetrics> sortedVerbs() {
+        return new TreeMap<>(verbs);
+    }
+
+    @Override
+    public Map<String, Long> getRequests() {
+        final Map<String, Long> requests = new TreeMap<>();
+        for (Map.Entry<String, VerbMetrics> verb : verbs.entrySet()) {
+            requests.put(verb.getKey(), verb.getValue().requests.get());
+        }
+        return requests;
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        final Map<String, Long> errors = new TreeMap<>();
+        for (Map.Entry<String, VerbMetrics> verb : verbs.entrySet()) {
+            for (Map.Entry<String, AtomicLong> code : verb.getValue().errors.entrySet()) {
+                errors.put(verb.getKey() + " " + code.getKey(), code.getValue().get());
+            }
+        }
+        return errors;
+    }
+
+    @Override
+    public Map<String, Long> getExceptions() {
+        final Map<String, Long> exceptions = new TreeMap<>();
+        for (Map.Entry<String, VerbMetrics> verb : verbs.entrySet()) {
+            exceptions.put(verb.getKey(), verb.getValue().exceptions.get());
+        }
+        return exceptions;
+    }
+
+    @Override
+    public Map<String, Double> getMeanLatencyMillis() {
+        final Map<String, Double> latencies = new TreeMap<>();
+        for (Map.Entry<String, VerbMetrics> verb : verbs.entrySet()) {
+            final long count = verb.getValue().latencies.get(LATENCY_BUCKETS.length);
+            latencies.put(verb.getKey(), count == 0 ? 0d :
+                    verb.getValue().latencyNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1) / count);
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Double> getMeanPageRecords() {
+        final Map<String, Double> records = new TreeMap<>();
+        for (Map.Entry<String, VerbMetrics> verb : verbs.entrySet()) {
+            final long pages = verb.getValue().pages.get();
+            if (pages > 0) {
+                records.put(verb.getKey(), verb.getValue().pageRecords.get() / (double) pages);
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public Map<String, Long> getResponseBytes() {
+        final Map<String, Long> bytes = new TreeMap<>();
+        for (Map.Entry<String, VerbMetrics> verb : verbs.entrySet()) {
+            bytes.put(verb.getKey(), verb.getValue().bytes.get());
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String, Long> getRepositoryCalls() {
+        final Map<String, Long> calls = new TreeMap<>();
+        for (Map.Entry<String, VerbMetrics> verb : verbs.entrySet()) {
+            for (RepositoryCall call : RepositoryCall.values()) {
+                calls.put(verb.getKey() + " " + call.label(), verb.getValue().calls.get(call.ordinal()));
+            }
+        }
+        for (RepositoryCall call : RepositoryCall.values()) {
+            calls.put(BACKGROUND + " " + call.label(), backgroundCalls.get(call.ordinal()));
+        }
+        return calls;
+    }
+
+    @Override
+    public Map<String, Long> getCacheLookups() {
+        final Map<String, Long> lookups = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> lookup : cacheLookups.entrySet()) {
+            lookups.put(lookup.getKey(), lookup.getValue().get());
+        }
+        return lookups;
+    }
+
+    /**
+     * Write the metrics in the Prometheus text exposition format
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        final Map<String, VerbMetrics> sorted = sortedVerbs();
+        header(writer, "oai_requests_total", "counter", "OAI-PMH requests by verb");
+        for (Map.Entry<String, VerbMetrics> verb : sorted.entrySet()) {
+            sample(writer, "oai_requests_total", verb.getKey(), null, null, verb.getValue().requests.get());
+        }
+        header(writer, "oai_errors_total", "counter", "OAI-PMH error responses by verb and error code");
+        for (Map.Entry<String, VerbMetrics> verb : sorted.entrySet()) {
+            for (Map.Entry<String, AtomicLong> code : new TreeMap<>(verb.getValue().errors).entrySet()) {
+                sample(writer, "oai_errors_total", verb.getKey(), "code", code.getKey(), code.getValue().get());
+            }
+        }
+        header(writer, "oai_exceptions_total", "counter", "OAI-PMH requests failed with an exception by verb");
+        for (Map.Entry<String, VerbMetrics> verb : sorted.entrySet()) {
+            sample(writer, "oai_exceptions_total", verb.getKey(), null, null, verb.getValue().exceptions.get());
+        }
+        header(writer, "oai_request_duration_seconds", "histogram",
+                "Time from the start of a request until its response has been written");
+        for (Map.Entry<String, VerbMetrics> verb : sorted.entrySet()) {
+            final AtomicLongArray latencies = verb.getValue().latencies;
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += latencies.get(i);
+                sample(writer, "oai_request_duration_seconds_bucket", verb.getKey(), "le",
+                        Double.toString(LATENCY_BUCKETS[i]), cumulative);
+            }
+            final long count = latencies.get(LATENCY_BUCKETS.length);
+            sample(writer, "oai_request_duration_seconds_bucket", verb.getKey(), "le", "+Inf", count);
+            writer.write("oai_request_duration_seconds_sum{verb=\"" + verb.getKey() + "\"} " +
+                    verb.getValue().latencyNanos.get() / (double) TimeUnit.SECONDS.toNanos(1) + "\n");
+            sample(writer, "oai_request_duration_seconds_count", verb.getKey(), null, null, count);
+        }
+        header(writer, "oai_page_records", "summary", "Records or headers of list pages by verb");
+        for (Map.Entry<String, VerbMetrics> verb : sorted.entrySet()) {
+            if (verb.getValue().pages.get() > 0) {
+                sample(writer, "oai_page_records_sum", verb.getKey(), null, null,
+                        verb.getValue().pageRecords.get());
+                sample(writer, "oai_page_records_count", verb.getKey(), null, null, verb.getValue().pages.get());
+            }
+        }
+        header(writer, "oai_response_bytes_total", "counter", "Bytes of the responses as sent, by verb");
+        for (Map.Entry<String, VerbMetrics> verb : sorted.entrySet()) {
+            sample(writer, "oai_response_bytes_total", verb.getKey(), null, null, verb.getValue().bytes.get());
+        }
+        header(writer, "oai_repository_calls_total", "counter", "Repository calls by verb and kind of call");
+        for (Map.Entry<String, VerbMetrics> verb : sorted.entrySet()) {
+            for (RepositoryCall call : RepositoryCall.values()) {
+                sample(writer, "oai_repository_calls_total", verb.getKey(), "call", call.label(),
+                        verb.getValue().calls.get(call.ordinal()));
+            }
+        }
+        for (RepositoryCall call : RepositoryCall.values()) {
+            sample(writer, "oai_repository_calls_total", BACKGROUND, "call", call.label(),
+                    backgroundCalls.get(call.ordinal()));
+        }
+        header(writer, "oai_cache_lookups_total", "counter", "Cache lookups by cache and result");
+        for (Map.Entry<String, Long> lookup : getCacheLookups().entrySet()) {
+            final int space = lookup.getKey().lastIndexOf(' ');
+            writer.write("oai_cache_lookups_total{cache=\"" + lookup.getKey().substring(0, space) + "\",result=\"" +
+                    lookup.getKey().substring(space + 1) + "\"} " + lookup.getValue() + "\n");
+        }
+    }
+
+    private static void header(Writer writer, String name, String type, String help) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void sample(Writer writer, String name, String verb, String label, String value, long sample)
+            throws IOException {
+        writer.write(name + "{verb=\"" + verb + "\"" + (label == null ? "" : "," + label + "=\"" + value + "\"") +
+                "} " + sample + "\n");
+    }
+
+    private static class VerbMetrics {
+
+        private final AtomicLong requests = new AtomicLong();
+
+        private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        private final AtomicLong exceptions = new AtomicLong();
+
+        /* the counts of the latency buckets, followed by the total count */
+        private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+        private final AtomicLong latencyNanos = new AtomicLong();
+
+        private final AtomicLong pages = new AtomicLong();
+
+        private final AtomicLong pageRecords = new AtomicLong();
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicLongArray calls = new AtomicLongArray(RepositoryCall.values().length);
+
+        private void error(String code) {
+            AtomicLong count = errors.get(code);
+            if (count == null) {
+                final AtomicLong created = new AtomicLong();
+                count = errors.putIfAbsent(code, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * A request in progress. A request is handled by one thread at a time and is not thread safe.
+     */
+    public class Request {
+
+        private final VerbMetrics verb;
+
+        private final long start = System.nanoTime();
+
+        private final long[] calls = new long[RepositoryCall.values().length];
+
+        private long bytes;
+
+        private boolean finished;
+
+        private Request(VerbMetrics verb) {
+            this.verb = verb;
+        }
+
+        /**
+         * Count an OAI-PMH error of the response
+         */
+        public void error(String code) {
+            verb.error(code);
+        }
+
+        /**
+         * Count a request failed with an exception
+         */
+        public void exception() {
+            verb.exceptions.incrementAndGet();
+        }
+
+        public void addBytes(long count) {
+            bytes += count;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * Record the metrics of the request and unbind it from the current thread, further calls are ignored
+         */
+        public void finish() {
+            if (current.get() == this) {
+                current.remove();
+            }
+            if (finished) {
+                return;
+            }
+            finished = true;
+            final long nanos = System.nanoTime() - start;
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS.length && nanos > LATENCY_BUCKETS[bucket] * 1e9) {
+                bucket++;
+            }
+            if (bucket < LATENCY_BUCKETS.length) {
+                verb.latencies.incrementAndGet(bucket);
+            }
+            verb.latencies.incrementAndGet(LATENCY_BUCKETS.length);
+            verb.latencyNanos.addAndGet(nanos);
+            verb.requests.incrementAndGet();
+            verb.bytes.addAndGet(bytes);
+            for (int i = 0; i < calls.length; i++) {
+                verb.calls.addAndGet(i, calls[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link OAIMetrics}. The maps are keyed by the verb, or by the verb and the error code
+ * or kind of repository call separated by a space. The cache lookups are keyed by the name of the cache and the
+ * result of the lookup, <code>hit</code> or <code>miss</code>, separated by a space.
+ */
+public interface OAIMetricsMXBean {
+
+    Map<String, Long> getRequests();
+
+    Map<String, Long> getErrors();
+
+    Map<String, Long> getExceptions();
+
+    Map<String, Double> getMeanLatencyMillis();
+
+    Map<String, Double> getMeanPageRecords();
+
+    Map<String, Long> getResponseBytes();
+
+    Map<String, Long> getRepositoryCalls();
+
+    Map<String, Long> getCacheLookups();
+}
@@ -16,50 +16,88 @@
 
 package org.fcrepo.oai.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jcr.Credentials;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.namespace.QName;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
 import org.fcrepo.http.api.FedoraNodes;
 import org.fcrepo.http.commons.api.rdf.HttpIdentifierTranslator;
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.Datastream;
 import org.fcrepo.kernel.FedoraObject;
 import org.fcrepo.kernel.RdfLexicon;
+import org.fcrepo.kernel.exception.RepositoryRuntimeException;
 import org.fcrepo.kernel.impl.rdf.impl.DefaultIdentifierTranslator;
 import org.fcrepo.kernel.rdf.IdentifierTranslator;
 import org.fcrepo.kernel.services.DatastreamService;
 import org.fcrepo.kernel.services.NodeService;
 import org.fcrepo.kernel.services.ObjectService;
 import org.fcrepo.oai.MetadataFormat;
+import org.fcrepo.oai.OAIRecord;
 import org.fcrepo.oai.ResumptionToken;
+import org.fcrepo.oai.http.CompressionInterceptor;
 import org.fcrepo.oai.http.OAIWebResource;
+import org.fcrepo.oai.index.DatestampIndex;
+import org.fcrepo.oai.index.IndexEntry;
+import org.fcrepo.oai.index.SetIndex;
+import org.fcrepo.oai.service.OAIMetrics.RepositoryCall;
+import org.fcrepo.oai.session.HarvestSession;
+import org.fcrepo.oai.session.HarvestSessionStore;
+import org.fcrepo.oai.session.MemoryHarvestSessionStore;
+import org.fcrepo.oai.store.RecordStore;
+import org.fcrepo.oai.http.RecordStreamingOutput;
+import org.fcrepo.oai.http.SerializedContentOutput;
 import org.fcrepo.transform.sparql.JQLConverter;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 import org.openarchives.oai._2.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.w3c.dom.Element;
 
 import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
@@ -68,16 +106,31 @@ import org.springframework.stereotype.Component;
 
 public class OAIProviderService {
 
+    private static final Logger log = LoggerFactory.getLogger(OAIProviderService.class);
+
     private static final ObjectFactory oaiFactory = new ObjectFactory();
 
+    private static final String OAI_NS = "http://www.openarchives.org/OAI/2.0/";
+
+    /* the base URI of the queries refreshing the datestamp index, which are not bound to a request */
+    private static final URI INDEX_BASE_URI = URI.create("http://localhost/rest/");
+
+    private static final String SET_TRIE_CACHE = "setTrie";
+
     private final DatatypeFactory dataFactory;
 
-    private final Unmarshaller unmarshaller;
+    private JAXBPool jaxbPool;
+
+    private volatile CachedFragment identifyFragment;
+
+    private volatile CachedFragment metadataFormatsFragment;
 
     private final Model rdfModel = ModelFactory.createDefaultModel();
 
     private String identifyPath;
 
+    private DumpGenerator dumpGenerator;
+
     private String setsRootPath;
 
     private String propertyHasSets;
@@ -94,8 +147,99 @@ public class OAIProviderService {
 
     private DateTimeFormatter dateFormat = ISODateTimeFormat.dateTimeNoMillis().withZone(DateTimeZone.UTC);
 
+    private final DateTimeFormatter preciseDateFormat = ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC);
+
+    private final DateTimeFormatter dateParser = ISODateTimeFormat.dateTimeParser().withZone(DateTimeZone.UTC);
+
     private int maxListSize;
 
+    private int maxListIdentifiersSize;
+
+    private long maxListBytes;
+
+    private boolean cursorPagination;
+
+    private byte[] resumptionTokenSecret;
+
+    private long resumptionTokenTimeToLive;
+
+    private ResumptionTokenCodec resumptionTokenCodec = new ResumptionTokenCodec(0);
+
+    private HarvestSessionStore harvestSessionStore;
+
+    private final SecureRandom sessionIds = new SecureRandom();
+
+    private volatile CachedSetTrie setTrie;
+
+    private final AtomicLong setTrieGeneration = new AtomicLong();
+
+    private DatestampIndex datestampIndex;
+
+    private long datestampIndexRefreshInterval;
+
+    private long datestampIndexOverlap = 60000;
+
+    private int datestampIndexPageSize = 1000;
+
+    private long datestampIndexReconcileInterval = 3600000;
+
+    private volatile long lastIndexRefresh;
+
+    private volatile long lastIndexReconcile;
+
+    private final AtomicBoolean indexRefreshing = new AtomicBoolean();
+
+    private ExecutorService datestampIndexExecutor;
+
+    private volatile SetIndex setIndex;
+
+    private ExecutorService setIndexExecutor;
+
+    private final AtomicBoolean setIndexBuilding = new AtomicBoolean();
+
+    private int setIndexRebuildThreshold = 1000;
+
+    private RecordStore recordStore;
+
+    private PageCache pageCache;
+
+    private long pageCacheSize;
+
+    private Crosswalk crosswalk = new Crosswalk(16777216);
+
+    private FormatCache formatCache = new FormatCache(10000);
+
+    private OAIMetrics metrics = new OAIMetrics();
+
+    /* the bit of every metadata format in the masks of the format cache */
+    private Map<String, Long> formatBits = Collections.emptyMap();
+
+    private long allFormatBits;
+
+    private long pageCacheTimeToLive = 60000;
+
+    private boolean compressionEnabled = true;
+
+    private int compressionLevel = 6;
+
+    private int compressionThreshold = 1024;
+
+    private int hydrationParallelism = 1;
+
+    private ExecutorService hydrationExecutor;
+
+    private int prefetchParallelism;
+
+    private long prefetchBufferSize = 16 * 1024 * 1024;
+
+    private long prefetchTimeToLive = 30000;
+
+    private ThreadPoolExecutor prefetchExecutor;
+
+    private PrefetchBuffer prefetchBuffer;
+
+    private boolean accessRestricted = true;
+
     @Autowired
     private DatastreamService datastreamService;
 
@@ -124,6 +268,435 @@ public class OAIProviderService {
         this.maxListSize = maxListSize;
     }
 
+    /**
+     * The maximum number of headers in a ListIdentifiers page, defaults to the maximum list size if not set
+     */
+    public void setMaxListIdentifiersSize(int maxListIdentifiersSize) {
+        this.maxListIdentifiersSize = maxListIdentifiersSize;
+    }
+
+    /**
+     * The number of bytes of serialized records a ListRecords page is filled up to, 0 for no limit. A page holds at
+     * least one record and at most the maximum list size.
+     */
+    public void setMaxListBytes(long maxListBytes) {
+        this.maxListBytes = maxListBytes;
+    }
+
+    public void setCursorPagination(boolean cursorPagination) {
+        this.cursorPagination = cursorPagination;
+    }
+
+    /**
+     * The secret resumption tokens are signed with. If no secret is set, a random one is generated, and tokens are
+     * only valid until the provider is restarted and on the instance which issued them.
+     */
+    public void setResumptionTokenSecret(String resumptionTokenSecret) {
+        this.resumptionTokenSecret = resumptionTokenSecret.getBytes(Charset.forName("UTF-8"));
+        this.resumptionTokenCodec = new ResumptionTokenCodec(this.resumptionTokenSecret, resumptionTokenTimeToLive);
+    }
+
+    /**
+     * Issue short resumption tokens referencing a harvest session stored by the provider instead of tokens holding
+     * the state of the harvest. Sessions are kept in memory unless a session store has been set.
+     */
+    public void setStatefulResumption(boolean statefulResumption) {
+        if (!statefulResumption) {
+            this.harvestSessionStore = null;
+        } else if (this.harvestSessionStore == null) {
+            this.harvestSessionStore = new MemoryHarvestSessionStore();
+        }
+    }
+
+    public void setHarvestSessionStore(HarvestSessionStore harvestSessionStore) {
+        this.harvestSessionStore = harvestSessionStore;
+    }
+
+    public HarvestSessionStore getHarvestSessionStore() {
+        return harvestSessionStore;
+    }
+
+    /**
+     * The number of milliseconds a resumption token is valid after it has been issued, 0 if tokens do not expire
+     */
+    public void setResumptionTokenTimeToLive(long resumptionTokenTimeToLive) {
+        this.resumptionTokenTimeToLive = resumptionTokenTimeToLive;
+        this.resumptionTokenCodec = resumptionTokenSecret != null ?
+                new ResumptionTokenCodec(resumptionTokenSecret, resumptionTokenTimeToLive) :
+                new ResumptionTokenCodec(resumptionTokenTimeToLive);
+    }
+
+    public void setJaxbPoolSize(int jaxbPoolSize) throws JAXBException {
+        final JAXBPool pool = new JAXBPool(jaxbPoolSize);
+        pool.setMaxWait(this.jaxbPool.getMaxWait());
+        this.jaxbPool = pool;
+    }
+
+    public void setJaxbPoolMaxWait(long jaxbPoolMaxWait) {
+        this.jaxbPool.setMaxWait(jaxbPoolMaxWait);
+    }
+
+    public JAXBPool getJaxbPool() {
+        return jaxbPool;
+    }
+
+    /**
+     * The datestamp index answering list requests. The index is refreshed in the background, so the first list
+     * requests are answered by querying the repository until the index has been populated.
+     */
+    public synchronized void setDatestampIndex(DatestampIndex datestampIndex) {
+        if (this.datestampIndexExecutor != null) {
+            this.datestampIndexExecutor.shutdownNow();
+            this.datestampIndexExecutor = null;
+        }
+        this.datestampIndex = datestampIndex;
+        if (datestampIndex != null) {
+            this.datestampIndexExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "oai-datestamp-index");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public DatestampIndex getDatestampIndex() {
+        return datestampIndex;
+    }
+
+    /**
+     * The minimum time in milliseconds between two refreshes of the datestamp index
+     */
+    public void setDatestampIndexRefreshInterval(long datestampIndexRefreshInterval) {
+        this.datestampIndexRefreshInterval = datestampIndexRefreshInterval;
+    }
+
+    /**
+     * The time in milliseconds a refresh of the datestamp index reaches back before the watermark, in order to pick
+     * up modifications which have been committed late
+     */
+    public void setDatestampIndexOverlap(long datestampIndexOverlap) {
+        this.datestampIndexOverlap = datestampIndexOverlap;
+    }
+
+    /**
+     * The number of objects fetched by each query of a datestamp index refresh, independent of the size of list
+     * pages
+     */
+    public void setDatestampIndexPageSize(int datestampIndexPageSize) {
+        this.datestampIndexPageSize = datestampIndexPageSize;
+    }
+
+    /**
+     * The minimum time in milliseconds between two checks of the datestamp index for objects and metadata datastreams
+     * which have been deleted from the repository. Every check looks up all the entries of the index.
+     */
+    public void setDatestampIndexReconcileInterval(long datestampIndexReconcileInterval) {
+        this.datestampIndexReconcileInterval = datestampIndexReconcileInterval;
+    }
+
+    /**
+     * Answer set restricted list requests from bitmaps of the set members built from the datestamp index. Entries
+     * modified since the bitmaps have been built are patched in by every request, and the bitmaps are rebuilt in the
+     * background once there are {@link #setSetIndexRebuildThreshold(int)} of them. Requests only scan the datestamp
+     * index until the bitmaps have been built for the first time, or if the modifications have outgrown the journal
+     * of the datestamp index.
+     */
+    public synchronized void setSetIndexEnabled(boolean setIndexEnabled) {
+        if (this.setIndexExecutor != null) {
+            this.setIndexExecutor.shutdownNow();
+            this.setIndexExecutor = null;
+        }
+        this.setIndex = null;
+        if (setIndexEnabled) {
+            this.setIndexExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "oai-set-index");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * The number of entries modified since the set index has been built at which it is rebuilt
+     */
+    public void setSetIndexRebuildThreshold(int setIndexRebuildThreshold) {
+        this.setIndexRebuildThreshold = setIndexRebuildThreshold;
+    }
+
+    /**
+     * The set index built last, which may be outdated, or null if it has not been built
+     */
+    public SetIndex getSetIndex() {
+        return setIndex;
+    }
+
+    /**
+     * Rebuild the set index from the datestamp index on the calling thread
+     */
+    public SetIndex rebuildSetIndex() {
+        if (datestampIndex == null || !datestampIndex.isOpen()) {
+            throw new IllegalStateException("The set index requires an open datestamp index");
+        }
+        final SetIndex index = SetIndex.build(datestampIndex);
+        this.setIndex = index;
+        log.debug("Built set index of {} records and {} sets using {} bytes in {} ms", index.size(),
+                index.getSetCount(), index.getMemoryUsage(), index.getBuildMillis());
+        return index;
+    }
+
+    /**
+     * Get the set index, starting to rebuild it in the background once too many entries have been modified since it
+     * has been built
+     *
+     * @return the set index, or null if it is disabled, has not been built yet or can not be patched any more
+     */
+    private SetIndex currentSetIndex() {
+        final ExecutorService executor = this.setIndexExecutor;
+        if (executor == null || datestampIndex == null || !datestampIndex.isOpen()) {
+            return null;
+        }
+        final SetIndex index = this.setIndex;
+        final int pending = index == null ? -1 : index.getPendingChanges();
+        if (pending >= 0 && pending < setIndexRebuildThreshold) {
+            return index;
+        }
+        if (setIndexBuilding.compareAndSet(false, true)) {
+            try {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            rebuildSetIndex();
+                        } catch (RuntimeException e) {
+                            log.error("Unable to build the set index", e);
+                        } finally {
+                            setIndexBuilding.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                setIndexBuilding.set(false);
+            }
+        }
+        /* the old index keeps being patched until the new one is ready */
+        return pending >= 0 ? index : null;
+    }
+
+    public void setRecordStore(RecordStore recordStore) {
+        this.recordStore = recordStore;
+    }
+
+    public RecordStore getRecordStore() {
+        return recordStore;
+    }
+
+    /**
+     * The maximum number of bytes held by the page cache, 0 disables the cache
+     */
+    public void setPageCacheSize(long pageCacheSize) {
+        this.pageCacheSize = pageCacheSize;
+        this.pageCache = pageCacheSize > 0 ? new PageCache(pageCacheSize, pageCacheTimeToLive) : null;
+    }
+
+    /**
+     * The time in milliseconds a response is served from the page cache
+     */
+    public void setPageCacheTimeToLive(long pageCacheTimeToLive) {
+        this.pageCacheTimeToLive = pageCacheTimeToLive;
+        setPageCacheSize(pageCacheSize);
+    }
+
+    /**
+     * The cache of complete responses, or null if the page cache is disabled
+     */
+    public PageCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * The number of bytes of records of derived metadata formats which are kept in memory
+     */
+    public void setCrosswalkCacheSize(long crosswalkCacheSize) {
+        this.crosswalk = new Crosswalk(crosswalkCacheSize);
+    }
+
+    public Crosswalk getCrosswalk() {
+        return crosswalk;
+    }
+
+    /**
+     * The number of objects whose available metadata formats are kept in memory, 0 disables the cache
+     */
+    public void setFormatCacheSize(int formatCacheSize) {
+        this.formatCache = formatCacheSize > 0 ? new FormatCache(formatCacheSize) : null;
+    }
+
+    public FormatCache getFormatCache() {
+        return formatCache;
+    }
+
+    public void setMetrics(OAIMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public OAIMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+        this.identifyFragment = null;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * The deflate compression level from 1 (fastest) to 9 (smallest)
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * The minimum size in bytes of a response to be compressed
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * The number of records of a list page which are fetched concurrently, 1 fetches them one after the other
+     */
+    public synchronized void setHydrationParallelism(int hydrationParallelism) {
+        if (this.hydrationExecutor != null) {
+            this.hydrationExecutor.shutdown();
+        }
+        this.hydrationParallelism = hydrationParallelism;
+        this.hydrationExecutor = hydrationParallelism > 1 ?
+                Executors.newFixedThreadPool(hydrationParallelism, new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread thread = new Thread(r, "oai-hydration-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }) : null;
+    }
+
+    public int getHydrationParallelism() {
+        return hydrationParallelism;
+    }
+
+    /**
+     * The number of threads computing the page following a ListRecords page in the background, 0 disables
+     * prefetching. At most as many pages as threads are queued, further prefetches are skipped.
+     */
+    public synchronized void setPrefetchParallelism(int prefetchParallelism) {
+        if (this.prefetchExecutor != null) {
+            this.prefetchExecutor.shutdownNow();
+            this.prefetchExecutor = null;
+        }
+        this.prefetchParallelism = prefetchParallelism;
+        if (prefetchParallelism > 0) {
+            this.prefetchExecutor = new ThreadPoolExecutor(prefetchParallelism, prefetchParallelism, 0L,
+                    TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(prefetchParallelism),
+                    new ThreadFactory() {
+
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r, "oai-prefetch-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        setPrefetchBufferSize(prefetchBufferSize);
+    }
+
+    /**
+     * The maximum number of bytes held by prefetched pages
+     */
+    public synchronized void setPrefetchBufferSize(long prefetchBufferSize) {
+        this.prefetchBufferSize = prefetchBufferSize;
+        if (this.prefetchBuffer != null) {
+            this.prefetchBuffer.invalidate();
+        }
+        this.prefetchBuffer = prefetchParallelism > 0 ?
+                new PrefetchBuffer(prefetchBufferSize, prefetchTimeToLive) : null;
+    }
+
+    /**
+     * The time in milliseconds a prefetched page is kept for its resumption token to be redeemed
+     */
+    public synchronized void setPrefetchTimeToLive(long prefetchTimeToLive) {
+        this.prefetchTimeToLive = prefetchTimeToLive;
+        setPrefetchBufferSize(prefetchBufferSize);
+    }
+
+    /**
+     * Whether read access to the objects depends on the user, e.g. because an authorization module is installed.
+     * Prefetched pages are computed with an internal session and are handed to anyone presenting their token, so
+     * pages are only prefetched if access is not restricted.
+     */
+    public void setAccessRestricted(boolean accessRestricted) {
+        this.accessRestricted = accessRestricted;
+    }
+
+    public boolean isAccessRestricted() {
+        return accessRestricted;
+    }
+
+    /**
+     * The buffer of prefetched pages, or null if prefetching is disabled
+     */
+    public PrefetchBuffer getPrefetchBuffer() {
+        return prefetchBuffer;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (this.hydrationExecutor != null) {
+            this.hydrationExecutor.shutdownNow();
+            this.hydrationExecutor = null;
+        }
+        if (this.prefetchExecutor != null) {
+            this.prefetchExecutor.shutdownNow();
+            this.prefetchExecutor = null;
+        }
+        if (this.setIndexExecutor != null) {
+            this.setIndexExecutor.shutdownNow();
+            this.setIndexExecutor = null;
+        }
+        if (this.datestampIndexExecutor != null) {
+            this.datestampIndexExecutor.shutdownNow();
+            this.datestampIndexExecutor = null;
+        }
+    }
+
     public void setPropertyIsPartOfSet(String propertyIsPartOfSet) {
         this.propertyIsPartOfSet = propertyIsPartOfSet;
     }
@@ -140,6 +713,25 @@ public class OAIProviderService {
         this.identifyPath = identifyPath;
     }
 
+    /**
+     * The generator of the dumps advertised in the Identify response, or null if no dumps are generated
+     */
+    public void setDumpGenerator(DumpGenerator dumpGenerator) {
+        this.dumpGenerator = dumpGenerator;
+        this.identifyFragment = null;
+    }
+
+    public DumpGenerator getDumpGenerator() {
+        return dumpGenerator;
+    }
+
+    /**
+     * Drop the cached Identify element, e.g. after a dump has been published
+     */
+    void invalidateIdentify() {
+        this.identifyFragment = null;
+    }
+
 //    @PostConstruct
     public void init() throws RepositoryException {
         /* check if set root node exists */
@@ -152,28 +744,107 @@ public class OAIProviderService {
 
     public OAIProviderService() throws DatatypeConfigurationException, JAXBException {
         this.dataFactory = DatatypeFactory.newInstance();
-        this.unmarshaller =
-                JAXBContext.newInstance(OAIPMHtype.class, IdentifyType.class, SetType.class).createUnmarshaller();
+        this.jaxbPool = new JAXBPool(16);
+    }
+
+    /**
+     * Get the serialized Identify element. The element is cached until the last modification date of the
+     * identify datastream changes.
+     */
+    public CachedFragment identify(final Session session) throws RepositoryException, JAXBException {
+        final Datastream ds = identifyDatastream(session);
+        Date lastModified = ds.getLastModifiedDate();
+        if (dumpGenerator != null && lastModified != null && dumpGenerator.getLastPublished() > lastModified.getTime()) {
+            /* the description of the dumps changes when a dump is published */
+            lastModified = new Date(dumpGenerator.getLastPublished());
+        }
+        final CachedFragment cached = this.identifyFragment;
+        if (cached != null && cached.isCurrent(lastModified)) {
+            return cached;
+        }
+        final CachedFragment fragment = new CachedFragment(marshalFragment(new JAXBElement<IdentifyType>(
+                new QName(OAI_NS, "Identify"), IdentifyType.class, readIdentify(ds))),
+                lastModified != null ? lastModified : new Date());
+        this.identifyFragment = fragment;
+        return fragment;
+    }
+
+    /**
+     * Read the Identify element from the identify datastream, completed with the supported compressions and the
+     * description of the published dumps
+     */
+    IdentifyType readIdentify(final Session session) throws RepositoryException, JAXBException {
+        return readIdentify(identifyDatastream(session));
     }
 
-    public JAXBElement<OAIPMHtype> identify(final Session session, UriInfo uriInfo) throws RepositoryException,
-            JAXBException {
+    private Datastream identifyDatastream(final Session session) throws RepositoryException {
+        metrics.count(RepositoryCall.DATASTREAM);
         if (!this.datastreamService.exists(session, identifyPath)) {
             throw new RepositoryException("Identify response can not be found.");
         }
-        final Datastream ds = this.datastreamService.findOrCreateDatastream(session, identifyPath);
+        metrics.count(RepositoryCall.DATASTREAM);
+        return this.datastreamService.findOrCreateDatastream(session, identifyPath);
+    }
+
+    private IdentifyType readIdentify(final Datastream ds) throws RepositoryException, JAXBException {
+        metrics.count(RepositoryCall.BINARY);
         final InputStream data = ds.getBinary().getContent();
-        final IdentifyType id = this.unmarshaller.unmarshal(new StreamSource(data), IdentifyType.class).getValue();
+        final IdentifyType id;
+        final Unmarshaller unmarshaller = jaxbPool.borrowUnmarshaller();
+        try {
+            id = unmarshaller.unmarshal(new StreamSource(data), IdentifyType.class).getValue();
+        } finally {
+            jaxbPool.returnUnmarshaller(unmarshaller);
+            IOUtils.closeQuietly(data);
+        }
+        if (compressionEnabled) {
+            /* advertise the content codings negotiated by the CompressionInterceptor */
+            for (String encoding : new String[] { CompressionInterceptor.GZIP, CompressionInterceptor.DEFLATE }) {
+                if (!id.getCompression().contains(encoding)) {
+                    id.getCompression().add(encoding);
+                }
+            }
+        }
+        if (dumpGenerator != null) {
+            try {
+                final Element dumps = dumpGenerator.describe(id.getBaseURL());
+                if (dumps != null) {
+                    final DescriptionType description = oaiFactory.createDescriptionType();
+                    description.setAny(dumps);
+                    id.getDescription().add(description);
+                }
+            } catch (ParserConfigurationException e) {
+                throw new RepositoryException("Unable to describe the dumps", e);
+            }
+        }
+        return id;
+    }
 
-        final RequestType req = oaiFactory.createRequestType();
-        req.setVerb(VerbType.IDENTIFY);
-        req.setValue(uriInfo.getRequestUri().toASCIIString());
+    /**
+     * Get the serialized ListMetadataFormats element listing all the configured metadata formats
+     */
+    public CachedFragment listMetadataFormats() throws JAXBException {
+        CachedFragment cached = this.metadataFormatsFragment;
+        if (cached == null) {
+            final ListMetadataFormatsType listMetadataFormats = oaiFactory.createListMetadataFormatsType();
+            listMetadataFormats.getMetadataFormat().addAll(listAvailableMetadataFormats());
+            cached = new CachedFragment(marshalFragment(new JAXBElement<ListMetadataFormatsType>(
+                    new QName(OAI_NS, "ListMetadataFormats"), ListMetadataFormatsType.class, listMetadataFormats)),
+                    new Date());
+            this.metadataFormatsFragment = cached;
+        }
+        return cached;
+    }
 
-        final OAIPMHtype oai = oaiFactory.createOAIPMHtype();
-        oai.setIdentify(id);
-        oai.setResponseDate(dataFactory.newXMLGregorianCalendar(new GregorianCalendar()));
-        oai.setRequest(req);
-        return oaiFactory.createOAIPMH(oai);
+    private <T> byte[] marshalFragment(JAXBElement<T> element) throws JAXBException {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final Marshaller marshaller = jaxbPool.borrowMarshaller();
+        try {
+            marshaller.marshal(element, sink);
+        } finally {
+            jaxbPool.returnMarshaller(marshaller);
+        }
+        return sink.toByteArray();
     }
 
     public JAXBElement<OAIPMHtype> listMetadataFormats(final Session session, final UriInfo uriInfo,
@@ -186,20 +857,34 @@ public class OAIProviderService {
             final String path = translator.getPathFromSubject(subject);
             if (path != null && !path.isEmpty()) {
                 /* generate metadata format response for a single pid */
+                metrics.count(RepositoryCall.OBJECT);
                 if (!this.objectService.exists(session, path)) {
                     return error(VerbType.LIST_METADATA_FORMATS, identifier, null, OAIPMHerrorcodeType.ID_DOES_NOT_EXIST,
                             "The object does not exist");
                 }
-                final FedoraObject obj = this.objectService.findOrCreateObject(session, "/" + identifier);
-                final Model model = obj.getPropertiesDataset(translator).getDefaultModel();
-                for (MetadataFormat mdf : metadataFormats.values()) {
-                    if (model.listObjectsOfProperty(rdfModel.createProperty(mdf.getPropertyName())).hasNext()) {
-                        listMetadataFormats.getMetadataFormat().add(mdf.asMetadataFormatType());
-                    } else {
-                        return error(VerbType.LIST_METADATA_FORMATS, identifier, null,
-                                OAIPMHerrorcodeType.NO_METADATA_FORMATS, "No metadata available");
+                metrics.count(RepositoryCall.OBJECT);
+                final FedoraObject obj = this.objectService.findOrCreateObject(session, path);
+                final long lastModified = obj.getLastModifiedDate().getTime();
+                final FormatCache.Entry cached = formatCache != null ? formatCache.get(path, lastModified) : null;
+                final long available;
+                if (cached != null && cached.isKnown(allFormatBits)) {
+                    available = cached.getAvailable();
+                } else {
+                    metrics.count(RepositoryCall.PROPERTIES);
+                    available = availableFormats(obj.getPropertiesDataset(translator).getDefaultModel(), subject);
+                    if (formatCache != null) {
+                        formatCache.put(path, lastModified, allFormatBits, available);
+                    }
+                }
+                for (Map.Entry<String, MetadataFormat> mdf : metadataFormats.entrySet()) {
+                    if ((available & formatBit(mdf.getKey())) != 0) {
+                        listMetadataFormats.getMetadataFormat().add(mdf.getValue().asMetadataFormatType());
                     }
                 }
+                if (listMetadataFormats.getMetadataFormat().isEmpty()) {
+                    return error(VerbType.LIST_METADATA_FORMATS, identifier, null,
+                            OAIPMHerrorcodeType.NO_METADATA_FORMATS, "No metadata available");
+                }
             }
         } else {
             /* generate a general metadata format response */
@@ -216,12 +901,30 @@ public class OAIProviderService {
         return oaiFactory.createOAIPMH(oai);
     }
 
-    private List<MetadataFormatType> listObjectMetadataFormats(final Session session, final FedoraObject obj) throws RepositoryException {
-        final List<MetadataFormatType> types = new ArrayList<>();
-        return types;
+    private long formatBit(String prefix) {
+        final Long bit = formatBits.get(prefix);
+        if (bit == null) {
+            throw new IllegalStateException("The metadata format " + prefix + " does not have a bit");
+        }
+        return bit;
+    }
+
+    /**
+     * Probe the properties of an object for the metadata formats it has a record of
+     *
+     * @return the bits of the available formats
+     */
+    private long availableFormats(Model model, Resource subject) {
+        long available = 0;
+        for (Map.Entry<String, MetadataFormat> mdf : metadataFormats.entrySet()) {
+            if (model.contains(subject, model.createProperty(mdf.getValue().getPropertyName()))) {
+                available |= formatBit(mdf.getKey());
+            }
+        }
+        return available;
     }
 
-    private List<MetadataFormatType> listAvailableMetadataFormats() {
+    List<MetadataFormatType> listAvailableMetadataFormats() {
         final List<MetadataFormatType> types = new ArrayList<>(metadataFormats.size());
         for (MetadataFormat mdf : metadataFormats.values()) {
             final MetadataFormatType mdft = oaiFactory.createMetadataFormatType();
@@ -234,10 +937,58 @@ public class OAIProviderService {
     }
 
     public void setMetadataFormats(final Map<String, MetadataFormat> metadataFormats) {
-        this.metadataFormats = metadataFormats;
+        /* the formats are the bits of a long in the masks of the format cache */
+        if (metadataFormats.size() > Long.SIZE) {
+            throw new IllegalArgumentException("At most " + Long.SIZE + " metadata formats are supported, " +
+                    metadataFormats.size() + " are configured");
+        }
+        for (Map.Entry<String, MetadataFormat> entry : metadataFormats.entrySet()) {
+            if (!entry.getKey().equals(entry.getValue().getPrefix())) {
+                throw new IllegalArgumentException("The metadata format " + entry.getValue().getPrefix() +
+                        " is configured with the key " + entry.getKey());
+            }
+        }
+        for (MetadataFormat mdf : metadataFormats.values()) {
+            if (mdf.isRendered()) {
+                if (mdf.isDerived()) {
+                    throw new IllegalArgumentException("The metadata format " + mdf.getPrefix() +
+                            " can not be both rendered and derived");
+                }
+                mdf.getTemplate().compile(mdf);
+            }
+            if (!mdf.isDerived()) {
+                continue;
+            }
+            final MetadataFormat source = metadataFormats.get(mdf.getSourcePrefix());
+            if (source == null || source.isDerived() || source.isRendered()) {
+                throw new IllegalArgumentException("The metadata format " + mdf.getPrefix() +
+                        " has to be derived from a stored metadata format");
+            }
+            if (mdf.getStylesheet() == null) {
+                throw new IllegalArgumentException("The metadata format " + mdf.getPrefix() +
+                        " does not have a stylesheet");
+            }
+            /* the records of a derived format are transformed from the datastreams of its source format */
+            mdf.setPropertyName(source.getPropertyName());
+        }
+        final Map<String, Long> bits = new HashMap<>();
+        long all = 0;
+        for (String prefix : metadataFormats.keySet()) {
+            final long bit = 1L << bits.size();
+            bits.put(prefix, bit);
+            all |= bit;
+        }
+        this.formatBits = bits;
+        this.allFormatBits = all;
+        if (formatCache != null) {
+            formatCache.invalidate();
+        }
+        /* a copy, so that no format without a bit can be added to the configured formats */
+        this.metadataFormats = Collections.unmodifiableMap(new LinkedHashMap<>(metadataFormats));
+        this.metadataFormatsFragment = null;
     }
 
-    public JAXBElement<OAIPMHtype> getRecord(final Session session, final UriInfo uriInfo, final String identifier,
+    public Object getRecord(final Session session, final UriInfo uriInfo, final String identifier,
             final String metadataPrefix) throws RepositoryException {
         final HttpIdentifierTranslator translator = new HttpIdentifierTranslator(session, FedoraNodes.class, uriInfo);
         final MetadataFormat format = metadataFormats.get(metadataPrefix);
@@ -247,12 +998,28 @@ public class OAIProviderService {
         }
         final Resource subject = translator.getSubject("/" + identifier);
         final String path = translator.getPathFromSubject(subject);
+        metrics.count(RepositoryCall.OBJECT);
         if (!this.objectService.exists(session, path)) {
             return error(VerbType.GET_RECORD, identifier, metadataPrefix, OAIPMHerrorcodeType.ID_DOES_NOT_EXIST,
                     "The requested identifier does not exist");
         }
+        metrics.count(RepositoryCall.OBJECT);
         final FedoraObject obj = this.objectService.findOrCreateObject(session, path);
+        final long datestamp = obj.getLastModifiedDate().getTime();
+        final long bit = formatBit(metadataPrefix);
+        if (formatCache != null) {
+            /* objects known to lack the format are answered without reading their properties */
+            final FormatCache.Entry cached = formatCache.get(path, datestamp);
+            if (cached != null && cached.isKnown(bit) && (cached.getAvailable() & bit) == 0) {
+                return error(VerbType.GET_RECORD, identifier, metadataPrefix, OAIPMHerrorcodeType.NO_RECORDS_MATCH,
+                        "The record does not have a oai meta data object associated");
+            }
+        }
+        metrics.count(RepositoryCall.PROPERTIES);
         final Model model = obj.getPropertiesDataset(translator).getDefaultModel();
+        if (formatCache != null) {
+            formatCache.put(path, datestamp, allFormatBits, availableFormats(model, subject));
+        }
         final StmtIterator it = model.listStatements(subject,
                 model.createProperty(format.getPropertyName()),
                 (RDFNode) null);
@@ -261,48 +1028,44 @@ public class OAIProviderService {
                     "The record does not have a oai meta data object associated");
         }
 
-        final String dsPath = translator.getPathFromSubject(it.next().getObject().asResource());
-        if (!this.datastreamService.exists(session, dsPath)) {
-            return error(VerbType.GET_RECORD, identifier, metadataPrefix, OAIPMHerrorcodeType.BAD_ARGUMENT,
-                    "The referenced datastream for the meta data can not be found");
-        }
-
-        final Datastream mdDs =
-                this.datastreamService.findOrCreateDatastream(session, dsPath);
-        final OAIPMHtype oai = oaiFactory.createOAIPMHtype();
         final RequestType req = oaiFactory.createRequestType();
         req.setVerb(VerbType.GET_RECORD);
         req.setValue(uriInfo.getRequestUri().toASCIIString());
 
-        final GetRecordType getRecord = oaiFactory.createGetRecordType();
-        final RecordType record = oaiFactory.createRecordType();
-        getRecord.setRecord(record);
-
         final HeaderType header = oaiFactory.createHeaderType();
         header.setIdentifier(identifier);
-        header.setDatestamp(dateFormat.print(new Date().getTime()));
+        header.setDatestamp(dateFormat.print(datestamp));
         final StmtIterator itSets = model.listStatements(translator.getSubject("/" + identifier),
                 model.createProperty(propertyIsPartOfSet),
                 (RDFNode) null);
-        if (itSets.hasNext()) {
-            header.getSetSpec().add(itSets.next().getObject().asLiteral().getString());
+        while (itSets.hasNext()) {
+            final String setSpec = getSetSpec(session, translator, itSets.next().getObject().asLiteral().getString());
+            if (setSpec != null) {
+                header.getSetSpec().add(setSpec);
+            }
         }
-        record.setHeader(header);
-        // TODO: add set specs
 
-        final MetadataType md = oaiFactory.createMetadataType();
-        try {
-            String content = IOUtils.toString(mdDs.getBinary().getContent());
-            md.setAny(new JAXBElement<String>(new QName(format.getPrefix()), String.class, content));
-        } catch (IOException e) {
-            throw new RepositoryException(e);
-        } finally {
-            IOUtils.closeQuietly(mdDs.getBinary().getContent());
+        if (format.isRendered()) {
+            return new RecordStreamingOutput(jaxbPool, req, Collections.singletonList(
+                    renderRecord(header, format, model, subject, false)).iterator());
         }
-        record.setMetadata(md);
 
-        oai.setGetRecord(getRecord);
-        return oaiFactory.createOAIPMH(oai);
+        final String dsPath = translator.getPathFromSubject(it.next().getObject().asResource());
+        metrics.count(RepositoryCall.DATASTREAM);
+        if (!this.datastreamService.exists(session, dsPath)) {
+            return error(VerbType.GET_RECORD, identifier, metadataPrefix, OAIPMHerrorcodeType.BAD_ARGUMENT,
+                    "The referenced datastream for the meta data can not be found");
+        }
+
+        metrics.count(RepositoryCall.DATASTREAM);
+        final Datastream mdDs =
+                this.datastreamService.findOrCreateDatastream(session, dsPath);
+        final long lastModified = mdDs.getLastModifiedDate().getTime();
+        final ByteBuffer stored =
+                recordStore != null ? recordStore.get(identifier, metadataPrefix, lastModified, datestamp) : null;
+        final OAIRecord record = stored != null ? new OAIRecord(header, stored) :
+                createRecord(header, datestamp, metadataPrefix, mdDs, lastModified, false);
+        return new RecordStreamingOutput(jaxbPool, req, Collections.singletonList(record).iterator());
     }
 
     public static JAXBElement<OAIPMHtype> error(VerbType verb, String identifier, String metadataPrefix,
@@ -327,8 +1090,17 @@ public class OAIProviderService {
         }
     }
 
-    public JAXBElement<OAIPMHtype> listIdentifiers(Session session, UriInfo uriInfo, String metadataPrefix,
-            String from, String until, String set, int offset) throws RepositoryException {
+    public Object listIdentifiers(Session session, UriInfo uriInfo, String metadataPrefix,
+            String from, String until, String set, ResumptionToken token) throws RepositoryException {
+        return listIdentifiers(session, null, uriInfo, metadataPrefix, from, until, set, token);
+    }
+
+    /**
+     * @param credentials the credentials of the requesting user, which the hydration threads log in with, or null
+     *        to fetch the records on the calling thread
+     */
+    public Object listIdentifiers(Session session, Credentials credentials, UriInfo uriInfo, String metadataPrefix,
+            String from, String until, String set, ResumptionToken token) throws RepositoryException {
 
         final HttpIdentifierTranslator translator =
                 new HttpIdentifierTranslator(session, FedoraNodes.class, uriInfo);
@@ -348,189 +1120,1217 @@ public class OAIProviderService {
         } catch (IllegalArgumentException e) {
             return error(VerbType.LIST_IDENTIFIERS, null, metadataPrefix, OAIPMHerrorcodeType.BAD_ARGUMENT, e.getMessage());
         }
-        
-        final StringBuilder sparql =
-                new StringBuilder("PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> ")
-                        .append("SELECT ?sub ?obj WHERE { ")
-                        .append("?sub <").append(mdf.getPropertyName()).append("> ?obj . ");
+        if (set != null && !set.isEmpty() && !setsEnabled) {
+            return error(VerbType.LIST_IDENTIFIERS, null, metadataPrefix, OAIPMHerrorcodeType.NO_SET_HIERARCHY, "Sets are not enabled");
+        }
 
-        final List<String> filters = new ArrayList<>();
+        try {
+            final ListPage page = listPage(session, translator, mdf, fromDateTime != null ? from : null,
+                    untilDateTime != null ? until : null, set, token,
+                    maxListIdentifiersSize > 0 ? maxListIdentifiersSize : maxListSize);
+            if (page.rows.isEmpty()) {
+                return error(VerbType.LIST_IDENTIFIERS, null, metadataPrefix, OAIPMHerrorcodeType.NO_RECORDS_MATCH,
+                        "No record found");
+            }
 
-        if (fromDateTime != null || untilDateTime != null) {
-            sparql.append("?sub <").append(RdfLexicon.LAST_MODIFIED_DATE).append("> ?date . ");
-            if (fromDateTime != null) {
-                filters.add("?date >='" + from + "'^^xsd:dateTime ");
+            metrics.recordPage(VerbType.LIST_IDENTIFIERS, page.rows.size());
+            final RequestType req = oaiFactory.createRequestType();
+            final ResumptionTokenType resumptionToken = resumptionToken(VerbType.LIST_IDENTIFIERS, session,
+                    translator, mdf, from, until, set, token, page);
+            if (resumptionToken != null && !resumptionToken.getValue().isEmpty()) {
+                req.setResumptionToken(resumptionToken.getValue());
             }
-            if (untilDateTime!= null) {
-                filters.add("?date <='" + until + "'^^xsd:dateTime ");
+            req.setVerb(VerbType.LIST_IDENTIFIERS);
+            req.setMetadataPrefix(metadataPrefix);
+            return new RecordStreamingOutput(jaxbPool, req, new RecordIterator(session, translator, page.rows, null,
+                    sessionsOf(session, credentials),
+                    false), resumptionToken);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RepositoryException(e);
+        }
+    }
+
+    /**
+     * Create the resumption token element of a list page. Pages followed by another page carry the token of the next
+     * page, the last page of a list split into several pages an empty token with the size of the complete list.
+     *
+     * @return the resumption token, or null if the list fits into a single page
+     */
+    private ResumptionTokenType resumptionToken(VerbType verb, Session session, HttpIdentifierTranslator translator,
+            MetadataFormat mdf, String from, String until, String set, ResumptionToken token, ListPage page)
+            throws RepositoryException, IOException {
+        final int cursor = token == null ? 0 : token.getCursor();
+        final ResumptionTokenType type = oaiFactory.createResumptionTokenType();
+        type.setCursor(BigInteger.valueOf(cursor));
+        if (!page.more) {
+            if (token == null) {
+                return null;
+            }
+            type.setValue("");
+            type.setCompleteListSize(BigInteger.valueOf(cursor + page.rows.size()));
+            return type;
+        }
+        final ResumptionToken next = nextResumptionToken(verb, mdf.getPrefix(), from, until, set, token, translator,
+                page);
+        final long expiration;
+        if (harvestSessionStore != null) {
+            final HarvestSession harvest = nextHarvestSession(session, translator, mdf, token, next);
+            type.setValue(harvest.getValue());
+            if (harvest.getCompleteListSize() >= 0) {
+                type.setCompleteListSize(BigInteger.valueOf(harvest.getCompleteListSize()));
             }
+            expiration = harvest.getLastAccess() + harvestSessionStore.getTimeToLive();
+        } else {
+            type.setValue(resumptionTokenCodec.encode(next));
+            expiration = resumptionTokenCodec.getExpiration(next);
+        }
+        setExpirationDate(type, expiration);
+        return type;
+    }
+
+    private void setExpirationDate(ResumptionTokenType type, long expiration) {
+        if (expiration > 0) {
+            final GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            calendar.setTimeInMillis(expiration);
+            type.setExpirationDate(dataFactory.newXMLGregorianCalendar(calendar));
         }
+    }
 
-        if (set != null && !set.isEmpty()) {
-            if (!setsEnabled) {
-                return error(VerbType.LIST_IDENTIFIERS, null, metadataPrefix, OAIPMHerrorcodeType.NO_SET_HIERARCHY, "Sets are not enabled");
+    /**
+     * Store the token continuing a list in its harvest session, registering a new session on the first page of a
+     * list. The token the page has been requested with is kept as well, so that the page can be requested again.
+     */
+    private HarvestSession nextHarvestSession(Session session, HttpIdentifierTranslator translator,
+            MetadataFormat mdf, ResumptionToken token, ResumptionToken next) throws RepositoryException, IOException {
+        HarvestSession current = null;
+        String id = null;
+        int page = 1;
+        if (token != null && token.getSession() != null) {
+            final int dot = token.getSession().indexOf('.');
+            id = token.getSession().substring(0, dot);
+            page = Integer.parseInt(token.getSession().substring(dot + 1)) + 1;
+            current = harvestSessionStore.get(id);
+        }
+        if (id == null) {
+            final byte[] random = new byte[9];
+            sessionIds.nextBytes(random);
+            id = Base64.encodeBase64URLSafeString(random);
+        }
+        /* the size of the list is computed once, when the session is registered */
+        final long completeListSize = current != null ? current.getCompleteListSize() :
+                countList(session, translator, mdf, next.getFrom(), next.getUntil(), next.getSet());
+        final HarvestSession harvest = new HarvestSession(id, page, next, token, completeListSize);
+        harvestSessionStore.put(harvest);
+        return harvest;
+    }
+
+    /**
+     * Count the objects of a list using the datestamp index. Counting without the index would take a query for the
+     * whole list, so the size is left unknown instead.
+     *
+     * @return the number of objects, or -1 if the datestamp index is not available
+     */
+    private long countList(Session session, HttpIdentifierTranslator translator, MetadataFormat mdf, String from,
+            String until, String set) throws RepositoryException {
+        if (datestampIndex == null || !datestampIndex.isOpen() || datestampIndex.getWatermark() == 0) {
+            return -1;
+        }
+        final Collection<String> sets = expandSet(session, translator, set);
+        final SetIndex index = currentSetIndex();
+        if (index != null) {
+            try {
+                return index.count(indexFrom(from), indexUntil(until), sets, mdf.getPrefix());
+            } catch (IllegalStateException e) {
+                log.debug("The set index has been outdated while counting, scanning the datestamp index instead");
             }
-            sparql.append("?sub <").append(propertyIsPartOfSet).append("> ?set . ");
-            filters.add("?set = '" + set + "'");
         }
+        long count = 0;
+        final Iterator<IndexEntry> entries = datestampIndex.scan(indexFrom(from), indexUntil(until), null, null);
+        while (entries.hasNext()) {
+            final IndexEntry entry = entries.next();
+            if (entry.getDatastreams().containsKey(mdf.getPrefix()) &&
+                    (sets == null || !Collections.disjoint(entry.getSets(), sets))) {
+                count++;
+            }
+        }
+        return count;
+    }
 
-        int filterCount = 0;
-        for (String filter:filters) {
-            if (filterCount++ == 0) {
-                sparql.append("FILTER (");
+    /**
+     * Create the token continuing a list after the given page. Keyed tokens pin the until date of the harvest to
+     * the time of its first request, so that the following pages do not include objects modified in the meantime,
+     * which would otherwise be moved to the end of the list over and over again.
+     */
+    private ResumptionToken nextResumptionToken(VerbType verb, String metadataPrefix, String from, String until,
+            String set, ResumptionToken token, HttpIdentifierTranslator translator, ListPage page)
+            throws RepositoryException {
+        final long now = System.currentTimeMillis();
+        final int offset = (token == null ? 0 : token.getOffset()) + page.consumed;
+        final int cursor = (token == null ? 0 : token.getCursor()) + page.rows.size();
+        final ListRow last = page.rows.get(page.rows.size() - 1);
+        if (cursorPagination || page.fromIndex) {
+            if (token == null && (until == null || until.isEmpty() || dateFormat.parseMillis(until) > now)) {
+                until = dateFormat.print(now);
             }
-            sparql.append(filter).append(filterCount == filters.size() ? ")" : " && ");
+            return new ResumptionToken(verb.value(), metadataPrefix, from, until, offset, set,
+                    preciseDateFormat.print(last.datestamp), translator.getSubject(last.path).getURI(), cursor, now);
         }
-        sparql.append("}")
-                .append(" OFFSET ").append(offset)
-                .append(" LIMIT ").append(maxListSize);
-        try {
-            final JQLConverter jql = new JQLConverter(session, translator, sparql.toString());
-            final ResultSet result = jql.execute();
-            final OAIPMHtype oai = oaiFactory.createOAIPMHtype();
-            final ListIdentifiersType ids = oaiFactory.createListIdentifiersType();
-            if (!result.hasNext()) {
-                return error(VerbType.LIST_IDENTIFIERS, null, metadataPrefix, OAIPMHerrorcodeType.NO_RECORDS_MATCH,
-                        "No record found");
+        /* objects modified in the meantime keep their position in a list ordered by subject, but pinning the until
+         * date would remove them and shift the offsets of the following objects */
+        return new ResumptionToken(verb.value(), metadataPrefix, from, until, offset, set, null, null, cursor, now);
+    }
+
+    /**
+     * Fetch the rows of a list page from the datestamp index, or by querying the repository if no index is
+     * available
+     */
+    private ListPage listPage(Session session, HttpIdentifierTranslator translator, MetadataFormat mdf,
+            String from, String until, String set, ResumptionToken token, int limit) throws RepositoryException {
+        return listPage(session, translator, mdf, from, until, set, token, limit, cursorPagination);
+    }
+
+    private ListPage listPage(Session session, HttpIdentifierTranslator translator, MetadataFormat mdf,
+            String from, String until, String set, ResumptionToken token, int limit, boolean cursor)
+            throws RepositoryException {
+        final Collection<String> sets = expandSet(session, translator, set);
+        ListPage page = null;
+        if (datestampIndex != null && datestampIndex.isOpen()) {
+            try {
+                scheduleIndexRefresh();
+                if (datestampIndex.getWatermark() > 0) {
+                    page = listIndexPage(translator, mdf, from, until, sets, token, limit);
+                }
+            } catch (RuntimeException e) {
+                log.error("Unable to use the datestamp index, falling back to a repository query", e);
+            }
+        }
+        if (page == null) {
+            page = queryPage(session, translator, mdf, from, until, sets, token, cursor, limit);
+        }
+        if (formatCache != null) {
+            /* the objects of a list page have a record of the listed format */
+            final long bit = formatBit(mdf.getPrefix());
+            for (ListRow row : page.rows) {
+                formatCache.put(row.path, row.datestamp, bit, bit);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Hand all the records of a metadata format to a handler, serialized and ordered by datestamp and identifier.
+     * The records are fetched page by page, continuing after the key of the last record of a page.
+     *
+     * @param until the datestamp of the last records to include, so that modified objects are not handed out twice
+     * @return the number of records handed out
+     */
+    long walkRecords(Session session, HttpIdentifierTranslator translator, MetadataFormat mdf, String set,
+            String until, int pageSize, RecordHandler handler) throws RepositoryException, IOException,
+            InterruptedException {
+        long count = 0;
+        ResumptionToken cursor = null;
+        ListPage page;
+        do {
+            page = listPage(session, translator, mdf, null, until, set, cursor, pageSize, true);
+            final RecordIterator records = new RecordIterator(session, translator, page.rows, mdf.getPrefix(),
+                    internalSessions, true);
+            try {
+                while (records.hasNext()) {
+                    handler.handle(records.next());
+                    count++;
+                }
+            } finally {
+                records.cancel();
             }
+            if (!page.rows.isEmpty()) {
+                final ListRow last = page.rows.get(page.rows.size() - 1);
+                cursor = new ResumptionToken(null, mdf.getPrefix(), null, until, 0, set,
+                        preciseDateFormat.print(last.datestamp), translator.getSubject(last.path).getURI());
+            }
+        } while (page.more);
+        return count;
+    }
+
+    /**
+     * Receives the records of {@link #walkRecords}
+     */
+    interface RecordHandler {
+
+        void handle(OAIRecord record) throws IOException, InterruptedException;
+    }
+
+    MetadataFormat getMetadataFormat(String metadataPrefix) {
+        return metadataFormats.get(metadataPrefix);
+    }
+
+    Collection<MetadataFormat> getMetadataFormats() {
+        return metadataFormats.values();
+    }
+
+    /**
+     * Format a datestamp with the granularity of the repository
+     */
+    String formatDatestamp(long millis) {
+        return dateFormat.print(millis);
+    }
+
+    /**
+     * Execute the list query of a page and fold its solutions into one row per object. The query returns a solution
+     * for every set an object is a member of, so its limit counts memberships rather than objects. The solutions are
+     * fetched in batches of the limit until the page holds the requested number of objects, and the solutions of an
+     * object which have been cut off by the limit of a batch are completed by the next one.
+     */
+    private ListPage queryPage(Session session, HttpIdentifierTranslator translator, MetadataFormat mdf, String from,
+            String until, Collection<String> sets, ResumptionToken token, boolean cursor, int limit)
+            throws RepositoryException {
+        final List<ListRow> rows = new ArrayList<>();
+        int fetched = 0;
+        boolean exhausted = false;
+        String subject = null;
+        ListRow current = null;
+        while (!exhausted && rows.size() < limit) {
+            metrics.count(RepositoryCall.QUERY);
+            final ResultSet result = new JQLConverter(session, translator,
+                    buildListQuery(mdf, from, until, sets, token, cursor, fetched, limit)).execute();
+            int solutions = 0;
             while (result.hasNext()) {
-                final HeaderType h = oaiFactory.createHeaderType();
                 final QuerySolution sol = result.next();
                 final Resource sub = sol.get("sub").asResource();
-                final Resource oaiRecordUri = sol.get("obj").asResource();
-                if (!this.datastreamService.exists(session, translator.getPathFromSubject(oaiRecordUri))) {
-                    continue;
+                if (!sub.getURI().equals(subject)) {
+                    if (current != null) {
+                        rows.add(current);
+                    }
+                    subject = sub.getURI();
+                    final String path = translator.getPathFromSubject(sub);
+                    final long date = dateParser.parseMillis(sol.getLiteral("date").getLexicalForm());
+                    /* the rows of a rendered format reference the object itself instead of a datastream */
+                    current = sol.contains("obj") ?
+                            new ListRow(path, translator.getPathFromSubject(sol.get("obj").asResource()), date,
+                                    new ArrayList<String>(),
+                                    dateParser.parseMillis(sol.getLiteral("dsDate").getLexicalForm())) :
+                            new ListRow(path, path, date, new ArrayList<String>(), date);
                 }
-                h.setIdentifier(sub.getURI());
-                final FedoraObject obj =
-                        this.objectService.findOrCreateObject(session, translator.getPathFromSubject(sub));
-                h.setDatestamp(dateFormat.print(obj.getLastModifiedDate().getTime()));
-                // get set names this object is part of
-                final Model objModel = obj.getPropertiesDataset(translator).getDefaultModel();
-                final StmtIterator setNames = objModel.listStatements(translator.getSubject(obj.getPath()), objModel.createProperty(propertyIsPartOfSet), (RDFNode) null);
-                while (setNames.hasNext()) {
-                    final FedoraObject setObject = this.objectService.findOrCreateObject(session, setsRootPath + "/" + setNames.next().getObject().asLiteral().getString());
-                    final Model setObjectModel = setObject.getPropertiesDataset(translator).getDefaultModel();
-                    final StmtIterator setSpec = setObjectModel.listStatements(translator.getSubject(setObject.getPath()), objModel.createProperty(propertyHasSetSpec), (RDFNode) null);
-                    if (setSpec.hasNext()) {
-                        h.getSetSpec().add(setSpec.next().getObject().asLiteral().getString());
+                current.solutions++;
+                if (sol.contains("set")) {
+                    final String setName = sol.getLiteral("set").getString();
+                    if (!current.setNames.contains(setName)) {
+                        current.setNames.add(setName);
                     }
                 }
-                ids.getHeader().add(h);
+                solutions++;
             }
+            fetched += solutions;
+            exhausted = solutions < limit;
+        }
+        if (exhausted && current != null) {
+            rows.add(current);
+        }
+        /* the last row of a full batch may be incomplete, it starts the next page instead */
+        final boolean more = !exhausted || rows.size() > limit;
+        final List<ListRow> page = rows.size() > limit ? new ArrayList<>(rows.subList(0, limit)) : rows;
+        int consumed = 0;
+        for (ListRow row : page) {
+            consumed += row.solutions;
+        }
+        return new ListPage(page, more, consumed, false);
+    }
 
-            final RequestType req = oaiFactory.createRequestType();
-            if (ids.getHeader().size() == maxListSize) {
-                req.setResumptionToken(encodeResumptionToken(VerbType.LIST_IDENTIFIERS.value(), metadataPrefix, from,
-                        until, set,
-                        offset + maxListSize));
+    private ListPage listIndexPage(HttpIdentifierTranslator translator, MetadataFormat mdf, String from,
+            String until, Collection<String> sets, ResumptionToken token, int limit) throws RepositoryException {
+        Long afterDatestamp = null;
+        String afterPath = null;
+        if (token != null && token.getLastDatestamp() != null) {
+            afterDatestamp = dateParser.parseMillis(token.getLastDatestamp());
+            afterPath = translator.getPathFromSubject(rdfModel.createResource(token.getLastIdentifier()));
+        }
+        final SetIndex index = sets != null ? currentSetIndex() : null;
+        final Iterator<IndexEntry> entries = index != null ?
+                index.scan(indexFrom(from), indexUntil(until), afterDatestamp, afterPath, sets, mdf.getPrefix()) :
+                datestampIndex.scan(indexFrom(from), indexUntil(until), afterDatestamp, afterPath);
+        final List<IndexEntry> page = new ArrayList<>(limit);
+        final boolean more = takeIndexPage(entries, mdf.getPrefix(), sets, limit, page);
+        final List<ListRow> rows = new ArrayList<>(page.size());
+        for (IndexEntry entry : page) {
+            final ListRow row = new ListRow(entry.getPath(), entry.getDatastreams().get(mdf.getPrefix()),
+                    entry.getDatestamp(), entry.getSets(), null);
+            row.solutions = 1;
+            rows.add(row);
+        }
+        return new ListPage(rows, more, rows.size(), true);
+    }
+
+    /**
+     * Take the entries of a list page from an index scan, skipping those without a record of the format or outside
+     * of the sets. One more matching entry is read to find out whether a following page exists, so that a page
+     * which is exactly full does not hand out a resumption token leading to an empty page.
+     *
+     * @return true if matching entries follow the page
+     */
+    static boolean takeIndexPage(Iterator<IndexEntry> entries, String metadataPrefix, Collection<String> sets,
+            int limit, List<IndexEntry> page) {
+        while (entries.hasNext()) {
+            final IndexEntry entry = entries.next();
+            if (entry.getDatastreams().get(metadataPrefix) == null
+                    || (sets != null && Collections.disjoint(entry.getSets(), sets))) {
+                continue;
             }
-            req.setVerb(VerbType.LIST_IDENTIFIERS);
-            req.setMetadataPrefix(metadataPrefix);
-            oai.setRequest(req);
-            oai.setListIdentifiers(ids);
-            return oaiFactory.createOAIPMH(oai);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RepositoryException(e);
+            if (page.size() == limit) {
+                return true;
+            }
+            page.add(entry);
+        }
+        return false;
+    }
+
+    private long indexFrom(String from) {
+        return from != null ? dateFormat.parseMillis(from) : Long.MIN_VALUE;
+    }
+
+    private long indexUntil(String until) {
+        /* datestamps have a granularity of seconds, so the whole second of the until date is included */
+        return until != null ? dateFormat.parseMillis(until) + 999 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Fetch and serialize the records of a ListRecords page until the byte budget is used up. The page is cut after
+     * the last record fitting into the budget, so that the resumption token continues with the first record left out.
+     * A page always holds at least one record, even if it exceeds the budget on its own.
+     */
+    private ListPage fillPage(Session session, HttpIdentifierTranslator translator, ListPage page,
+            String metadataPrefix, SessionOpener workerSessions, List<OAIRecord> records) throws RepositoryException {
+        final RecordIterator it = new RecordIterator(session, translator, page.rows, metadataPrefix, workerSessions,
+                true);
+        long bytes = 0;
+        int kept = page.rows.size();
+        try {
+            int position = 0;
+            while (it.hasNext()) {
+                final OAIRecord record = it.next();
+                final int size = record.getFragment().remaining();
+                if (!records.isEmpty() && bytes + size > maxListBytes) {
+                    kept = position;
+                    break;
+                }
+                records.add(record);
+                bytes += size;
+                position = it.position;
+                if (bytes >= maxListBytes && position < page.rows.size()) {
+                    kept = position;
+                    break;
+                }
+            }
+        } finally {
+            it.cancel();
+        }
+        if (kept == page.rows.size()) {
+            return page;
         }
+        final List<ListRow> rows = new ArrayList<>(page.rows.subList(0, kept));
+        int consumed = 0;
+        for (ListRow row : rows) {
+            consumed += row.solutions;
+        }
+        return new ListPage(rows, true, consumed, page.fromIndex);
     }
 
-    public static String encodeResumptionToken(String verb, String metadataPrefix, String from, String until,
-            String set, int offset) throws UnsupportedEncodingException {
-        if (from == null) {
-            from = "";
+    /**
+     * Start refreshing the datestamp index in the background once the refresh interval has passed. Requests do not
+     * wait for a running refresh, but use the index as it is.
+     */
+    private void scheduleIndexRefresh() {
+        final ExecutorService executor = this.datestampIndexExecutor;
+        if (executor == null || System.currentTimeMillis() - lastIndexRefresh < datestampIndexRefreshInterval ||
+                !indexRefreshing.compareAndSet(false, true)) {
+            return;
         }
-        if (until == null) {
-            until = "";
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        refreshDatestampIndex();
+                    } catch (RepositoryException | IOException | RuntimeException e) {
+                        log.error("Unable to refresh the datestamp index", e);
+                    } finally {
+                        indexRefreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            indexRefreshing.set(false);
         }
-        if (set == null) {
-            set = "";
+    }
+
+    /**
+     * Add the objects which have been modified since the last refresh to the datestamp index, and remove the objects
+     * which have been deleted once the reconcile interval has passed
+     */
+    private void refreshDatestampIndex() throws RepositoryException, IOException {
+        final long now = System.currentTimeMillis();
+        final Session session = sessionFactory.getInternalSession();
+        try {
+            /* the index holds paths, the URIs the queries are written in only have to be consistent */
+            final HttpIdentifierTranslator translator = new HttpIdentifierTranslator(session, FedoraNodes.class,
+                    new UriInfoSnapshot(INDEX_BASE_URI, INDEX_BASE_URI.resolve("oai")));
+            final long watermark = datestampIndex.getWatermark();
+            final String since = watermark > 0 ? preciseDateFormat.print(watermark - datestampIndexOverlap) : null;
+            long highest = watermark;
+            int count = 0;
+            for (MetadataFormat mdf : metadataFormats.values()) {
+                ResumptionToken cursor = null;
+                ListPage page;
+                do {
+                    page = queryPage(session, translator, mdf, since, null, null, cursor, true,
+                            datestampIndexPageSize);
+                    for (ListRow row : page.rows) {
+                        /* the rows in the overlap with the previous refresh are usually indexed already */
+                        if (datestampIndex.putFormat(row.path, row.datestamp, mdf.getPrefix(), row.dsPath,
+                                row.setNames)) {
+                            count++;
+                        }
+                        highest = Math.max(highest, row.datestamp);
+                    }
+                    if (!page.rows.isEmpty()) {
+                        final ListRow last = page.rows.get(page.rows.size() - 1);
+                        cursor = new ResumptionToken(null, mdf.getPrefix(), since, null, 0, null,
+                                preciseDateFormat.print(last.datestamp), translator.getSubject(last.path).getURI());
+                    }
+                } while (page.more);
+            }
+            if (watermark > 0 && now - lastIndexReconcile >= datestampIndexReconcileInterval) {
+                count += reconcileDatestampIndex(session);
+                lastIndexReconcile = now;
+            } else if (watermark == 0) {
+                /* a freshly populated index does not hold any deleted objects */
+                lastIndexReconcile = now;
+            }
+            /* the watermark is only moved once all the formats have been indexed */
+            datestampIndex.setWatermark(Math.max(highest, 1));
+            datestampIndex.sync();
+            lastIndexRefresh = now;
+            if (count > 0) {
+                log.debug("Updated {} datestamp index entries modified since {}", count, since);
+                if (pageCache != null) {
+                    pageCache.invalidate();
+                }
+                if (prefetchBuffer != null) {
+                    prefetchBuffer.invalidate();
+                }
+            }
+        } finally {
+            session.logout();
         }
-        String[] data = new String[] {
-            urlEncode(verb),
-            urlEncode(metadataPrefix),
-            urlEncode(from),
-            urlEncode(until),
-            urlEncode(set),
-            urlEncode(String.valueOf(offset))
-        };
-        return Base64.encodeBase64URLSafeString(StringUtils.join(data, ':').getBytes("UTF-8"));
     }
 
-    public static String urlEncode(String value) throws UnsupportedEncodingException {
-        return URLEncoder.encode(value, "UTF-8");
+    /**
+     * Remove the entries of deleted objects from the datestamp index, as well as the formats whose metadata datastream
+     * has been deleted. Deletions do not modify the datestamp of an object, so they are not picked up by a refresh.
+     *
+     * @return the number of entries which have been changed
+     */
+    private int reconcileDatestampIndex(Session session) throws RepositoryException, IOException {
+        final List<IndexEntry> changed = new ArrayList<>();
+        final Iterator<IndexEntry> entries = datestampIndex.scan(Long.MIN_VALUE, Long.MAX_VALUE, null, null);
+        while (entries.hasNext()) {
+            final IndexEntry entry = entries.next();
+            metrics.count(RepositoryCall.OBJECT);
+            if (!session.nodeExists(entry.getPath())) {
+                changed.add(new IndexEntry(entry.getPath(), entry.getDatestamp(),
+                        Collections.<String, String>emptyMap(), entry.getSets()));
+                continue;
+            }
+            final Map<String, String> datastreams = new LinkedHashMap<>();
+            for (Map.Entry<String, String> ds : entry.getDatastreams().entrySet()) {
+                /* the records of rendered formats reference the object itself */
+                if (ds.getValue().equals(entry.getPath()) || session.nodeExists(ds.getValue())) {
+                    datastreams.put(ds.getKey(), ds.getValue());
+                }
+            }
+            if (datastreams.size() < entry.getDatastreams().size()) {
+                changed.add(new IndexEntry(entry.getPath(), entry.getDatestamp(), datastreams, entry.getSets()));
+            }
+        }
+        for (IndexEntry entry : changed) {
+            if (entry.getDatastreams().isEmpty()) {
+                datestampIndex.remove(entry.getPath());
+            } else {
+                datestampIndex.put(entry);
+            }
+        }
+        if (!changed.isEmpty()) {
+            log.debug("Removed deleted objects and datastreams from {} datestamp index entries", changed.size());
+        }
+        return changed.size();
     }
 
-    public static String urlDecode(String value) throws UnsupportedEncodingException {
-        return URLDecoder.decode(value, "UTF-8");
+    /**
+     * Fetch the record of a list row
+     *
+     * @param identifier the OAI identifier of the record
+     * @param metadataPrefix the metadata prefix of the record, or null if only the header is fetched
+     * @param detached whether the record has to be serialized, so that it does not depend on the session
+     * @return the record, or null if its metadata datastream does not exist
+     */
+    private OAIRecord fetchRecord(Session session, IdentifierTranslator translator, ListRow row, String identifier,
+            String metadataPrefix, boolean detached) throws RepositoryException {
+        final String dsPath = row.dsPath;
+        final boolean rendered = dsPath.equals(row.path);
+        /* rows from a repository query only contain existing datastreams */
+        if (!rendered && row.dsLastModified == null) {
+            metrics.count(RepositoryCall.DATASTREAM);
+            if (!this.datastreamService.exists(session, dsPath)) {
+                return null;
+            }
+        }
+        final HeaderType h = oaiFactory.createHeaderType();
+        h.setIdentifier(identifier);
+        final long datestamp = row.datestamp;
+        h.setDatestamp(dateFormat.print(datestamp));
+        for (String setName : row.setNames) {
+            final String setSpec = getSetSpec(session, translator, setName);
+            if (setSpec != null) {
+                h.getSetSpec().add(setSpec);
+            }
+        }
+        if (metadataPrefix == null) {
+            return new OAIRecord(h);
+        }
+        if (rendered) {
+            metrics.count(RepositoryCall.OBJECT);
+            final FedoraObject obj = this.objectService.findOrCreateObject(session, row.path);
+            metrics.count(RepositoryCall.PROPERTIES);
+            return renderRecord(h, metadataFormats.get(metadataPrefix),
+                    obj.getPropertiesDataset(translator).getDefaultModel(), translator.getSubject(row.path),
+                    detached);
+        }
+        if (recordStore != null && row.dsLastModified != null) {
+            final ByteBuffer stored = recordStore.get(identifier, metadataPrefix, row.dsLastModified, datestamp);
+            if (stored != null) {
+                return new OAIRecord(h, stored);
+            }
+        }
+        // get the metadata record from fcrepo
+        metrics.count(RepositoryCall.DATASTREAM);
+        final Datastream mdDs = this.datastreamService.findOrCreateDatastream(session, dsPath);
+        final long lastModified = row.dsLastModified != null ?
+                row.dsLastModified : mdDs.getLastModifiedDate().getTime();
+        if (recordStore != null && row.dsLastModified == null) {
+            final ByteBuffer stored = recordStore.get(identifier, metadataPrefix, lastModified, datestamp);
+            if (stored != null) {
+                return new OAIRecord(h, stored);
+            }
+        }
+        return createRecord(h, datestamp, metadataPrefix, mdDs, lastModified, detached);
     }
 
-    public static ResumptionToken decodeResumptionToken(String token) throws UnsupportedEncodingException {
-        String[] data = StringUtils.splitPreserveAllTokens(new String(Base64.decodeBase64(token)), ':');
-        final String verb = urlDecode(data[0]);
-        final String metadataPrefix = urlDecode(data[1]);
-        final String from = urlDecode(data[2]);
-        final String until = urlDecode(data[3]);
-        final String set = urlDecode(data[4]);
-        final int offset = Integer.parseInt(urlDecode(data[5]));
-        return new ResumptionToken(verb, metadataPrefix, from, until, offset, set);
+    /**
+     * Create a record from a metadata datastream, serializing it and adding it to the record store if a store is
+     * configured
+     */
+    private OAIRecord createRecord(HeaderType header, long datestamp, String metadataPrefix, Datastream mdDs,
+            long lastModified, boolean detached) throws RepositoryException {
+        final MetadataFormat mdf = metadataFormats.get(metadataPrefix);
+        if (recordStore == null && !detached) {
+            return new OAIRecord(header, readMetadata(mdf, mdDs, lastModified));
+        }
+        final byte[] fragment;
+        final InputStream metadata = readMetadata(mdf, mdDs, lastModified);
+        try {
+            fragment = RecordStreamingOutput.serializeRecord(jaxbPool, new OAIRecord(header, metadata));
+        } catch (XMLStreamException | JAXBException e) {
+            throw new RepositoryException("Unable to serialize the record " + header.getIdentifier(), e);
+        } finally {
+            IOUtils.closeQuietly(metadata);
+        }
+        if (recordStore != null) {
+            try {
+                recordStore.put(header.getIdentifier(), metadataPrefix, lastModified, datestamp, fragment);
+            } catch (IOException e) {
+                log.error("Unable to store the record " + header.getIdentifier(), e);
+            }
+        }
+        return new OAIRecord(header, ByteBuffer.wrap(fragment));
     }
 
-    public JAXBElement<OAIPMHtype> listSets(Session session, UriInfo uriInfo, int offset) throws RepositoryException {
-        final HttpIdentifierTranslator translator =
-                new HttpIdentifierTranslator(session, FedoraNodes.class, uriInfo);
+    /**
+     * Render a record of a rendered format from the properties of its object
+     */
+    private OAIRecord renderRecord(HeaderType header, MetadataFormat mdf, Model model, Resource subject,
+            boolean detached) throws RepositoryException {
+        final byte[] metadata = mdf.getTemplate().render(model, subject);
+        if (!detached) {
+            return new OAIRecord(header, new ByteArrayInputStream(metadata));
+        }
+        try {
+            return new OAIRecord(header, ByteBuffer.wrap(RecordStreamingOutput.serializeRecord(jaxbPool,
+                    new OAIRecord(header, new ByteArrayInputStream(metadata)))));
+        } catch (XMLStreamException | JAXBException e) {
+            throw new RepositoryException("Unable to serialize the record " + header.getIdentifier(), e);
+        }
+    }
+
+    /**
+     * Read the metadata of a record from its datastream, transforming it if the format is derived from another one
+     */
+    private InputStream readMetadata(MetadataFormat mdf, Datastream mdDs, long lastModified)
+            throws RepositoryException {
+        if (!mdf.isDerived()) {
+            metrics.count(RepositoryCall.BINARY);
+            return mdDs.getBinary().getContent();
+        }
+        metrics.count(RepositoryCall.BINARY);
+        final InputStream src = mdDs.getBinary().getContent();
         try {
-            if (!setsEnabled) {
-                return error(VerbType.LIST_SETS, null, null, OAIPMHerrorcodeType.NO_SET_HIERARCHY, "Set are not enabled");
-            }
-            final StringBuilder sparql = new StringBuilder("SELECT ?obj WHERE {")
-                    .append("<").append(translator.getSubject(setsRootPath)).append(">")
-                    .append("<").append(propertyHasSets).append("> ?obj }");
-            final JQLConverter jql = new JQLConverter(session, translator, sparql.toString());
-            final ResultSet result = jql.execute();
-            final OAIPMHtype oai = oaiFactory.createOAIPMHtype();
-            final ListSetsType sets = oaiFactory.createListSetsType();
+            return new ByteArrayInputStream(crosswalk.transform(mdf, mdDs.getPath(), lastModified, src));
+        } catch (TransformerException e) {
+            throw new RepositoryException("Unable to transform " + mdDs.getPath() + " to " + mdf.getPrefix(), e);
+        } finally {
+            IOUtils.closeQuietly(src);
+        }
+    }
+
+    /**
+     * Get the setSpec an object is a member of, objects may reference sets which do not exist
+     *
+     * @return the setSpec, or null if the set does not exist
+     */
+    private String getSetSpec(Session session, IdentifierTranslator translator, String setSpec)
+            throws RepositoryException {
+        return getSetTrie(session, translator).contains(setSpec) ? setSpec : null;
+    }
+
+    /**
+     * Resolve the set argument of a list request to the setSpecs of the set and all the sets below it
+     *
+     * @return the setSpecs, or null if the request is not restricted to a set
+     */
+    private Collection<String> expandSet(Session session, IdentifierTranslator translator, String set)
+            throws RepositoryException {
+        return set == null || set.isEmpty() ? null : getSetTrie(session, translator).expand(set);
+    }
+
+    /**
+     * A set hierarchy along with the generation of the sets it has been read in
+     */
+    private static class CachedSetTrie {
+
+        private final SetTrie trie;
+
+        private final long generation;
+
+        private CachedSetTrie(SetTrie trie, long generation) {
+            this.trie = trie;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * A row of a list page, referencing an object and its metadata datastream together with the datestamp and the
+     * set names of the object. The last modification date of the datastream is null unless the row is the result of
+     * a repository query.
+     */
+    private static class ListRow {
+
+        private final String path;
+
+        private final String dsPath;
+
+        private final long datestamp;
+
+        private final List<String> setNames;
+
+        private final Long dsLastModified;
+
+        /* the number of query solutions or index entries the row has been built from */
+        private int solutions;
+
+        private ListRow(String path, String dsPath, long datestamp, List<String> setNames, Long dsLastModified) {
+            this.path = path;
+            this.dsPath = dsPath;
+            this.datestamp = datestamp;
+            this.setNames = setNames;
+            this.dsLastModified = dsLastModified;
+        }
+    }
+
+    /**
+     * The rows of a list page
+     */
+    private static class ListPage {
+
+        private final List<ListRow> rows;
+
+        /* whether more rows might follow this page */
+        private final boolean more;
+
+        /* the number of query solutions or index entries the rows have been built from */
+        private final int consumed;
+
+        private final boolean fromIndex;
+
+        private ListPage(List<ListRow> rows, boolean more, int consumed, boolean fromIndex) {
+            this.rows = rows;
+            this.more = more;
+            this.consumed = consumed;
+            this.fromIndex = fromIndex;
+        }
+    }
+
+    /**
+     * Opens the sessions the hydration threads fetch records with, which have to read the repository with the rights
+     * of the session the records are listed with
+     */
+    private interface SessionOpener {
+
+        Session open() throws RepositoryException;
+    }
+
+    private final SessionOpener internalSessions = new SessionOpener() {
+
+        @Override
+        public Session open() throws RepositoryException {
+            return sessionFactory.getInternalSession();
+        }
+    };
+
+    /**
+     * Open sessions with the credentials of the requesting user in the workspace of its session
+     *
+     * @return the opener, or null if the credentials are not known
+     */
+    private static SessionOpener sessionsOf(final Session session, final Credentials credentials) {
+        if (credentials == null) {
+            return null;
+        }
+        return new SessionOpener() {
+
+            @Override
+            public Session open() throws RepositoryException {
+                return session.getRepository().login(credentials, session.getWorkspace().getName());
+            }
+        };
+    }
+
+    /**
+     * Fetches the records of a page lazily, while the response is being written. If a hydration executor is
+     * configured, the records are fetched and serialized concurrently in a window ahead of the record being written,
+     * using a session of their own, and are handed out in the order of the rows.
+     */
+    private class RecordIterator implements Iterator<OAIRecord> {
+
+        private final Session session;
+
+        private final HttpIdentifierTranslator translator;
+
+        private final Iterator<ListRow> rows;
+
+        private final String metadataPrefix;
+
+        private final ExecutorService executor;
+
+        private final int window;
+
+        private final boolean detached;
+
+        private final SessionOpener workerSessions;
+
+        private final Deque<Future<OAIRecord>> pending = new ArrayDeque<>();
+
+        private OAIRecord next;
+
+        /* the number of rows the records handed out so far have been fetched for */
+        private int position;
+
+        /**
+         * @param workerSessions opens the sessions of the hydration threads, null fetches the records on the
+         *        calling thread
+         */
+        private RecordIterator(Session session, HttpIdentifierTranslator translator, List<ListRow> rows,
+                String metadataPrefix, SessionOpener workerSessions, boolean detached) {
+            this.session = session;
+            this.translator = translator;
+            this.rows = rows.iterator();
+            this.metadataPrefix = metadataPrefix;
+            this.workerSessions = workerSessions;
+            this.executor = workerSessions != null ? hydrationExecutor : null;
+            this.window = 2 * hydrationParallelism;
+            this.detached = detached;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null && (rows.hasNext() || !pending.isEmpty())) {
+                    if (executor == null) {
+                        final ListRow row = rows.next();
+                        next = fetchRecord(session, translator, row, translator.getSubject(row.path).getURI(),
+                                metadataPrefix, detached);
+                    } else {
+                        submit();
+                        next = await(pending.poll());
+                    }
+                    position++;
+                }
+            } catch (RepositoryException e) {
+                cancel();
+                throw new RepositoryRuntimeException("Unable to fetch the record", e);
+            }
+            return next != null;
+        }
+
+        private void submit() throws RepositoryException {
+            while (pending.size() < window && rows.hasNext()) {
+                final ListRow row = rows.next();
+                /* the identifiers depend on the request and are resolved on the request thread */
+                final String identifier = translator.getSubject(row.path).getURI();
+                pending.add(executor.submit(new Callable<OAIRecord>() {
+
+                    @Override
+                    public OAIRecord call() throws RepositoryException {
+                        final Session workerSession = workerSessions.open();
+                        try {
+                            return fetchRecord(workerSession, new DefaultIdentifierTranslator(), row, identifier,
+                                    metadataPrefix, true);
+                        } finally {
+                            workerSession.logout();
+                        }
+                    }
+                }));
+            }
+        }
+
+        private OAIRecord await(Future<OAIRecord> future) throws RepositoryException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RepositoryException("Interrupted while fetching the record", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RepositoryException) {
+                    throw (RepositoryException) e.getCause();
+                }
+                throw new RepositoryException(e.getCause());
+            }
+        }
+
+        private void cancel() {
+            for (Future<OAIRecord> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+        }
+
+        @Override
+        public OAIRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final OAIRecord record = next;
+            next = null;
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Decode a resumption token, verifying its signature and expiration date, or restore the token referenced by
+     * a stateful resumption token from its harvest session
+     *
+     * @throws IllegalArgumentException if the token is invalid
+     */
+    public ResumptionToken decodeResumptionToken(String token) throws IOException {
+        final int dot = token.indexOf('.');
+        if (harvestSessionStore == null || dot < 0) {
+            return resumptionTokenCodec.decode(token);
+        }
+        /* the token references a harvest session */
+        final HarvestSession harvest = harvestSessionStore.get(token.substring(0, dot));
+        final ResumptionToken stored =
+                harvest == null ? null : harvest.getToken(Integer.parseInt(token.substring(dot + 1)));
+        if (stored == null) {
+            throw new IllegalArgumentException("Unknown or expired harvest session");
+        }
+        return new ResumptionToken(stored.getVerb(), stored.getMetadataPrefix(), stored.getFrom(), stored.getUntil(),
+                stored.getOffset(), stored.getSet(), stored.getLastDatestamp(), stored.getLastIdentifier(),
+                stored.getCursor(), stored.getIssued(), token);
+    }
+
+    /**
+     * Build the query of a list page, returning the object, its metadata datastream, both their last modification
+     * dates and, in a solution of its own, every set the object is a member of
+     */
+    String buildListQuery(MetadataFormat mdf, String from, String until, Collection<String> sets,
+            ResumptionToken token, boolean cursor, int limit) {
+        return buildListQuery(mdf, from, until, sets, token, cursor, 0, limit);
+    }
+
+    /**
+     * Build the query of a list page, skipping the given number of solutions of the page which have been fetched
+     * already
+     */
+    String buildListQuery(MetadataFormat mdf, String from, String until, Collection<String> sets,
+            ResumptionToken token, boolean cursor, int skip, int limit) {
+        final StringBuilder sparql = new StringBuilder("PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> ");
+        if (mdf.isRendered()) {
+            /* the records are rendered from the object, which only has to hold a value of the property */
+            sparql.append("SELECT ?sub ?date ?set WHERE { ")
+                    .append("?sub <").append(mdf.getPropertyName()).append("> ?value . ")
+                    .append("?sub <").append(RdfLexicon.LAST_MODIFIED_DATE).append("> ?date . ");
+        } else {
+            sparql.append("SELECT ?sub ?obj ?date ?dsDate ?set WHERE { ")
+                    .append("?sub <").append(mdf.getPropertyName()).append("> ?obj . ")
+                    .append("?sub <").append(RdfLexicon.LAST_MODIFIED_DATE).append("> ?date . ")
+                    .append("?obj <").append(RdfLexicon.LAST_MODIFIED_DATE).append("> ?dsDate . ");
+        }
+
+        final List<String> filters = new ArrayList<>();
+
+        if (from != null) {
+            filters.add("?date >='" + from + "'^^xsd:dateTime ");
+        }
+        if (until != null) {
+            filters.add("?date <='" + until + "'^^xsd:dateTime ");
+        }
+
+        if (sets != null) {
+            sparql.append("?sub <").append(propertyIsPartOfSet).append("> ?filterSet . ");
+            final StringBuilder filter = new StringBuilder("(");
+            for (String spec : sets) {
+                if (filter.length() > 1) {
+                    filter.append(" || ");
+                }
+                filter.append("?filterSet = '").append(escapeLiteral(spec)).append("'");
+            }
+            filters.add(filter.append(")").toString());
+        }
+        if (propertyIsPartOfSet != null) {
+            sparql.append("OPTIONAL { ?sub <").append(propertyIsPartOfSet).append("> ?set } ");
+        }
+
+        if (cursor && token != null && token.getLastDatestamp() != null) {
+            /* continue right after the last (datestamp, identifier) key of the previous page */
+            final String date = "'" + token.getLastDatestamp() + "'^^xsd:dateTime";
+            filters.add("(?date > " + date + " || (?date = " + date + " && str(?sub) > '" +
+                    escapeLiteral(token.getLastIdentifier()) + "'))");
+        }
+
+        int filterCount = 0;
+        for (String filter:filters) {
+            if (filterCount++ == 0) {
+                sparql.append("FILTER (");
+            }
+            sparql.append(filter).append(filterCount == filters.size() ? ")" : " && ");
+        }
+        sparql.append("}");
+        if (cursor) {
+            sparql.append(" ORDER BY ?date ?sub");
+            if (skip > 0) {
+                sparql.append(" OFFSET ").append(skip);
+            }
+        } else {
+            /* the solutions of an object have to be adjacent in order to be folded into a single row */
+            sparql.append(" ORDER BY ?sub OFFSET ").append((token == null ? 0 : token.getOffset()) + skip);
+        }
+        if (limit > 0) {
+            sparql.append(" LIMIT ").append(limit);
+        }
+        return sparql.toString();
+    }
+
+    /**
+     * Start computing the ListRecords page of a resumption token in the background, using an internal session. Pages
+     * are not prefetched if access to the objects is restricted, since the page would be computed without the
+     * rights of the requesting user, nor with stateful resumption, since computing a page advances the harvest
+     * session and the previous token could not be retried any more.
+     */
+    private void prefetchListRecords(final String resumptionToken, UriInfo uriInfo) {
+        final PrefetchBuffer buffer = prefetchBuffer;
+        final ThreadPoolExecutor executor = prefetchExecutor;
+        if (buffer == null || executor == null || accessRestricted || harvestSessionStore != null) {
+            return;
+        }
+        final UriInfo snapshot = new UriInfoSnapshot(uriInfo);
+        buffer.prefetch(resumptionToken, new Callable<PrefetchBuffer.Page>() {
+
+            @Override
+            public PrefetchBuffer.Page call() throws Exception {
+                final Session session = sessionFactory.getInternalSession();
+                try {
+                    final ResumptionToken token = decodeResumptionToken(resumptionToken);
+                    final Object result = listRecords(session, internalSessions, snapshot,
+                            token.getMetadataPrefix(), token.getFrom(), token.getUntil(), token.getSet(), token, false);
+                    if (!(result instanceof RecordStreamingOutput)) {
+                        /* errors are answered by the request itself */
+                        return null;
+                    }
+                    final RecordStreamingOutput output = (RecordStreamingOutput) result;
+                    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    output.writeContent(body);
+                    final ResumptionTokenType next = output.getResumptionToken();
+                    return new PrefetchBuffer.Page(output.getRequest(), body.toByteArray(),
+                            next == null || next.getValue().isEmpty() ? null : next.getValue());
+                } finally {
+                    session.logout();
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Take the prefetched ListRecords page of a resumption token, prefetching the page following it
+     *
+     * @return the response, or null if the page has not been prefetched
+     */
+    public StreamingOutput takePrefetchedPage(String resumptionToken, UriInfo uriInfo) {
+        if (prefetchBuffer == null) {
+            return null;
+        }
+        final PrefetchBuffer.Page page = prefetchBuffer.take(resumptionToken);
+        if (page == null) {
+            return null;
+        }
+        if (page.getResumptionToken() != null) {
+            prefetchListRecords(page.getResumptionToken(), uriInfo);
+        }
+        /* the envelope is written anew, so that the response date is the one of this response */
+        return new SerializedContentOutput(jaxbPool, page.getRequest(), page.getBody());
+    }
+
+    /**
+     * List the sets of the repository, each followed by the sets below it, in pages of at most maxListSize sets
+     */
+    public JAXBElement<OAIPMHtype> listSets(Session session, UriInfo uriInfo, ResumptionToken token)
+            throws RepositoryException {
+        if (!setsEnabled) {
+            return error(VerbType.LIST_SETS, null, null, OAIPMHerrorcodeType.NO_SET_HIERARCHY, "Set are not enabled");
+        }
+        final List<SetType> all =
+                getSetTrie(session, new HttpIdentifierTranslator(session, FedoraNodes.class, uriInfo)).getSets();
+        if (all.isEmpty()) {
+            return error(VerbType.LIST_SETS, null, null, OAIPMHerrorcodeType.NO_SET_HIERARCHY,
+                    "The repository does not have any sets");
+        }
+        final int offset = token == null ? 0 : token.getOffset();
+        if (offset >= all.size()) {
+            return error(VerbType.LIST_SETS, null, null, OAIPMHerrorcodeType.BAD_RESUMPTION_TOKEN,
+                    "Resumption token is invalid");
+        }
+        final int end = maxListSize > 0 ? Math.min(all.size(), offset + maxListSize) : all.size();
+        final ListSetsType sets = oaiFactory.createListSetsType();
+        sets.getSet().addAll(all.subList(offset, end));
+
+        final RequestType req = oaiFactory.createRequestType();
+        req.setVerb(VerbType.LIST_SETS);
+        if (token != null || end < all.size()) {
+            final ResumptionTokenType resumptionToken = oaiFactory.createResumptionTokenType();
+            resumptionToken.setCursor(BigInteger.valueOf(offset));
+            resumptionToken.setCompleteListSize(BigInteger.valueOf(all.size()));
+            if (end < all.size()) {
+                final ResumptionToken next = new ResumptionToken(VerbType.LIST_SETS.value(), null, null, null, end,
+                        null, null, null, end, System.currentTimeMillis());
+                resumptionToken.setValue(resumptionTokenCodec.encode(next));
+                setExpirationDate(resumptionToken, resumptionTokenCodec.getExpiration(next));
+                req.setResumptionToken(resumptionToken.getValue());
+            } else {
+                resumptionToken.setValue("");
+            }
+            sets.setResumptionToken(resumptionToken);
+        }
+        final OAIPMHtype oai = oaiFactory.createOAIPMHtype();
+        oai.setRequest(req);
+        oai.setListSets(sets);
+        return oaiFactory.createOAIPMH(oai);
+    }
+
+    /**
+     * Get the hierarchy of the sets. The sets are read from the set root with a single query and cached until a set
+     * is created. The setSpec of a set is derived from the path of its object below the set root, a:b:c being
+     * stored at a/b/c, or taken from its setSpec property if the object has been stored elsewhere.
+     */
+    private SetTrie getSetTrie(Session session, IdentifierTranslator translator) throws RepositoryException {
+        CachedSetTrie cached = this.setTrie;
+        if (cached != null && cached.generation == setTrieGeneration.get()) {
+            metrics.countCacheLookup(SET_TRIE_CACHE, true);
+            return cached.trie;
+        }
+        synchronized (this) {
+            cached = this.setTrie;
+            final long generation = setTrieGeneration.get();
+            if (cached != null && cached.generation == generation) {
+                metrics.countCacheLookup(SET_TRIE_CACHE, true);
+                return cached.trie;
+            }
+            metrics.countCacheLookup(SET_TRIE_CACHE, false);
+            final String sparql = "SELECT ?set ?name ?spec WHERE { " +
+                    "<" + translator.getSubject(setsRootPath) + "> <" + propertyHasSets + "> ?set . " +
+                    "?set <" + propertySetName + "> ?name . " +
+                    "?set <" + propertyHasSetSpec + "> ?spec . }";
+            metrics.count(RepositoryCall.QUERY);
+            final ResultSet result = new JQLConverter(session, translator, sparql).execute();
+            final Map<String, String> names = new HashMap<>();
+            final String prefix = setsRootPath + "/";
             while (result.hasNext()) {
-                final Resource setRes = result.next().get("obj").asResource();
-                sparql.setLength(0);
-                sparql.append("SELECT ?name ?spec WHERE {")
-                        .append("<").append(setRes).append("> ")
-                        .append("<").append(propertySetName).append("> ")
-                        .append("?name ; ")
-                        .append("<").append(propertyHasSetSpec).append("> ")
-                        .append("?spec . ")
-                        .append("}");
-                final JQLConverter setJql = new JQLConverter(session, translator, sparql.toString());
-                final ResultSet setResult = setJql.execute();
-                while (setResult.hasNext()) {
-                    final SetType set = oaiFactory.createSetType();
-                    QuerySolution sol = setResult.next();
-                    set.setSetName(sol.get("name").asLiteral().getString());
-                    set.setSetSpec(sol.get("spec").asLiteral().getString());
-                    sets.getSet().add(set);
+                final QuerySolution sol = result.next();
+                final String path = translator.getPathFromSubject(sol.get("set").asResource());
+                final String spec = path != null && path.startsWith(prefix) ?
+                        path.substring(prefix.length()).replace('/', ':') :
+                        sol.get("spec").asLiteral().getString();
+                if (SetTrie.isValidSpec(spec)) {
+                    names.put(spec, sol.get("name").asLiteral().getString());
+                } else {
+                    log.warn("Ignoring the set at {} with the invalid setSpec '{}'", path, spec);
                 }
             }
-            oai.setListSets(sets);
-            return oaiFactory.createOAIPMH(oai);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RepositoryException(e);
+            final SetTrie trie = new SetTrie(names);
+            /* a set created while the sets were read has moved the generation on, which leaves the trie stale */
+            this.setTrie = new CachedSetTrie(trie, generation);
+            return trie;
         }
     }
 
+    /**
+     * Create a set from an OAI-PMH set element. The setSpec has to be valid and the set directly above it has to
+     * exist already.
+     *
+     * @return the path of the set object
+     * @throws IllegalArgumentException if the set is not valid
+     */
     public String createSet(Session session, UriInfo uriInfo, InputStream src) throws RepositoryException {
         final HttpIdentifierTranslator translator =
                 new HttpIdentifierTranslator(session, FedoraNodes.class, uriInfo);
         try {
-            final SetType set = this.unmarshaller.unmarshal(new StreamSource(src), SetType.class).getValue();
-            final String setId = getSetId(set);
-            final FedoraObject setRoot = this.objectService.findOrCreateObject(session, setsRootPath);
-            if (set.getSetSpec() != null) {
-                /* validate that the hierarchy of sets exists */
+            final SetType set;
+            final Unmarshaller unmarshaller = jaxbPool.borrowUnmarshaller();
+            try {
+                set = unmarshaller.unmarshal(new StreamSource(src), SetType.class).getValue();
+            } finally {
+                jaxbPool.returnUnmarshaller(unmarshaller);
             }
-
-            final FedoraObject setObject = this.objectService.findOrCreateObject(session, setsRootPath + "/" + setId);
+            final String spec = set.getSetSpec();
+            if (!SetTrie.isStorableSpec(spec)) {
+                throw new IllegalArgumentException("The setSpec '" + spec + "' is not valid");
+            }
+            if (set.getSetName() == null || set.getSetName().isEmpty()) {
+                throw new IllegalArgumentException("The set '" + spec + "' does not have a name");
+            }
+            final SetTrie trie = getSetTrie(session, translator);
+            if (trie.contains(spec)) {
+                throw new IllegalArgumentException("The set '" + spec + "' exists already");
+            }
+            final String parent = SetTrie.getParent(spec);
+            if (parent != null && !trie.contains(parent)) {
+                throw new IllegalArgumentException("The parent set '" + parent + "' of '" + spec +
+                        "' does not exist");
+            }
+            final FedoraObject setRoot = this.objectService.findOrCreateObject(session, setsRootPath);
+            final FedoraObject setObject =
+                    this.objectService.findOrCreateObject(session, setsRootPath + "/" + spec.replace(':', '/'));
 
             StringBuilder sparql =
                     new StringBuilder("INSERT DATA {<" + translator.getSubject(setRoot.getPath()) + "> <" +
@@ -540,35 +2340,57 @@ public class OAIProviderService {
             sparql.setLength(0);
             sparql.append("INSERT DATA {")
                     .append("<" + translator.getSubject(setObject.getPath()) + "> <" + propertySetName +
-                            "> '" + set.getSetName() + "' .")
+                            "> '" + escapeLiteral(set.getSetName()) + "' .")
                     .append("<" + translator.getSubject(setObject.getPath()) + "> <" + propertyHasSetSpec +
-                            "> '" + set.getSetName() + "' .");
+                            "> '" + spec + "' .");
             for (DescriptionType desc : set.getSetDescription()) {
                 // TODO: save description
             }
             sparql.append("}");
             setObject.updatePropertiesDataset(translator, sparql.toString());
             session.save();
+            setTrieGeneration.incrementAndGet();
+            if (recordStore != null) {
+                /* stored record headers may reference the new set */
+                recordStore.clear();
+            }
+            if (pageCache != null) {
+                pageCache.invalidate();
+            }
+            if (prefetchBuffer != null) {
+                prefetchBuffer.invalidate();
+            }
             return setObject.getPath();
-        } catch (JAXBException e) {
+        } catch (JAXBException | IOException e) {
             e.printStackTrace();
             throw new RepositoryException(e);
         }
     }
 
-    private String getSetId(SetType set) throws RepositoryException {
-        if (set.getSetSpec() == null) {
-            throw new RepositoryException("SetSpec can not be empty");
-        }
-        String id = set.getSetSpec();
-        int colonPos = id.indexOf(':');
-        while (colonPos > 0) {
-            id = id.substring(colonPos + 1);
-        }
-        return id;
+    /**
+     * Escape a string for a single quoted SPARQL literal
+     */
+    private static String escapeLiteral(String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
+    }
+
+    public Object listRecords(Session session, UriInfo uriInfo, String metadataPrefix, String from, String until, String set, ResumptionToken token) throws RepositoryException {
+        return listRecords(session, null, uriInfo, metadataPrefix, from, until, set, token);
+    }
+
+    /**
+     * @param credentials the credentials of the requesting user, which the hydration threads log in with, or null
+     *        to fetch the records on the calling thread
+     */
+    public Object listRecords(Session session, Credentials credentials, UriInfo uriInfo, String metadataPrefix,
+            String from, String until, String set, ResumptionToken token) throws RepositoryException {
+        return listRecords(session, sessionsOf(session, credentials), uriInfo, metadataPrefix, from, until, set,
+                token, true);
     }
 
-    public JAXBElement<OAIPMHtype> listRecords(Session session, UriInfo uriInfo, String metadataPrefix, String from, String until, String set, int offset) throws RepositoryException {
+    private Object listRecords(Session session, SessionOpener workerSessions, UriInfo uriInfo,
+            String metadataPrefix, String from, String until, String set, ResumptionToken token, boolean prefetch)
+            throws RepositoryException {
 
         final HttpIdentifierTranslator translator =
                 new HttpIdentifierTranslator(session, FedoraNodes.class, uriInfo);
@@ -589,103 +2411,39 @@ public class OAIProviderService {
         } catch (IllegalArgumentException e) {
             return error(VerbType.LIST_RECORDS, null, metadataPrefix, OAIPMHerrorcodeType.BAD_ARGUMENT, e.getMessage());
         }
-
-        final StringBuilder sparql =
-                new StringBuilder("PREFIX xsd: <http://www.w3.org/2001/XMLSchema#> ")
-                        .append("SELECT ?sub ?obj WHERE { ")
-                        .append("?sub <").append(mdf.getPropertyName()).append("> ?obj . ");
-
-        final List<String> filters = new ArrayList<>();
-
-        if (fromDateTime != null || untilDateTime != null) {
-            sparql.append("?sub <").append(RdfLexicon.LAST_MODIFIED_DATE).append("> ?date . ");
-            if (fromDateTime != null) {
-                filters.add("?date >='" + from + "'^^xsd:dateTime ");
-            }
-            if (untilDateTime!= null) {
-                filters.add("?date <='" + until + "'^^xsd:dateTime ");
-            }
-        }
-
-        if (set != null && !set.isEmpty()) {
-            if (!setsEnabled) {
-                return error(VerbType.LIST_RECORDS, null, metadataPrefix, OAIPMHerrorcodeType.NO_SET_HIERARCHY, "Sets are not enabled");
-            }
-            sparql.append("?sub <").append(propertyIsPartOfSet).append("> ?set . ");
-            filters.add("?set = '" + set + "'");
+        if (set != null && !set.isEmpty() && !setsEnabled) {
+            return error(VerbType.LIST_RECORDS, null, metadataPrefix, OAIPMHerrorcodeType.NO_SET_HIERARCHY, "Sets are not enabled");
         }
 
-        int filterCount = 0;
-        for (String filter:filters) {
-            if (filterCount++ == 0) {
-                sparql.append("FILTER (");
-            }
-            sparql.append(filter).append(filterCount == filters.size() ? ")" : " && ");
-        }
-        sparql.append("}")
-                .append(" OFFSET ").append(offset)
-                .append(" LIMIT ").append(maxListSize);
         try {
-            final JQLConverter jql = new JQLConverter(session, translator, sparql.toString());
-            final ResultSet result = jql.execute();
-            final OAIPMHtype oai = oaiFactory.createOAIPMHtype();
-            final ListRecordsType records = oaiFactory.createListRecordsType();
-            if (!result.hasNext()) {
+            ListPage page = listPage(session, translator, mdf, fromDateTime != null ? from : null,
+                    untilDateTime != null ? until : null, set, token, maxListSize);
+            if (page.rows.isEmpty()) {
                 return error(VerbType.LIST_RECORDS, null, metadataPrefix, OAIPMHerrorcodeType.NO_RECORDS_MATCH,
                         "No record found");
             }
-            while (result.hasNext()) {
-                // check if the records exists
-                final RecordType record = oaiFactory.createRecordType();
-                final HeaderType h = oaiFactory.createHeaderType();
-                final QuerySolution solution = result.next();
-                final Resource subjectUri = solution.get("sub").asResource();
-                final Resource oaiRecordUri = solution.get("obj").asResource();
-                if (!this.datastreamService.exists(session, translator.getPathFromSubject(oaiRecordUri))) {
-                    continue;
-                }
-                h.setIdentifier(subjectUri.getURI());
-                final FedoraObject obj =
-                        this.objectService.findOrCreateObject(session, translator.getPathFromSubject(subjectUri));
-                h.setDatestamp(dateFormat.print(obj.getLastModifiedDate().getTime()));
-                // get set names this object is part of
-                final Model objModel = obj.getPropertiesDataset(translator).getDefaultModel();
-                final StmtIterator setNames = objModel.listStatements(translator.getSubject(obj.getPath()), objModel.createProperty(propertyIsPartOfSet), (RDFNode) null);
-                while (setNames.hasNext()) {
-                    final FedoraObject setObject = this.objectService.findOrCreateObject(session, setsRootPath + "/" + setNames.next().getObject().asLiteral().getString());
-                    final Model setObjectModel = setObject.getPropertiesDataset(translator).getDefaultModel();
-                    final StmtIterator setSpec = setObjectModel.listStatements(translator.getSubject(setObject.getPath()), objModel.createProperty(propertyHasSetSpec), (RDFNode) null);
-                    if (setSpec.hasNext()) {
-                        h.getSetSpec().add(setSpec.next().getObject().asLiteral().getString());
-                    }
-                }
-                // get the metadata record from fcrepo
-                final MetadataType md = oaiFactory.createMetadataType();
-                final Datastream mdDs = this.datastreamService.findOrCreateDatastream(session, translator.getPathFromSubject(oaiRecordUri));
-                try {
-                    String content = IOUtils.toString(mdDs.getBinary().getContent());
-                    md.setAny(new JAXBElement<String>(new QName(mdf.getPrefix()), String.class, content));
-                } catch (IOException e) {
-                    throw new RepositoryException(e);
-                } finally {
-                    IOUtils.closeQuietly(mdDs.getBinary().getContent());
-                }
-                record.setMetadata(md);
-                record.setHeader(h);
-                records.getRecord().add(record);
+            Iterator<OAIRecord> records;
+            if (maxListBytes > 0) {
+                final List<OAIRecord> filled = new ArrayList<>();
+                page = fillPage(session, translator, page, metadataPrefix, workerSessions, filled);
+                records = filled.iterator();
+            } else {
+                records = new RecordIterator(session, translator, page.rows, metadataPrefix, workerSessions, false);
             }
 
+            metrics.recordPage(VerbType.LIST_RECORDS, page.rows.size());
             final RequestType req = oaiFactory.createRequestType();
-            if (records.getRecord().size() == maxListSize) {
-                req.setResumptionToken(encodeResumptionToken(VerbType.LIST_RECORDS.value(), metadataPrefix, from,
-                        until, set,
-                        offset + maxListSize));
+            final ResumptionTokenType resumptionToken = resumptionToken(VerbType.LIST_RECORDS, session,
+                    translator, mdf, from, until, set, token, page);
+            if (resumptionToken != null && !resumptionToken.getValue().isEmpty()) {
+                req.setResumptionToken(resumptionToken.getValue());
             }
             req.setVerb(VerbType.LIST_RECORDS);
             req.setMetadataPrefix(metadataPrefix);
-            oai.setRequest(req);
-            oai.setListRecords(records);
-            return oaiFactory.createOAIPMH(oai);
+            if (prefetch && req.getResumptionToken() != null) {
+                prefetchListRecords(req.getResumptionToken(), uriInfo);
+            }
+            return new RecordStreamingOutput(jaxbPool, req, records, resumptionToken);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RepositoryException(e);
@@ -0,0 +1,180 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cache of complete OAI-PMH response bodies keyed by the normalized request. Every entry holds the identity and
+ * the gzip encoded body, so that repeated requests are answered without accessing the repository or compressing
+ * the response again. The cache is bounded by the total number of bytes held and evicts the least recently used
+ * entries first. Entries expire after a fixed time to live, since modifications in the repository are not tracked.
+ */
+public class PageCache {
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long maxBytes;
+
+    private final long timeToLive;
+
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PageCache(final long maxBytes, final long timeToLive) {
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Look up a response body, returns null and counts a miss if no current entry exists
+     */
+    public Entry get(String key) {
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() - entry.created <= timeToLive) {
+                hits.incrementAndGet();
+                return entry;
+            }
+            if (entry != null) {
+                remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Add a response body to the cache, bodies which would take up more than the whole cache are not added
+     */
+    public Entry put(String key, byte[] body) throws IOException {
+        final Entry entry = new Entry(body, gzip(body));
+        if (entry.size() > maxBytes) {
+            return entry;
+        }
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, entry);
+            bytes += entry.size();
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().size();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Remove all entries, e.g. after the sets or the records of the repository have changed
+     */
+    public void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * The number of bytes held by the identity and gzip encoded bodies of all entries
+     */
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return total == 0 ? 0d : (double) h / total;
+    }
+
+    private void remove(String key) {
+        final Entry previous = entries.remove(key);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (final GZIPOutputStream gzip = new GZIPOutputStream(sink)) {
+            gzip.write(body);
+        }
+        return sink.toByteArray();
+    }
+
+    /**
+     * A cached response body
+     */
+    public static class Entry {
+
+        private final byte[] identity;
+
+        private final byte[] gzip;
+
+        private final long created = System.currentTimeMillis();
+
+        private Entry(byte[] identity, byte[] gzip) {
+            this.identity = identity;
+            this.gzip = gzip;
+        }
+
+        public byte[] getIdentity() {
+            return identity;
+        }
+
+        public byte[] getGzip() {
+            return gzip;
+        }
+
+        private long size() {
+            return identity.length + gzip.length;
+        }
+    }
+}
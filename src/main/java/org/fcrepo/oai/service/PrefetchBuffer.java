@@ -0,0 +1,272 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openarchives.oai._2.RequestType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds list pages computed in the background, keyed by the resumption token they are requested with. A page is
+ * handed out once; pages which have not been requested within the time to live are dropped and counted as wasted,
+ * cancelling their computation if it is still running. Once the buffered pages take up more than the maximum number
+ * of bytes, the oldest pages are dropped as well.
+ */
+public class PrefetchBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(PrefetchBuffer.class);
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private final long maxBytes;
+
+    private final long timeToLive;
+
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong wasted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public PrefetchBuffer(final long maxBytes, final long timeToLive) {
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Start computing the page of a resumption token, unless it is already buffered or the executor does not accept
+     * any more tasks
+     */
+    public void prefetch(final String token, final Callable<Page> loader, final Executor executor) {
+        final Entry entry = new Entry(System.currentTimeMillis());
+        entry.task = new FutureTask<>(new Callable<Page>() {
+
+            @Override
+            public Page call() throws Exception {
+                final Page page = loader.call();
+                if (page != null) {
+                    completed(token, entry, page);
+                }
+                return page;
+            }
+        });
+        synchronized (entries) {
+            expire(entry.created);
+            if (entries.containsKey(token)) {
+                return;
+            }
+            entries.put(token, entry);
+        }
+        try {
+            executor.execute(entry.task);
+        } catch (RejectedExecutionException e) {
+            synchronized (entries) {
+                entries.remove(token);
+            }
+            rejected.incrementAndGet();
+        }
+    }
+
+    /**
+     * Take the page of a resumption token out of the buffer, waiting for its computation to finish if necessary
+     *
+     * @return the page, or null if the page has not been prefetched, has expired or could not be computed
+     */
+    public Page take(String token) {
+        final Entry entry;
+        synchronized (entries) {
+            expire(System.currentTimeMillis());
+            entry = entries.remove(token);
+            if (entry != null) {
+                bytes -= entry.size;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            final Page page = entry.task.get();
+            if (page != null) {
+                hits.incrementAndGet();
+                return page;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("Unable to prefetch a page", e.getCause());
+        } catch (CancellationException e) {
+            /* dropped while the page was requested */
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private void completed(String token, Entry entry, Page page) {
+        synchronized (entries) {
+            if (entries.get(token) != entry) {
+                /* the entry has been taken or dropped in the meantime */
+                return;
+            }
+            entry.size = page.getBody().length;
+            bytes += entry.size;
+            final Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                drop(eldest.next());
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop the entries which have not been requested within the time to live, which are found at the head of the
+     * insertion ordered map
+     */
+    private void expire(long now) {
+        final Iterator<Entry> eldest = entries.values().iterator();
+        while (eldest.hasNext()) {
+            final Entry entry = eldest.next();
+            if (now - entry.created <= timeToLive) {
+                break;
+            }
+            drop(entry);
+            eldest.remove();
+        }
+    }
+
+    private void drop(Entry entry) {
+        entry.task.cancel(true);
+        bytes -= entry.size;
+        wasted.incrementAndGet();
+    }
+
+    /**
+     * Drop all pages, e.g. after the records of the repository have changed
+     */
+    public void invalidate() {
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                drop(entry);
+            }
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * The number of requests answered from the buffer
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of pages which have been computed or started but were never requested
+     */
+    public long getWasted() {
+        return wasted.get();
+    }
+
+    /**
+     * The number of prefetches which have not been started because the executor was busy
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * A serialized response body together with the resumption token it ends with
+     */
+    public static class Page {
+
+        private final RequestType request;
+
+        private final byte[] body;
+
+        private final String resumptionToken;
+
+        public Page(RequestType request, byte[] body, String resumptionToken) {
+            this.request = request;
+            this.body = body;
+            this.resumptionToken = resumptionToken;
+        }
+
+        /**
+         * The request element of the page
+         */
+        public RequestType getRequest() {
+            return request;
+        }
+
+        /**
+         * The verb specific content of the page, which is written into a new envelope when the page is taken
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * The token continuing after this page, or null if this is the last page
+         */
+        public String getResumptionToken() {
+            return resumptionToken;
+        }
+    }
+
+    private static class Entry {
+
+        private final long created;
+
+        private FutureTask<Page> task;
+
+        private long size;
+
+        private Entry(long created) {
+            this.created = created;
+        }
+    }
+}
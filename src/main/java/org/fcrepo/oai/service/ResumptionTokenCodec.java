@@ -0,0 +1,286 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.fcrepo.oai.ResumptionToken;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.openarchives.oai._2.VerbType;
+
+/**
+ * Encodes resumption tokens in a compact binary format and decodes them after verifying their signature. A token
+ * consists of a version byte, a flag byte, the verb, varint encoded numbers and dates, length prefixed strings and
+ * a truncated HMAC-SHA256 of all of the preceding bytes, encoded as URL safe Base64.
+ */
+public class ResumptionTokenCodec {
+
+    private static final byte VERSION = 1;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final int MAC_LENGTH = 16;
+
+    private static final int FLAG_FROM = 1;
+
+    private static final int FLAG_UNTIL = 2;
+
+    private static final int FLAG_SET = 4;
+
+    private static final int FLAG_KEY = 8;
+
+    private static final VerbType[] VERBS = VerbType.values();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final DateTimeFormatter dateFormat =
+            ISODateTimeFormat.dateTimeNoMillis().withZone(DateTimeZone.UTC);
+
+    private static final DateTimeFormatter preciseDateFormat =
+            ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC);
+
+    private final SecretKeySpec key;
+
+    private final long timeToLive;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to create the token signature", e);
+            }
+        }
+    };
+
+    /**
+     * Create a codec signing the tokens with a random key, so that tokens are only valid until the codec is
+     * discarded
+     *
+     * @param timeToLive the number of milliseconds a token is valid after it has been issued, 0 if it does not
+     *        expire
+     */
+    public ResumptionTokenCodec(long timeToLive) {
+        this(randomSecret(), timeToLive);
+    }
+
+    public ResumptionTokenCodec(byte[] secret, long timeToLive) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.timeToLive = timeToLive;
+    }
+
+    private static byte[] randomSecret() {
+        final byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return secret;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * The time a token expires at, in milliseconds since the epoch, or 0 if it does not expire
+     */
+    public long getExpiration(ResumptionToken token) {
+        return timeToLive > 0 ? token.getIssued() + timeToLive : 0;
+    }
+
+    public String encode(ResumptionToken token) {
+        final boolean keyed = token.getLastDatestamp() != null && token.getLastIdentifier() != null;
+        int flags = 0;
+        if (!isEmpty(token.getFrom())) {
+            flags |= FLAG_FROM;
+        }
+        if (!isEmpty(token.getUntil())) {
+            flags |= FLAG_UNTIL;
+        }
+        if (!isEmpty(token.getSet())) {
+            flags |= FLAG_SET;
+        }
+        if (keyed) {
+            flags |= FLAG_KEY;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(VERSION);
+        out.write(flags);
+        out.write(VerbType.fromValue(token.getVerb()).ordinal());
+        writeString(out, token.getMetadataPrefix() == null ? "" : token.getMetadataPrefix());
+        if ((flags & FLAG_FROM) != 0) {
+            writeVarLong(out, dateFormat.parseMillis(token.getFrom()) / 1000);
+        }
+        if ((flags & FLAG_UNTIL) != 0) {
+            writeVarLong(out, dateFormat.parseMillis(token.getUntil()) / 1000);
+        }
+        if ((flags & FLAG_SET) != 0) {
+            writeString(out, token.getSet());
+        }
+        writeVarLong(out, token.getOffset());
+        writeVarLong(out, token.getCursor());
+        writeVarLong(out, token.getIssued() / 1000);
+        if (keyed) {
+            writeVarLong(out, preciseDateFormat.parseMillis(token.getLastDatestamp()));
+            writeString(out, token.getLastIdentifier());
+        }
+        final Mac mac = macs.get();
+        mac.update(out.toByteArray());
+        out.write(mac.doFinal(), 0, MAC_LENGTH);
+        return Base64.encodeBase64URLSafeString(out.toByteArray());
+    }
+
+    /**
+     * Decode a token, verifying its signature and its expiration date
+     *
+     * @throws IllegalArgumentException if the token is malformed, has been tampered with or has expired
+     */
+    public ResumptionToken decode(String token) {
+        final byte[] data = Base64.decodeBase64(token);
+        final int length = data.length - MAC_LENGTH;
+        if (length < 4 || data[0] != VERSION) {
+            throw new IllegalArgumentException("Malformed resumption token");
+        }
+        final Mac mac = macs.get();
+        mac.update(data, 0, length);
+        final byte[] expected = mac.doFinal();
+        /* compare all the bytes, so that the time taken does not reveal the position of the first difference */
+        int diff = 0;
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            diff |= expected[i] ^ data[length + i];
+        }
+        if (diff != 0) {
+            throw new IllegalArgumentException("Invalid resumption token signature");
+        }
+        final Reader reader = new Reader(data, length);
+        reader.pos = 1;
+        final int flags = reader.readByte();
+        final int verb = reader.readByte();
+        if (verb >= VERBS.length) {
+            throw new IllegalArgumentException("Malformed resumption token");
+        }
+        /* ListSets tokens do not have a metadata prefix */
+        final String metadataPrefix = reader.readString();
+        final String from = (flags & FLAG_FROM) != 0 ? dateFormat.print(reader.readVarLong() * 1000) : null;
+        final String until = (flags & FLAG_UNTIL) != 0 ? dateFormat.print(reader.readVarLong() * 1000) : null;
+        final String set = (flags & FLAG_SET) != 0 ? reader.readString() : null;
+        final int offset = reader.readVarInt();
+        final int cursor = reader.readVarInt();
+        final long issued = reader.readVarLong() * 1000;
+        String lastDatestamp = null;
+        String lastIdentifier = null;
+        if ((flags & FLAG_KEY) != 0) {
+            lastDatestamp = preciseDateFormat.print(reader.readVarLong());
+            lastIdentifier = reader.readString();
+        }
+        if (reader.pos != length) {
+            throw new IllegalArgumentException("Malformed resumption token");
+        }
+        if (timeToLive > 0 && issued + timeToLive < System.currentTimeMillis()) {
+            throw new IllegalArgumentException("Expired resumption token");
+        }
+        return new ResumptionToken(VERBS[verb].value(), metadataPrefix.isEmpty() ? null : metadataPrefix, from, until,
+                offset, set, lastDatestamp, lastIdentifier, cursor, issued);
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        final byte[] bytes = value.getBytes(UTF8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write a zigzag encoded varint, so that small negative numbers are short as well
+     */
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7fL) != 0) {
+            out.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    /**
+     * Reads the fields of a token, failing on reads beyond the signed bytes
+     */
+    private static class Reader {
+
+        private final byte[] data;
+
+        private final int limit;
+
+        private int pos;
+
+        private Reader(byte[] data, int limit) {
+            this.data = data;
+            this.limit = limit;
+        }
+
+        private int readByte() {
+            if (pos >= limit) {
+                throw new IllegalArgumentException("Malformed resumption token");
+            }
+            return data[pos++] & 0xff;
+        }
+
+        private long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return (v >>> 1) ^ -(v & 1);
+                }
+            }
+            throw new IllegalArgumentException("Malformed resumption token");
+        }
+
+        private int readVarInt() {
+            final long v = readVarLong();
+            if (v < 0 || v > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Malformed resumption token");
+            }
+            return (int) v;
+        }
+
+        private String readString() {
+            final int len = readVarInt();
+            if (len > limit - pos) {
+                throw new IllegalArgumentException("Malformed resumption token");
+            }
+            final String value = new String(data, pos, len, UTF8);
+            pos += len;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.openarchives.oai._2.ObjectFactory;
+import org.openarchives.oai._2.SetType;
+
+/**
+ * The hierarchy of the OAI sets, keyed by the colon separated segments of their setSpec. A set includes the records
+ * of all the sets below it, so a request for the set a has to return the records of a:b and a:b:c as well, which
+ * the trie resolves by walking down the segments of the setSpec and collecting the subtree below it. The trie is
+ * immutable.
+ */
+public class SetTrie {
+
+    private static final Pattern SET_SPEC = Pattern.compile("[A-Za-z0-9\\-_.!~*'()]+(:[A-Za-z0-9\\-_.!~*'()]+)*");
+
+    /* the characters of a setSpec which are allowed in the JCR names of the set objects as well */
+    private static final Pattern STORABLE_SET_SPEC = Pattern.compile("[A-Za-z0-9\\-_.!~]+(:[A-Za-z0-9\\-_.!~]+)*");
+
+    private static final Pattern DOT_SEGMENT = Pattern.compile("(^|:)\\.\\.?(:|$)");
+
+    private static final ObjectFactory oaiFactory = new ObjectFactory();
+
+    private final Node root = new Node(null);
+
+    private final List<SetType> sets;
+
+    /**
+     * @param names the names of the sets keyed by their setSpec
+     */
+    public SetTrie(Map<String, String> names) {
+        for (Map.Entry<String, String> set : names.entrySet()) {
+            Node node = root;
+            final StringBuilder spec = new StringBuilder();
+            for (String segment : set.getKey().split(":")) {
+                if (spec.length() > 0) {
+                    spec.append(':');
+                }
+                spec.append(segment);
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node(spec.toString());
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.name = set.getValue();
+        }
+        final List<SetType> list = new ArrayList<>(names.size());
+        collect(root, list);
+        this.sets = Collections.unmodifiableList(list);
+    }
+
+    private static void collect(Node node, List<SetType> sets) {
+        if (node.name != null) {
+            final SetType set = oaiFactory.createSetType();
+            set.setSetSpec(node.spec);
+            set.setSetName(node.name);
+            sets.add(set);
+        }
+        for (Node child : node.children.values()) {
+            collect(child, sets);
+        }
+    }
+
+    /**
+     * Whether a string is a syntactically valid setSpec
+     */
+    public static boolean isValidSpec(String spec) {
+        return spec != null && SET_SPEC.matcher(spec).matches();
+    }
+
+    /**
+     * Whether a setSpec is valid and can be stored at the path of its segments, which excludes the characters
+     * <code>*'()</code> and segments consisting of dots only
+     */
+    public static boolean isStorableSpec(String spec) {
+        return spec != null && STORABLE_SET_SPEC.matcher(spec).matches() && !DOT_SEGMENT.matcher(spec).find();
+    }
+
+    /**
+     * Get the setSpec of the set directly above a set
+     *
+     * @return the setSpec of the parent, or null for a top level set
+     */
+    public static String getParent(String spec) {
+        final int colon = spec.lastIndexOf(':');
+        return colon < 0 ? null : spec.substring(0, colon);
+    }
+
+    public boolean contains(String spec) {
+        final Node node = find(spec);
+        return node != null && node.name != null;
+    }
+
+    /**
+     * Resolve a setSpec to the setSpecs of the set and all the sets below it. A setSpec which is not known is
+     * resolved to itself, so that membership of objects in sets which have not been created is still honoured.
+     */
+    public Collection<String> expand(String spec) {
+        final Node node = find(spec);
+        if (node == null || node.children.isEmpty()) {
+            return Collections.singletonList(spec);
+        }
+        final List<String> specs = new ArrayList<>();
+        specs.add(spec);
+        descendants(node, specs);
+        return specs;
+    }
+
+    private static void descendants(Node node, List<String> specs) {
+        for (Node child : node.children.values()) {
+            if (child.name != null) {
+                specs.add(child.spec);
+            }
+            descendants(child, specs);
+        }
+    }
+
+    private Node find(String spec) {
+        Node node = root;
+        int start = 0;
+        while (node != null && start <= spec.length()) {
+            int end = spec.indexOf(':', start);
+            if (end < 0) {
+                end = spec.length();
+            }
+            node = node.children.get(spec.substring(start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * All the sets, each followed by the sets below it and ordered by setSpec on every level
+     */
+    public List<SetType> getSets() {
+        return sets;
+    }
+
+    public int size() {
+        return sets.size();
+    }
+
+    private static class Node {
+
+        private final String spec;
+
+        private final Map<String, Node> children = new TreeMap<>();
+
+        /* the name of the set, or null if no set with this spec exists */
+        private String name;
+
+        private Node(String spec) {
+            this.spec = spec;
+        }
+    }
+}
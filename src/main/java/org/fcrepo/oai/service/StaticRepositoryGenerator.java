@@ -0,0 +1,295 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+
+import org.fcrepo.http.api.FedoraNodes;
+import org.fcrepo.http.commons.api.rdf.HttpIdentifierTranslator;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.oai.MetadataFormat;
+import org.fcrepo.oai.OAIRecord;
+import org.fcrepo.oai.http.StaticRepositoryWriter;
+import org.openarchives.oai._2.ListMetadataFormatsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Periodically writes the whole repository into an OAI-PMH static repository document, holding the Identify and
+ * ListMetadataFormats responses and the records of all the configured metadata formats. Harvesters which only
+ * need full refreshes can download the document instead of paging through the OAI-PMH interface.
+ * <p>
+ * The records are written to the file while they are fetched page by page, so only a single page has to be held
+ * in memory. The document is written to a temporary file and replaces the previous document once it is complete.
+ * </p>
+ */
+public class StaticRepositoryGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(StaticRepositoryGenerator.class);
+
+    @Autowired
+    private OAIProviderService providerService;
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    private File file;
+
+    private URI baseUri;
+
+    private long interval = 86400000;
+
+    private int pageSize = 500;
+
+    private String adminRole = "fedoraAdmin";
+
+    private volatile ScheduledExecutorService scheduler;
+
+    private final Object generating = new Object();
+
+    private final AtomicBoolean requested = new AtomicBoolean();
+
+    private volatile long lastGenerated;
+
+    private volatile long records;
+
+    /**
+     * The path of the static repository document
+     */
+    public void setFile(String file) {
+        this.file = new File(file);
+    }
+
+    /**
+     * The base URI of the REST API, which the identifiers of the records are derived from, e.g.
+     * http://localhost:8080/fcrepo/rest/
+     */
+    public void setBaseUri(String baseUri) {
+        this.baseUri = URI.create(baseUri.endsWith("/") ? baseUri : baseUri + "/");
+    }
+
+    /**
+     * The time in milliseconds between two generations, 0 only generates the document on request
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * The number of records fetched from the repository at once
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * The role a user needs to request a generation over HTTP, since the document is generated with an internal
+     * session
+     */
+    public void setAdminRole(String adminRole) {
+        this.adminRole = adminRole;
+    }
+
+    public String getAdminRole() {
+        return adminRole;
+    }
+
+    public synchronized void open() throws IOException {
+        if (file == null || baseUri == null) {
+            throw new IllegalStateException("The file and the base URI of the static repository are required");
+        }
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory.getAbsolutePath());
+        }
+        if (file.isFile()) {
+            lastGenerated = file.lastModified();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "oai-static-repository");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (interval > 0) {
+            /* continue the schedule of the document written before a restart */
+            final long delay = Math.max(0, lastGenerated + interval - System.currentTimeMillis());
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        generate();
+                    } catch (Exception e) {
+                        log.error("Unable to generate the static repository", e);
+                    }
+                }
+            }, delay, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Generate the document on the calling thread, waiting for a running generation to finish first
+     *
+     * @return the number of records written
+     */
+    public long generate() throws RepositoryException, IOException {
+        synchronized (generating) {
+            return write();
+        }
+    }
+
+    private long write() throws RepositoryException, IOException {
+        final long started = System.currentTimeMillis();
+        log.info("Generating static repository {}", file);
+        final File tmp = new File(file.getPath() + ".tmp");
+        final Session session = sessionFactory.getInternalSession();
+        boolean complete = false;
+        long count = 0;
+        try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 65536)) {
+            final HttpIdentifierTranslator translator = new HttpIdentifierTranslator(session, FedoraNodes.class,
+                    new UriInfoSnapshot(baseUri, baseUri.resolve("oai")));
+            /* records modified while the document is generated are left to the next document */
+            final String until = providerService.formatDatestamp(started);
+            final ListMetadataFormatsType metadataFormats = new ListMetadataFormatsType();
+            metadataFormats.getMetadataFormat().addAll(providerService.listAvailableMetadataFormats());
+            final StaticRepositoryWriter writer = new StaticRepositoryWriter(providerService.getJaxbPool(), out);
+            writer.writeStart(providerService.readIdentify(session), metadataFormats);
+            for (MetadataFormat mdf : providerService.getMetadataFormats()) {
+                writer.startRecords(mdf.getPrefix());
+                count += providerService.walkRecords(session, translator, mdf, null, until, pageSize,
+                        new OAIProviderService.RecordHandler() {
+
+                            @Override
+                            public void handle(OAIRecord record) throws IOException {
+                                try {
+                                    writer.writeRecord(record);
+                                } catch (XMLStreamException e) {
+                                    throw new IOException("Unable to write record " +
+                                            record.getHeader().getIdentifier(), e);
+                                }
+                            }
+                        });
+                writer.endRecords();
+            }
+            writer.close();
+            complete = true;
+        } catch (JAXBException | XMLStreamException e) {
+            throw new IOException("Unable to write the static repository", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating the static repository", e);
+        } finally {
+            session.logout();
+            if (!complete) {
+                tmp.delete();
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        lastGenerated = file.lastModified();
+        records = count;
+        log.info("Generated static repository {} with {} records in {} ms", file, count,
+                System.currentTimeMillis() - started);
+        return count;
+    }
+
+    /**
+     * Generate the document in the background. A request made while a requested generation is pending or running
+     * is merged into it, so that repeated requests do not queue up walks of the whole repository.
+     *
+     * @return true if a generation has been queued, false if the request has been merged into another one
+     */
+    public boolean generateLater() {
+        final ScheduledExecutorService scheduler = this.scheduler;
+        if (scheduler == null) {
+            throw new IllegalStateException("The static repository generator has not been opened");
+        }
+        if (!requested.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            scheduler.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        generate();
+                    } catch (Exception e) {
+                        log.error("Unable to generate the static repository", e);
+                    } finally {
+                        requested.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            requested.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * The static repository document, or null if none has been generated yet
+     */
+    public File getFile() {
+        return file != null && file.isFile() ? file : null;
+    }
+
+    /**
+     * The time the document has been generated at last, in milliseconds since the epoch, or 0
+     */
+    public long getLastGenerated() {
+        return lastGenerated;
+    }
+
+    /**
+     * The number of records written into the document generated last by this instance
+     */
+    public long getRecords() {
+        return records;
+    }
+}
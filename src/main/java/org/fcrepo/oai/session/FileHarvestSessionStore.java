@@ -0,0 +1,142 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps harvest sessions in memory like {@link MemoryHarvestSessionStore} and writes every session to a file of its
+ * own, so that harvests can be resumed after a restart. The sessions are read back on startup, dropping the ones
+ * which have expired in the meantime.
+ */
+public class FileHarvestSessionStore extends MemoryHarvestSessionStore {
+
+    private static final Logger log = LoggerFactory.getLogger(FileHarvestSessionStore.class);
+
+    private static final String SUFFIX = ".session";
+
+    private final Object[] locks = new Object[64];
+
+    private File directory;
+
+    public FileHarvestSessionStore() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = new File(directory);
+    }
+
+    /**
+     * Read the sessions stored in the directory
+     */
+    public synchronized void open() throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("No directory has been configured for the harvest session store");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create harvest session directory " + directory.getAbsolutePath());
+        }
+        final File[] files = directory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        final List<HarvestSession> sessions = new ArrayList<>(files.length);
+        for (File file : files) {
+            try (final DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                sessions.add(HarvestSession.read(in));
+            } catch (IOException e) {
+                log.warn("Deleting unreadable harvest session {}", file);
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        /* restore the access order, so that expiry and eviction continue with the least recently used sessions */
+        Collections.sort(sessions, new Comparator<HarvestSession>() {
+
+            @Override
+            public int compare(HarvestSession o1, HarvestSession o2) {
+                return Long.compare(o1.getLastAccess(), o2.getLastAccess());
+            }
+        });
+        for (HarvestSession session : sessions) {
+            put(session);
+        }
+        log.info("Opened harvest session store in {} with {} sessions", directory, size());
+    }
+
+    /**
+     * Write a session to its file. The files of different sessions are written concurrently, while the writes of a
+     * session are serialized and skipped once it has been replaced or removed, so that the file ends up holding the
+     * session last stored.
+     */
+    @Override
+    protected void stored(HarvestSession session) throws IOException {
+        /* the sessions stored while opening the store have just been read from their files */
+        if (Thread.holdsLock(this)) {
+            return;
+        }
+        synchronized (lock(session.getId())) {
+            if (peek(session.getId()) != session) {
+                return;
+            }
+            final File tmp = new File(directory, session.getId() + SUFFIX + ".tmp");
+            try (final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                session.write(out);
+            }
+            Files.move(tmp.toPath(), new File(directory, session.getId() + SUFFIX).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    @Override
+    protected void removed(String id) throws IOException {
+        synchronized (lock(id)) {
+            /* a session stored again in the meantime keeps its file */
+            if (peek(id) == null) {
+                Files.deleteIfExists(new File(directory, id + SUFFIX).toPath());
+            }
+        }
+    }
+
+    private Object lock(String id) {
+        return locks[(id.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+}
@@ -0,0 +1,191 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.session;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.fcrepo.oai.ResumptionToken;
+
+/**
+ * The state of a harvest split into several pages, referenced by a short resumption token of the form
+ * <code>id.page</code>. Besides the token continuing with the current page, the token of the page before is kept,
+ * so that a harvester retrying a failed request receives the same page again.
+ */
+public class HarvestSession {
+
+    private static final int VERSION = 1;
+
+    private final String id;
+
+    private final int page;
+
+    private final ResumptionToken token;
+
+    private final ResumptionToken previous;
+
+    private final long completeListSize;
+
+    private volatile long lastAccess;
+
+    /**
+     * @param id the id of the session
+     * @param page the number of the page the token continues with
+     * @param token the token continuing with the page
+     * @param previous the token continuing with the page before, may be null
+     * @param completeListSize the number of records in the complete list, or -1 if it is not known
+     */
+    public HarvestSession(String id, int page, ResumptionToken token, ResumptionToken previous,
+            long completeListSize) {
+        this.id = id;
+        this.page = page;
+        this.token = token;
+        this.previous = previous;
+        this.completeListSize = completeListSize;
+        this.lastAccess = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public long getCompleteListSize() {
+        return completeListSize;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public void setLastAccess(long lastAccess) {
+        this.lastAccess = lastAccess;
+    }
+
+    /**
+     * The value of the resumption token referencing the current page of this session
+     */
+    public String getValue() {
+        return id + "." + page;
+    }
+
+    /**
+     * Get the token continuing with the given page
+     *
+     * @return the token, or null if the page is neither the current page nor the one before
+     */
+    public ResumptionToken getToken(int page) {
+        if (page == this.page) {
+            return token;
+        }
+        if (page == this.page - 1) {
+            return previous;
+        }
+        return null;
+    }
+
+    /**
+     * An estimate of the number of bytes the session occupies in memory
+     */
+    public int getSize() {
+        return 96 + 2 * id.length() + size(token) + size(previous);
+    }
+
+    private static int size(ResumptionToken token) {
+        if (token == null) {
+            return 0;
+        }
+        return 64 + 2 * (length(token.getVerb()) + length(token.getMetadataPrefix()) + length(token.getFrom()) +
+                length(token.getUntil()) + length(token.getSet()) + length(token.getLastDatestamp()) +
+                length(token.getLastIdentifier()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeUTF(id);
+        out.writeInt(page);
+        out.writeLong(completeListSize);
+        out.writeLong(lastAccess);
+        writeToken(out, token);
+        out.writeBoolean(previous != null);
+        if (previous != null) {
+            writeToken(out, previous);
+        }
+    }
+
+    public static HarvestSession read(DataInput in) throws IOException {
+        if (in.readInt() != VERSION) {
+            throw new IOException("Unsupported harvest session version");
+        }
+        final String id = in.readUTF();
+        final int page = in.readInt();
+        final long completeListSize = in.readLong();
+        final long lastAccess = in.readLong();
+        final ResumptionToken token = readToken(in);
+        final ResumptionToken previous = in.readBoolean() ? readToken(in) : null;
+        final HarvestSession session = new HarvestSession(id, page, token, previous, completeListSize);
+        session.setLastAccess(lastAccess);
+        return session;
+    }
+
+    private static void writeToken(DataOutput out, ResumptionToken token) throws IOException {
+        writeString(out, token.getVerb());
+        writeString(out, token.getMetadataPrefix());
+        writeString(out, token.getFrom());
+        writeString(out, token.getUntil());
+        writeString(out, token.getSet());
+        writeString(out, token.getLastDatestamp());
+        writeString(out, token.getLastIdentifier());
+        out.writeInt(token.getOffset());
+        out.writeInt(token.getCursor());
+        out.writeLong(token.getIssued());
+    }
+
+    private static ResumptionToken readToken(DataInput in) throws IOException {
+        final String verb = readString(in);
+        final String metadataPrefix = readString(in);
+        final String from = readString(in);
+        final String until = readString(in);
+        final String set = readString(in);
+        final String lastDatestamp = readString(in);
+        final String lastIdentifier = readString(in);
+        final int offset = in.readInt();
+        final int cursor = in.readInt();
+        final long issued = in.readLong();
+        return new ResumptionToken(verb, metadataPrefix, from, until, offset, set, lastDatestamp, lastIdentifier,
+                cursor, issued);
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,46 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.session;
+
+import java.io.IOException;
+
+/**
+ * Stores the sessions of harvests using stateful resumption tokens
+ */
+public interface HarvestSessionStore {
+
+    /**
+     * Get a session, marking it as recently used
+     *
+     * @return the session, or null if it does not exist or has expired
+     */
+    HarvestSession get(String id) throws IOException;
+
+    /**
+     * Add a session or replace the session with the same id
+     */
+    void put(HarvestSession session) throws IOException;
+
+    void remove(String id) throws IOException;
+
+    /**
+     * The number of milliseconds a session is kept after its last use
+     */
+    long getTimeToLive();
+
+    int size();
+}
@@ -0,0 +1,186 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps harvest sessions in memory, bounded by the number of sessions and their estimated size in bytes. The least
+ * recently used sessions are evicted once a bound is exceeded, and sessions which have not been used for the time
+ * to live are dropped.
+ */
+public class MemoryHarvestSessionStore implements HarvestSessionStore {
+
+    /* ordered by access, a session is moved to the end whenever it is used */
+    private final LinkedHashMap<String, HarvestSession> sessions = new LinkedHashMap<>();
+
+    private int maxSessions = 10000;
+
+    private long maxBytes = 16 * 1024 * 1024;
+
+    private long timeToLive = 3600000;
+
+    private long bytes;
+
+    private long evictions;
+
+    private long expirations;
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    @Override
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    @Override
+    public HarvestSession get(String id) throws IOException {
+        final List<String> dropped = new ArrayList<>();
+        final HarvestSession session;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            expire(now, dropped);
+            session = sessions.remove(id);
+            if (session != null) {
+                session.setLastAccess(now);
+                sessions.put(id, session);
+            }
+        }
+        removed(dropped);
+        return session;
+    }
+
+    @Override
+    public void put(HarvestSession session) throws IOException {
+        final List<String> dropped = new ArrayList<>();
+        synchronized (this) {
+            final HarvestSession replaced = sessions.remove(session.getId());
+            if (replaced != null) {
+                bytes -= replaced.getSize();
+            }
+            sessions.put(session.getId(), session);
+            bytes += session.getSize();
+            expire(System.currentTimeMillis(), dropped);
+            final Iterator<HarvestSession> eldest = sessions.values().iterator();
+            while ((sessions.size() > maxSessions || bytes > maxBytes) && eldest.hasNext()) {
+                final HarvestSession evicted = eldest.next();
+                if (evicted == session) {
+                    break;
+                }
+                eldest.remove();
+                bytes -= evicted.getSize();
+                evictions++;
+                dropped.add(evicted.getId());
+            }
+        }
+        stored(session);
+        removed(dropped);
+    }
+
+    @Override
+    public void remove(String id) throws IOException {
+        synchronized (this) {
+            final HarvestSession removed = sessions.remove(id);
+            if (removed == null) {
+                return;
+            }
+            bytes -= removed.getSize();
+        }
+        removed(id);
+    }
+
+    /**
+     * Get a session without marking it as recently used or checking whether it has expired
+     *
+     * @return the session, or null if it is not in the store
+     */
+    protected synchronized HarvestSession peek(String id) {
+        return sessions.get(id);
+    }
+
+    /**
+     * Drop the sessions which have not been used for the time to live, which are found at the head of the access
+     * ordered map
+     *
+     * @param dropped receives the ids of the dropped sessions
+     */
+    private void expire(long now, List<String> dropped) {
+        final Iterator<Map.Entry<String, HarvestSession>> eldest = sessions.entrySet().iterator();
+        while (eldest.hasNext()) {
+            final HarvestSession session = eldest.next().getValue();
+            if (session.getLastAccess() + timeToLive >= now) {
+                break;
+            }
+            eldest.remove();
+            bytes -= session.getSize();
+            expirations++;
+            dropped.add(session.getId());
+        }
+    }
+
+    private void removed(List<String> ids) throws IOException {
+        for (String id : ids) {
+            removed(id);
+        }
+    }
+
+    /**
+     * Called after a session has been added or replaced. The lock of the store is not held, so the calls for the
+     * same session may overlap with each other and with {@link #removed(String)}, and implementations have to
+     * check with {@link #peek(String)} whether the session is still the one stored.
+     */
+    protected void stored(HarvestSession session) throws IOException {
+    }
+
+    /**
+     * Called after a session has been removed, evicted or has expired, without holding the lock of the store
+     */
+    protected void removed(String id) throws IOException {
+    }
+
+    @Override
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+}
@@ -0,0 +1,334 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.store;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores serialized record elements in append-only, memory-mapped segment files, so that list pages can be
+ * assembled by copying the stored bytes instead of reading and parsing the metadata datastreams.
+ * <p>
+ * A record is keyed by its identifier and metadata prefix and is only served as long as the last modification date
+ * of its metadata datastream and the datestamp of its header have not changed. Each segment holds a sequence of
+ * CRC32 checked records terminated by a zero length key; the location of the newest record of every key is rebuilt
+ * by scanning the segments on startup. Once more than {@link #setMaxSegments(int)} segments exist the oldest one is
+ * deleted together with the records it contains. Since the store is a cache, records lost by a crash are simply
+ * serialized again.
+ * </p>
+ */
+public class RecordStore {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordStore.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SEGMENT_PREFIX = "records-";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x4f414952;
+
+    private static final int VERSION = 1;
+
+    private static final int SEGMENT_HEADER_SIZE = 8;
+
+    private File directory;
+
+    private int segmentSize = 64 * 1024 * 1024;
+
+    private int maxSegments = 16;
+
+    private final Map<String, Location> locations = new ConcurrentHashMap<>();
+
+    private final ConcurrentNavigableMap<Integer, MappedByteBuffer> segments = new ConcurrentSkipListMap<>();
+
+    private int activeSegment;
+
+    private MappedByteBuffer active;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public void setDirectory(String directory) {
+        this.directory = new File(directory);
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Map the existing segments and rebuild the record locations
+     */
+    public synchronized void open() throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("No directory has been configured for the record store");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create record store directory " + directory.getAbsolutePath());
+        }
+        final String[] names = directory.list(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        final ConcurrentSkipListMap<Integer, File> files = new ConcurrentSkipListMap<>();
+        for (String name : names) {
+            files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length())), new File(directory, name));
+        }
+        for (Map.Entry<Integer, File> file : files.entrySet()) {
+            final MappedByteBuffer buffer = map(file.getValue());
+            if (buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                log.warn("Deleting invalid record store segment {}", file.getValue());
+                delete(file.getValue());
+                continue;
+            }
+            /* only the last segment can contain a torn record, all others have been forced to disk when rolled */
+            buffer.position(scan(file.getKey(), buffer, file.getKey().equals(files.lastKey())));
+            segments.put(file.getKey(), buffer);
+        }
+        if (segments.isEmpty()) {
+            roll();
+        } else {
+            activeSegment = segments.lastKey();
+            active = segments.lastEntry().getValue();
+        }
+        log.info("Opened record store in {} with {} records in {} segments", directory, locations.size(),
+                segments.size());
+    }
+
+    public synchronized void close() {
+        if (active != null) {
+            active.force();
+            active = null;
+        }
+        segments.clear();
+        locations.clear();
+    }
+
+    /**
+     * Get a stored record
+     *
+     * @return a read only buffer containing the serialized record element, or null if no current record is stored
+     */
+    public ByteBuffer get(String identifier, String metadataPrefix, long lastModified, long datestamp) {
+        final Location location = locations.get(key(identifier, metadataPrefix));
+        if (location == null || location.lastModified != lastModified || location.datestamp != datestamp) {
+            misses.incrementAndGet();
+            return null;
+        }
+        final MappedByteBuffer segment = segments.get(location.segment);
+        if (segment == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        final ByteBuffer view = segment.duplicate();
+        view.limit(location.offset + location.length).position(location.offset);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Append a serialized record element to the store, replacing the previously stored version
+     */
+    public synchronized void put(String identifier, String metadataPrefix, long lastModified, long datestamp,
+            byte[] fragment) throws IOException {
+        if (active == null) {
+            throw new IllegalStateException("The record store has not been opened");
+        }
+        final String key = key(identifier, metadataPrefix);
+        final byte[] keyData = key.getBytes(UTF8);
+        final int size = 4 + keyData.length + 8 + 8 + 4 + 8 + fragment.length;
+        if (SEGMENT_HEADER_SIZE + size + 4 > segmentSize) {
+            /* records which do not fit into an empty segment are not stored */
+            return;
+        }
+        if (active.remaining() < size + 4) {
+            roll();
+        }
+        active.putInt(keyData.length).put(keyData).putLong(lastModified).putLong(datestamp).putInt(fragment.length)
+                .putLong(checksum(keyData, fragment));
+        final int offset = active.position();
+        active.put(fragment);
+        /* terminate the segment after the record without advancing the position */
+        active.putInt(active.position(), 0);
+        locations.put(key, new Location(activeSegment, offset, fragment.length, lastModified, datestamp));
+    }
+
+    /**
+     * Delete all stored records
+     */
+    public synchronized void clear() throws IOException {
+        locations.clear();
+        for (Integer segment : segments.keySet()) {
+            segments.remove(segment);
+            delete(segmentFile(segment));
+        }
+        roll();
+    }
+
+    public int size() {
+        return locations.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private int scan(int segment, ByteBuffer buffer, boolean verify) {
+        int pos = SEGMENT_HEADER_SIZE;
+        while (pos + 4 <= buffer.capacity()) {
+            final int keyLength = buffer.getInt(pos);
+            final int dataStart = pos + 4 + keyLength + 8 + 8 + 4 + 8;
+            if (keyLength <= 0 || dataStart > buffer.capacity()) {
+                break;
+            }
+            final int length = buffer.getInt(dataStart - 12);
+            if (length < 0 || dataStart + length > buffer.capacity()) {
+                break;
+            }
+            final byte[] keyData = new byte[keyLength];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(pos + 4);
+            view.get(keyData);
+            final long lastModified = view.getLong();
+            final long datestamp = view.getLong();
+            view.getInt();
+            final long checksum = view.getLong();
+            if (verify) {
+                final byte[] data = new byte[length];
+                view.get(data);
+                if (checksum(keyData, data) != checksum) {
+                    log.warn("Discarding a torn record at the end of record store segment {}", segment);
+                    break;
+                }
+            }
+            locations.put(new String(keyData, UTF8), new Location(segment, dataStart, length, lastModified,
+                    datestamp));
+            pos = dataStart + length;
+        }
+        return pos;
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        final int id = segments.isEmpty() ? activeSegment + 1 : segments.lastKey() + 1;
+        final File file = segmentFile(id);
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+        }
+        final MappedByteBuffer buffer = map(file);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(buffer.position(), 0);
+        segments.put(id, buffer);
+        activeSegment = id;
+        active = buffer;
+        while (segments.size() > maxSegments) {
+            final int oldest = segments.firstKey();
+            segments.remove(oldest);
+            final Iterator<Location> it = locations.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().segment == oldest) {
+                    it.remove();
+                }
+            }
+            delete(segmentFile(oldest));
+        }
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            /* the mapping stays valid after the file has been closed */
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete record store segment " + file);
+        }
+    }
+
+    private static String key(String identifier, String metadataPrefix) {
+        return metadataPrefix + ' ' + identifier;
+    }
+
+    private static long checksum(byte[] key, byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * The location of a stored record
+     */
+    private static class Location {
+
+        private final int segment;
+
+        private final int offset;
+
+        private final int length;
+
+        private final long lastModified;
+
+        private final long datestamp;
+
+        private Location(int segment, int offset, int length, long lastModified, long datestamp) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.datestamp = datestamp;
+        }
+    }
+}
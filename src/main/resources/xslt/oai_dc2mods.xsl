@@ -0,0 +1,96 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!-- Transforms an oai_dc record into a MODS record, see README.md on derived metadata formats -->
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                xmlns:oai_dc="http://www.openarchives.org/OAI/2.0/oai_dc/"
+                xmlns:dc="http://purl.org/dc/elements/1.1/"
+                xmlns="http://www.loc.gov/mods/v3"
+                exclude-result-prefixes="oai_dc dc">
+
+    <xsl:output method="xml" encoding="UTF-8" indent="no"/>
+
+    <xsl:template match="/oai_dc:dc">
+        <mods xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance" version="3.5"
+              xsi:schemaLocation="http://www.loc.gov/mods/v3 http://www.loc.gov/standards/mods/v3/mods-3-5.xsd">
+            <xsl:apply-templates select="dc:title"/>
+            <xsl:apply-templates select="dc:creator | dc:contributor"/>
+            <xsl:apply-templates select="dc:type"/>
+            <xsl:if test="dc:publisher | dc:date">
+                <originInfo>
+                    <xsl:for-each select="dc:publisher">
+                        <publisher><xsl:value-of select="normalize-space(.)"/></publisher>
+                    </xsl:for-each>
+                    <xsl:for-each select="dc:date">
+                        <dateIssued><xsl:value-of select="normalize-space(.)"/></dateIssued>
+                    </xsl:for-each>
+                </originInfo>
+            </xsl:if>
+            <xsl:apply-templates select="dc:language"/>
+            <xsl:apply-templates select="dc:format"/>
+            <xsl:apply-templates select="dc:description"/>
+            <xsl:apply-templates select="dc:subject | dc:coverage"/>
+            <xsl:apply-templates select="dc:identifier"/>
+            <xsl:apply-templates select="dc:relation | dc:source"/>
+            <xsl:apply-templates select="dc:rights"/>
+        </mods>
+    </xsl:template>
+
+    <xsl:template match="dc:title">
+        <titleInfo><title><xsl:value-of select="normalize-space(.)"/></title></titleInfo>
+    </xsl:template>
+
+    <xsl:template match="dc:creator | dc:contributor">
+        <name>
+            <namePart><xsl:value-of select="normalize-space(.)"/></namePart>
+            <role><roleTerm type="text"><xsl:value-of select="local-name()"/></roleTerm></role>
+        </name>
+    </xsl:template>
+
+    <xsl:template match="dc:type">
+        <genre><xsl:value-of select="normalize-space(.)"/></genre>
+    </xsl:template>
+
+    <xsl:template match="dc:language">
+        <language><languageTerm type="code"><xsl:value-of select="normalize-space(.)"/></languageTerm></language>
+    </xsl:template>
+
+    <xsl:template match="dc:format">
+        <physicalDescription><form><xsl:value-of select="normalize-space(.)"/></form></physicalDescription>
+    </xsl:template>
+
+    <xsl:template match="dc:description">
+        <note><xsl:value-of select="normalize-space(.)"/></note>
+    </xsl:template>
+
+    <xsl:template match="dc:subject">
+        <subject><topic><xsl:value-of select="normalize-space(.)"/></topic></subject>
+    </xsl:template>
+
+    <xsl:template match="dc:coverage">
+        <subject><geographic><xsl:value-of select="normalize-space(.)"/></geographic></subject>
+    </xsl:template>
+
+    <xsl:template match="dc:identifier">
+        <xsl:choose>
+            <xsl:when test="starts-with(normalize-space(.), 'http')">
+                <identifier type="uri"><xsl:value-of select="normalize-space(.)"/></identifier>
+            </xsl:when>
+            <xsl:otherwise>
+                <identifier><xsl:value-of select="normalize-space(.)"/></identifier>
+            </xsl:otherwise>
+        </xsl:choose>
+    </xsl:template>
+
+    <xsl:template match="dc:relation | dc:source">
+        <relatedItem>
+            <xsl:if test="self::dc:source">
+                <xsl:attribute name="type">original</xsl:attribute>
+            </xsl:if>
+            <titleInfo><title><xsl:value-of select="normalize-space(.)"/></title></titleInfo>
+        </relatedItem>
+    </xsl:template>
+
+    <xsl:template match="dc:rights">
+        <accessCondition><xsl:value-of select="normalize-space(.)"/></accessCondition>
+    </xsl:template>
+
+</xsl:stylesheet>
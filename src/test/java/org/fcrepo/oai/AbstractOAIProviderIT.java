@@ -27,6 +27,7 @@ import javax.xml.namespace.QName;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
@@ -172,6 +173,22 @@ public abstract class AbstractOAIProviderIT {
         post.releaseConnection();
     }
 
+    protected void addToSets(String id, String... sets) throws Exception {
+        StringBuilder sparql = new StringBuilder("INSERT {");
+        for (String set : sets) {
+            sparql.append("<> ")
+                    .append("<http://fedora.info/definitions/v4/config#isPartOfOAISet> ")
+                    .append("\"").append(set).append("\" . ");
+        }
+        sparql.append("} WHERE {}");
+        HttpPatch patch = new HttpPatch(serverAddress + "/" + id);
+        patch.setEntity(new StringEntity(sparql.toString()));
+        patch.addHeader("Content-Type", "application/sparql-update");
+        HttpResponse resp = this.client.execute(patch);
+        assertEquals(204, resp.getStatusLine().getStatusCode());
+        patch.releaseConnection();
+    }
+
     private void createOaiDcObject(String oaiDcId, InputStream src) throws Exception {
         HttpPost post = new HttpPost(serverAddress + "/");
         post.addHeader("Slug", oaiDcId);
@@ -183,6 +200,11 @@ public abstract class AbstractOAIProviderIT {
     }
 
     protected void createSet(String setName, String setSpec) throws Exception {
+        HttpResponse resp = postSet(setName, setSpec);
+        assertEquals(201, resp.getStatusLine().getStatusCode());
+    }
+
+    protected HttpResponse postSet(String setName, String setSpec) throws Exception {
         final ObjectFactory fac = new ObjectFactory();
         SetType set = fac.createSetType();
         set.setSetName(setName);
@@ -194,7 +216,8 @@ public abstract class AbstractOAIProviderIT {
         HttpPost post = new HttpPost(serverAddress + "/oai/sets");
         post.setEntity(new InputStreamEntity(toStream(set), ContentType.TEXT_XML));
         HttpResponse resp = this.client.execute(post);
-        assertEquals(201, resp.getStatusLine().getStatusCode());
+        post.releaseConnection();
+        return resp;
     }
 
     private InputStream toStream(SetType set) throws JAXBException {
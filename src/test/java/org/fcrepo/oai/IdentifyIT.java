@@ -18,10 +18,14 @@ package org.fcrepo.oai;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import javax.xml.bind.JAXBElement;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
 import org.junit.Test;
 import org.openarchives.oai._2.OAIPMHtype;
 import org.openarchives.oai._2.VerbType;
@@ -41,5 +45,24 @@ public class IdentifyIT extends AbstractOAIProviderIT {
         assertEquals(VerbType.IDENTIFY.value(), oaipmh.getRequest().getVerb().value());
         assertEquals("Fedora 4 Test Instance", oaipmh.getIdentify().getRepositoryName());
         assertEquals(serverAddress, oaipmh.getIdentify().getBaseURL());
+        assertTrue(oaipmh.getIdentify().getCompression().contains("gzip"));
+    }
+
+    @Test
+    public void testIdentifyNotModified() throws Exception {
+        HttpResponse resp = getOAIPMHResponse(VerbType.IDENTIFY.value(), null, null, null, null, null);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        Header etag = resp.getFirstHeader("ETag");
+        assertNotNull(etag);
+        EntityUtils.consume(resp.getEntity());
+
+        HttpGet get = new HttpGet(serverAddress + "/oai?verb=" + VerbType.IDENTIFY.value());
+        get.addHeader("If-None-Match", etag.getValue());
+        try {
+            resp = this.client.execute(get);
+            assertEquals(304, resp.getStatusLine().getStatusCode());
+        } finally {
+            get.releaseConnection();
+        }
     }
 }
@@ -18,6 +18,8 @@ package org.fcrepo.oai;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+
 import javax.xml.bind.JAXBElement;
 
 import org.apache.commons.lang.RandomStringUtils;
@@ -96,6 +98,10 @@ public class ListIdentifiersIT extends AbstractOAIProviderIT {
         assertEquals(0, oaipmh.getError().size());
         assertTrue(oaipmh.getListIdentifiers().getHeader().size() > 0);
         assertNotNull(oaipmh.getRequest().getResumptionToken());
+        assertNotNull(oaipmh.getListIdentifiers().getResumptionToken());
+        assertEquals(oaipmh.getRequest().getResumptionToken(),
+                oaipmh.getListIdentifiers().getResumptionToken().getValue());
+        assertEquals(0, oaipmh.getListIdentifiers().getResumptionToken().getCursor().intValue());
 
         /* resume using the token data provided */
         resp = getOAIPMHResponse(oaipmh.getRequest().getResumptionToken());
@@ -110,6 +116,33 @@ public class ListIdentifiersIT extends AbstractOAIProviderIT {
         assertTrue(oaipmh.getListIdentifiers().getHeader().size() > 0);
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testListIdentifiersTamperedResumptionToken() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            String oaiId = "oai-test-dc-" + RandomStringUtils.randomAlphabetic(16);
+            createFedoraObjectWithOaiRecord("oai-test-" + RandomStringUtils.randomAlphabetic(16), oaiId, null, this
+                    .getClass().getClassLoader().getResourceAsStream("test-data/oaidc.xml"));
+        }
+
+        HttpResponse resp = getOAIPMHResponse(VerbType.LIST_IDENTIFIERS.value(), null, "oai_dc", null, null, null);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        OAIPMHtype oaipmh =
+                ((JAXBElement<OAIPMHtype>) this.unmarshaller.unmarshal(resp.getEntity().getContent())).getValue();
+        final String token = oaipmh.getRequest().getResumptionToken();
+        assertNotNull(token);
+
+        /* flip a character of the token, which invalidates its signature */
+        final char c = token.charAt(token.length() / 2);
+        final String tampered =
+                token.substring(0, token.length() / 2) + (c == 'A' ? 'B' : 'A') + token.substring(token.length() / 2 + 1);
+        resp = getOAIPMHResponse(tampered);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        oaipmh = ((JAXBElement<OAIPMHtype>) this.unmarshaller.unmarshal(resp.getEntity().getContent())).getValue();
+        assertEquals(1, oaipmh.getError().size());
+        assertEquals(OAIPMHerrorcodeType.BAD_RESUMPTION_TOKEN, oaipmh.getError().get(0).getCode());
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void testListIdentifyRecordsFrom() throws Exception {
@@ -169,4 +202,51 @@ public class ListIdentifiersIT extends AbstractOAIProviderIT {
         assertEquals(1, oaipmh.getListIdentifiers().getHeader().get(0).getSetSpec().size());
         assertEquals(setName, oaipmh.getListIdentifiers().getHeader().get(0).getSetSpec().get(0));
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testListIdentifiersFromParentSet() throws Exception {
+        final String parent = "oai-test-set-" + RandomStringUtils.randomAlphabetic(16);
+        final String child = parent + ":child";
+        String oaiId = "oai-test-dc-" + RandomStringUtils.randomAlphabetic(16);
+        createSet(parent, null);
+        createSet("child", child);
+        createFedoraObjectWithOaiRecord("oai-test-" + RandomStringUtils.randomAlphabetic(16), oaiId, child, this
+                .getClass().getClassLoader().getResourceAsStream("test-data/oaidc.xml"));
+
+        HttpResponse resp =
+                getOAIPMHResponse(VerbType.LIST_IDENTIFIERS.value(), null, "oai_dc", null, null, parent);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        OAIPMHtype oaipmh =
+                ((JAXBElement<OAIPMHtype>) this.unmarshaller.unmarshal(resp.getEntity().getContent())).getValue();
+        assertEquals(0, oaipmh.getError().size());
+        assertEquals(1, oaipmh.getListIdentifiers().getHeader().size());
+        assertEquals(child, oaipmh.getListIdentifiers().getHeader().get(0).getSetSpec().get(0));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testListIdentifiersObjectInMoreSetsThanListSize() throws Exception {
+        final String prefix = "oai-test-set-" + RandomStringUtils.randomAlphabetic(16);
+        final String[] sets = new String[7];
+        for (int i = 0; i < sets.length; i++) {
+            sets[i] = prefix + "-" + i;
+            createSet(sets[i], null);
+        }
+        final String id = "oai-test-" + RandomStringUtils.randomAlphabetic(16);
+        String oaiId = "oai-test-dc-" + RandomStringUtils.randomAlphabetic(16);
+        createFedoraObjectWithOaiRecord(id, oaiId, sets[0], this.getClass().getClassLoader().getResourceAsStream(
+                "test-data/oaidc.xml"));
+        addToSets(id, Arrays.copyOfRange(sets, 1, sets.length));
+
+        HttpResponse resp =
+                getOAIPMHResponse(VerbType.LIST_IDENTIFIERS.value(), null, "oai_dc", null, null, sets[0]);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        OAIPMHtype oaipmh =
+                ((JAXBElement<OAIPMHtype>) this.unmarshaller.unmarshal(resp.getEntity().getContent())).getValue();
+        assertEquals(0, oaipmh.getError().size());
+        assertEquals(1, oaipmh.getListIdentifiers().getHeader().size());
+        assertEquals(sets.length, oaipmh.getListIdentifiers().getHeader().get(0).getSetSpec().size());
+        assertNull(oaipmh.getListIdentifiers().getResumptionToken());
+    }
 }
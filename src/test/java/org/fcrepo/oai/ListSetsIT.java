@@ -34,6 +34,14 @@ public class ListSetsIT extends AbstractOAIProviderIT {
         createSet("oai-test-set-" + RandomStringUtils.randomAlphabetic(16), null);
     }
 
+    @Test
+    public void testCreateSetInvalidSetSpec() throws Exception {
+        final String setName = "oai-test-set-" + RandomStringUtils.randomAlphabetic(16);
+        for (String spec : new String[] { setName + "*", setName + "'", setName + "(x)", setName + ":.." }) {
+            assertEquals(400, postSet(setName, spec).getStatusLine().getStatusCode());
+        }
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void testCreateAndListSets() throws Exception {
@@ -49,4 +57,29 @@ public class ListSetsIT extends AbstractOAIProviderIT {
         assertNotNull(oai.getListSets().getSet().get(0).getSetName());
         assertNotNull(oai.getListSets().getSet().get(0).getSetSpec());
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testListSetsResumptionToken() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            createSet("oai-test-set-" + RandomStringUtils.randomAlphabetic(16), null);
+        }
+        HttpResponse resp = getOAIPMHResponse(VerbType.LIST_SETS.value(), null, null, null, null, null);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        OAIPMHtype oai =
+                ((JAXBElement<OAIPMHtype>) this.unmarshaller.unmarshal(resp.getEntity().getContent())).getValue();
+        assertEquals(0, oai.getError().size());
+        assertEquals(5, oai.getListSets().getSet().size());
+        assertNotNull(oai.getListSets().getResumptionToken());
+        assertEquals(0, oai.getListSets().getResumptionToken().getCursor().intValue());
+        assertTrue(oai.getListSets().getResumptionToken().getCompleteListSize().intValue() >= 6);
+
+        /* resume using the token data provided */
+        resp = getOAIPMHResponse(oai.getListSets().getResumptionToken().getValue());
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        oai = ((JAXBElement<OAIPMHtype>) this.unmarshaller.unmarshal(resp.getEntity().getContent())).getValue();
+        assertEquals(0, oai.getError().size());
+        assertTrue(oai.getListSets().getSet().size() > 0);
+        assertEquals(5, oai.getListSets().getResumptionToken().getCursor().intValue());
+    }
 }
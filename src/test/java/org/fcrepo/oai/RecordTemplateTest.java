@@ -0,0 +1,102 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+public class RecordTemplateTest {
+
+    private static final String DC = "http://purl.org/dc/elements/1.1/";
+
+    private RecordTemplate template;
+
+    @Before
+    public void setup() {
+        template = new RecordTemplate();
+        template.setRootElement("oai_dc:dc");
+        final Map<String, String> namespaces = new LinkedHashMap<>();
+        namespaces.put("oai_dc", "http://www.openarchives.org/OAI/2.0/oai_dc/");
+        namespaces.put("dc", DC);
+        template.setNamespaces(namespaces);
+        final Map<String, String> elements = new LinkedHashMap<>();
+        elements.put(DC + "title", "dc:title");
+        elements.put(DC + "relation", "dc:relation");
+        template.setElements(elements);
+        final MetadataFormat mdf = new MetadataFormat();
+        mdf.setPrefix("oai_dc");
+        mdf.setNamespace("http://www.openarchives.org/OAI/2.0/oai_dc/");
+        mdf.setSchemaUrl("http://www.openarchives.org/OAI/2.0/oai_dc.xsd");
+        template.compile(mdf);
+    }
+
+    @Test
+    public void testRender() throws Exception {
+        final Model model = ModelFactory.createDefaultModel();
+        final Resource subject = model.createResource("http://localhost/rest/object");
+        subject.addProperty(model.createProperty(DC + "title"), "Fish & <Chips> \"to go\"");
+        subject.addProperty(model.createProperty(DC + "relation"), model.createResource("http://localhost/rest/o"));
+        final Document doc = parse(template.render(model, subject));
+        assertEquals("oai_dc:dc", doc.getDocumentElement().getTagName());
+        assertEquals("Fish & <Chips> \"to go\"", text(doc, "title"));
+        assertEquals("http://localhost/rest/o", text(doc, "relation"));
+    }
+
+    @Test
+    public void testRenderStripsIllegalCharacters() throws Exception {
+        final Model model = ModelFactory.createDefaultModel();
+        final Resource subject = model.createResource("http://localhost/rest/object");
+        subject.addProperty(model.createProperty(DC + "title"), "a\u0000b\u0001c\u001fd\te\nf\uFFFEg");
+        final Document doc = parse(template.render(model, subject));
+        assertEquals("abcd\te\nfg", text(doc, "title"));
+    }
+
+    @Test
+    public void testEscape() {
+        final String value = "plain text";
+        assertTrue(value == RecordTemplate.escape(value));
+        assertEquals("a&lt;b&gt;&amp;&quot;", RecordTemplate.escape("a<b>&\""));
+        assertEquals("\t\r\n", RecordTemplate.escape("\u0007\t\r\n\u000b"));
+    }
+
+    private static Document parse(byte[] xml) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+
+    private static String text(Document doc, String localName) {
+        final NodeList nodes = doc.getElementsByTagNameNS(DC, localName);
+        assertEquals(1, nodes.getLength());
+        return nodes.item(0).getTextContent();
+    }
+}
@@ -0,0 +1,151 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import static java.util.Arrays.asList;
+import static org.fcrepo.oai.http.CompressionInterceptor.DEFLATE;
+import static org.fcrepo.oai.http.CompressionInterceptor.GZIP;
+import static org.fcrepo.oai.http.CompressionInterceptor.negotiate;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
+import org.apache.commons.io.IOUtils;
+import org.fcrepo.oai.http.CompressionInterceptor.ThresholdOutputStream;
+import org.junit.Test;
+
+public class CompressionInterceptorTest {
+
+    private static final int THRESHOLD = 1024;
+
+    @Test
+    public void testNegotiateNoHeader() {
+        assertNull(negotiate(null, GZIP, DEFLATE));
+        assertNull(negotiate(asList("identity"), GZIP, DEFLATE));
+    }
+
+    @Test
+    public void testNegotiatePreference() {
+        assertEquals(GZIP, negotiate(asList("gzip, deflate"), GZIP, DEFLATE));
+        assertEquals(GZIP, negotiate(asList("deflate", "gzip"), GZIP, DEFLATE));
+        assertEquals(DEFLATE, negotiate(asList("deflate"), GZIP, DEFLATE));
+        assertEquals(GZIP, negotiate(asList("x-gzip"), GZIP, DEFLATE));
+        assertEquals(GZIP, negotiate(asList(" GZIP ;q=0.5"), GZIP, DEFLATE));
+    }
+
+    @Test
+    public void testNegotiateQualityValues() {
+        assertEquals(DEFLATE, negotiate(asList("gzip;q=0.5, deflate;q=0.8"), GZIP, DEFLATE));
+        assertEquals(DEFLATE, negotiate(asList("gzip;q=0, deflate"), GZIP, DEFLATE));
+        assertNull(negotiate(asList("gzip;q=0, deflate;q=0"), GZIP, DEFLATE));
+        /* an unparseable quality value is treated as not acceptable */
+        assertEquals(DEFLATE, negotiate(asList("gzip;q=high, deflate;q=0.1"), GZIP, DEFLATE));
+    }
+
+    @Test
+    public void testNegotiateWildcard() {
+        assertEquals(GZIP, negotiate(asList("*"), GZIP, DEFLATE));
+        assertNull(negotiate(asList("*;q=0"), GZIP, DEFLATE));
+        /* an explicit refusal takes precedence over the wildcard */
+        assertEquals(DEFLATE, negotiate(asList("gzip;q=0, *"), GZIP, DEFLATE));
+        /* an explicitly listed coding takes precedence over the wildcard */
+        assertEquals(DEFLATE, negotiate(asList("deflate;q=0.9, *;q=0.1"), GZIP, DEFLATE));
+        assertEquals(DEFLATE, negotiate(asList("br, deflate, *;q=0"), GZIP, DEFLATE));
+    }
+
+    @Test
+    public void testBelowThresholdIsNotCompressed() throws IOException {
+        final MultivaluedMap<String, Object> headers = headers();
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final ThresholdOutputStream output =
+                new ThresholdOutputStream(sink, headers, GZIP, Deflater.DEFAULT_COMPRESSION, THRESHOLD);
+        final byte[] data = data(THRESHOLD - 1);
+        output.write(data);
+        output.flush();
+        /* nothing may be written before the encoding is known */
+        assertEquals(0, sink.size());
+        output.finish();
+        assertArrayEquals(data, sink.toByteArray());
+        assertFalse(headers.containsKey(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("42", headers.getFirst(HttpHeaders.CONTENT_LENGTH));
+    }
+
+    @Test
+    public void testGzipAboveThreshold() throws IOException {
+        final MultivaluedMap<String, Object> headers = headers();
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final ThresholdOutputStream output =
+                new ThresholdOutputStream(sink, headers, GZIP, Deflater.BEST_SPEED, THRESHOLD);
+        final byte[] data = data(4 * THRESHOLD);
+        /* cross the threshold in the middle of a write */
+        output.write(data, 0, THRESHOLD - 10);
+        assertFalse(headers.containsKey(HttpHeaders.CONTENT_ENCODING));
+        output.write(data, THRESHOLD - 10, 20);
+        assertEquals(GZIP, headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertFalse(headers.containsKey(HttpHeaders.CONTENT_LENGTH));
+        output.write(data, THRESHOLD + 10, data.length - THRESHOLD - 10);
+        output.finish();
+        assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(sink.toByteArray()))));
+    }
+
+    @Test
+    public void testDeflateSingleBytes() throws IOException {
+        final MultivaluedMap<String, Object> headers = headers();
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final ThresholdOutputStream output =
+                new ThresholdOutputStream(sink, headers, DEFLATE, Deflater.DEFAULT_COMPRESSION, THRESHOLD);
+        final byte[] data = data(2 * THRESHOLD);
+        for (byte b : data) {
+            output.write(b);
+        }
+        output.finish();
+        /* finishing twice must not write a second trailer */
+        output.finish();
+        assertEquals(DEFLATE, headers.getFirst(HttpHeaders.CONTENT_ENCODING));
+        final InputStream in = new InflaterInputStream(new ByteArrayInputStream(sink.toByteArray()));
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+    }
+
+    private static MultivaluedMap<String, Object> headers() {
+        final MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+        headers.putSingle(HttpHeaders.CONTENT_LENGTH, "42");
+        return headers;
+    }
+
+    private static byte[] data(int length) {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, (byte) 'a');
+        for (int i = 0; i < length; i += 7) {
+            data[i] = (byte) ('0' + i % 10);
+        }
+        return data;
+    }
+}
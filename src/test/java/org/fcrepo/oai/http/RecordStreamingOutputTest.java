@@ -0,0 +1,233 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBElement;
+
+import org.fcrepo.oai.OAIRecord;
+import org.fcrepo.oai.service.JAXBPool;
+import org.junit.Test;
+import org.openarchives.oai._2.HeaderType;
+import org.openarchives.oai._2.OAIPMHtype;
+import org.openarchives.oai._2.ObjectFactory;
+import org.openarchives.oai._2.RequestType;
+import org.openarchives.oai._2.ResumptionTokenType;
+import org.openarchives.oai._2.VerbType;
+
+public class RecordStreamingOutputTest {
+
+    private static final int POOL_SIZE = 2;
+
+    private static final int STREAMS = 6;
+
+    private static final int RECORDS = 3;
+
+    private final ObjectFactory oaiFactory = new ObjectFactory();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMoreStreamsThanPooledMarshallers() throws Exception {
+        final JAXBPool pool = new JAXBPool(POOL_SIZE);
+        pool.setMaxWait(1000);
+        final CountDownLatch blocked = new CountDownLatch(STREAMS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(STREAMS);
+        try {
+            final List<Future<byte[]>> responses = new ArrayList<>();
+            for (int i = 0; i < STREAMS; i++) {
+                final RecordStreamingOutput output =
+                        new RecordStreamingOutput(pool, request(), new SerializingIterator(pool, "stream-" + i));
+                responses.add(executor.submit(new Callable<byte[]>() {
+
+                    @Override
+                    public byte[] call() throws Exception {
+                        final SlowOutputStream sink = new SlowOutputStream(blocked, release);
+                        output.write(sink);
+                        return sink.toByteArray();
+                    }
+                }));
+            }
+
+            /* every stream is now stuck writing to its client, records still have to be serializable */
+            assertTrue("Not all streams reached the client", blocked.await(10, TimeUnit.SECONDS));
+            RecordStreamingOutput.serializeRecord(pool, new OAIRecord(header("concurrent"),
+                    new ByteArrayInputStream("<test/>".getBytes("UTF-8"))));
+            release.countDown();
+
+            for (Future<byte[]> response : responses) {
+                final OAIPMHtype oai = ((JAXBElement<OAIPMHtype>) pool.getContext().createUnmarshaller()
+                        .unmarshal(new ByteArrayInputStream(response.get(10, TimeUnit.SECONDS)))).getValue();
+                assertEquals(RECORDS, oai.getListRecords().getRecord().size());
+            }
+            assertEquals(0, pool.getTimeoutCount());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSerializedContentInNewEnvelope() throws Exception {
+        final JAXBPool pool = new JAXBPool(POOL_SIZE);
+        final ResumptionTokenType token = oaiFactory.createResumptionTokenType();
+        token.setValue("next");
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        new RecordStreamingOutput(pool, request(), new SerializingIterator(pool, "buffered"), token)
+                .writeContent(content);
+        assertFalse(content.toString("UTF-8").contains("responseDate"));
+
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        new SerializedContentOutput(pool, request(), content.toByteArray()).write(response);
+        final OAIPMHtype oai = ((JAXBElement<OAIPMHtype>) pool.getContext().createUnmarshaller()
+                .unmarshal(new ByteArrayInputStream(response.toByteArray()))).getValue();
+        assertNotNull(oai.getResponseDate());
+        assertEquals(VerbType.LIST_RECORDS, oai.getRequest().getVerb());
+        assertEquals(RECORDS, oai.getListRecords().getRecord().size());
+        assertEquals("buffered-0", oai.getListRecords().getRecord().get(0).getHeader().getIdentifier());
+        assertEquals("next", oai.getListRecords().getResumptionToken().getValue());
+    }
+
+    private RequestType request() {
+        final RequestType req = oaiFactory.createRequestType();
+        req.setVerb(VerbType.LIST_RECORDS);
+        req.setMetadataPrefix("oai_dc");
+        req.setValue("http://localhost/oai");
+        return req;
+    }
+
+    private HeaderType header(String id) {
+        final HeaderType header = oaiFactory.createHeaderType();
+        header.setIdentifier(id);
+        header.setDatestamp("2014-01-01T00:00:00Z");
+        return header;
+    }
+
+    /**
+     * Hydrates records lazily the way the provider does when records are stored or rendered, i.e. by serializing
+     * them with a marshaller of the same pool while the response is being written
+     */
+    private class SerializingIterator implements Iterator<OAIRecord> {
+
+        private final JAXBPool pool;
+
+        private final String prefix;
+
+        private int count;
+
+        private SerializingIterator(JAXBPool pool, String prefix) {
+            this.pool = pool;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return count < RECORDS;
+        }
+
+        @Override
+        public OAIRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final HeaderType header = header(prefix + "-" + count++);
+            try {
+                final byte[] fragment = RecordStreamingOutput.serializeRecord(pool, new OAIRecord(header,
+                        new ByteArrayInputStream("<test/>".getBytes("UTF-8"))));
+                return new OAIRecord(header, ByteBuffer.wrap(fragment));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A client which does not read anything until it is released
+     */
+    private static class SlowOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private final CountDownLatch blocked;
+
+        private final CountDownLatch release;
+
+        private boolean waited;
+
+        private SlowOutputStream(CountDownLatch blocked, CountDownLatch release) {
+            this.blocked = blocked;
+            this.release = release;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            await();
+            data.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            await();
+            data.write(b, off, len);
+        }
+
+        private void await() throws IOException {
+            if (waited) {
+                return;
+            }
+            waited = true;
+            blocked.countDown();
+            try {
+                if (!release.await(30, TimeUnit.SECONDS)) {
+                    throw new IOException("The client has not been released");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return data.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DatestampIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DatestampIndex index;
+
+    @Before
+    public void setup() throws IOException {
+        index = open();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void testScanOrder() throws Exception {
+        index.put(entry("/objects/c", 2000));
+        index.put(entry("/objects/a", 3000));
+        index.put(entry("/objects/b", 2000));
+        index.put(entry("/objects/d", 1000));
+
+        assertEquals(Arrays.asList("/objects/d", "/objects/b", "/objects/c", "/objects/a"), scan(0, Long.MAX_VALUE));
+        assertEquals(Arrays.asList("/objects/b", "/objects/c"), scan(2000, 2000));
+        assertEquals(Arrays.asList("/objects/c", "/objects/a"),
+                paths(index.scan(0, Long.MAX_VALUE, 2000L, "/objects/b")));
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    public void testPutAndRemove() throws Exception {
+        index.put(entry("/objects/a", 1000));
+        index.put(entry("/objects/b", 2000));
+        /* a modified object moves to its new datestamp */
+        index.put(entry("/objects/a", 3000));
+        assertEquals(Arrays.asList("/objects/b", "/objects/a"), scan(0, Long.MAX_VALUE));
+        assertEquals(3000, index.get("/objects/a").getDatestamp());
+
+        index.remove("/objects/b");
+        assertNull(index.get("/objects/b"));
+        assertEquals(Arrays.asList("/objects/a"), scan(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPutFormat() throws Exception {
+        assertTrue(index.putFormat("/objects/a", 1000, "oai_dc", "/objects/a/dc", sets("s1")));
+        assertTrue(index.putFormat("/objects/a", 1000, "mods", "/objects/a/mods", sets("s1")));
+        /* indexing an unchanged record again does not modify the index */
+        final long modCount = index.getModCount();
+        assertFalse(index.putFormat("/objects/a", 1000, "oai_dc", "/objects/a/dc", sets("s1")));
+        assertEquals(modCount, index.getModCount());
+        assertEquals(2, index.get("/objects/a").getDatastreams().size());
+
+        /* a modified object starts over with the formats indexed after the modification */
+        assertTrue(index.putFormat("/objects/a", 2000, "oai_dc", "/objects/a/dc", sets("s1", "s2")));
+        final IndexEntry entry = index.get("/objects/a");
+        assertEquals(Collections.singleton("oai_dc"), entry.getDatastreams().keySet());
+        assertEquals(sets("s1", "s2"), entry.getSets());
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        index.put(entry("/objects/a", 1000));
+        index.put(entry("/objects/b", 2000));
+        index.remove("/objects/a");
+        index.setWatermark(2000);
+        index.close();
+
+        index = open();
+        assertEquals(Arrays.asList("/objects/b"), scan(0, Long.MAX_VALUE));
+        assertEquals(2000, index.getWatermark());
+    }
+
+    @Test
+    public void testTruncatedLogTail() throws Exception {
+        index.put(entry("/objects/a", 1000));
+        index.put(entry("/objects/b", 2000));
+        index.close();
+        final long length = logFile().length();
+        truncate(logFile(), length - 3);
+
+        index = open();
+        assertEquals(Arrays.asList("/objects/a"), scan(0, Long.MAX_VALUE));
+        assertTrue(logFile().length() < length - 3);
+
+        /* records appended after the torn one survive the next restart */
+        index.put(entry("/objects/c", 3000));
+        index.close();
+        index = open();
+        assertEquals(Arrays.asList("/objects/a", "/objects/c"), scan(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testCorruptLogTail() throws Exception {
+        index.put(entry("/objects/a", 1000));
+        index.put(entry("/objects/b", 2000));
+        index.close();
+        final long length = logFile().length();
+        try (final RandomAccessFile raf = new RandomAccessFile(logFile(), "rw")) {
+            raf.seek(length - 1);
+            final int last = raf.read();
+            raf.seek(length - 1);
+            raf.write(last ^ 0xff);
+        }
+
+        index = open();
+        assertEquals(Arrays.asList("/objects/a"), scan(0, Long.MAX_VALUE));
+        assertNull(index.get("/objects/b"));
+    }
+
+    @Test
+    public void testCompactionWhileScanning() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            index.put(entry("/objects/" + i, 1000 + i));
+        }
+        final Iterator<IndexEntry> scan = index.scan(0, Long.MAX_VALUE, null, null);
+        assertEquals("/objects/0", scan.next().getPath());
+
+        index.compact();
+        index.put(entry("/objects/new", 1005));
+        index.remove("/objects/7");
+
+        /* the open scan keeps reading the state it has been started on */
+        final List<String> rest = paths(scan);
+        assertEquals(Arrays.asList("/objects/1", "/objects/2", "/objects/3", "/objects/4", "/objects/5", "/objects/6",
+                "/objects/7", "/objects/8", "/objects/9"), rest);
+        assertEquals(Arrays.asList("/objects/0", "/objects/1", "/objects/2", "/objects/3", "/objects/4",
+                "/objects/5", "/objects/new", "/objects/6", "/objects/8", "/objects/9"), scan(0, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testReopenAfterCompaction() throws Exception {
+        index.close();
+        index = new DatestampIndex();
+        index.setDirectory(folder.getRoot().getAbsolutePath());
+        index.setCompactionThreshold(5);
+        index.open();
+        for (int i = 0; i < 6; i++) {
+            index.put(entry("/objects/" + i, 1000 + i));
+        }
+        /* the fifth entry triggered the compaction, the log only holds the changes made since */
+        assertTrue(new File(folder.getRoot(), "datestamps.idx").exists());
+        index.put(entry("/objects/1", 2000));
+        index.remove("/objects/2");
+        index.setWatermark(2000);
+        index.close();
+
+        index = open();
+        assertEquals(Arrays.asList("/objects/0", "/objects/3", "/objects/4", "/objects/5", "/objects/1"),
+                scan(0, Long.MAX_VALUE));
+        assertEquals(2000, index.get("/objects/1").getDatestamp());
+        assertNull(index.get("/objects/2"));
+        assertEquals(2000, index.getWatermark());
+
+        index.compact();
+        index.close();
+        index = open();
+        assertEquals(0, logFile().length());
+        assertEquals(5, index.size());
+        assertEquals(2000, index.getWatermark());
+    }
+
+    private DatestampIndex open() throws IOException {
+        final DatestampIndex idx = new DatestampIndex();
+        idx.setDirectory(folder.getRoot().getAbsolutePath());
+        idx.open();
+        return idx;
+    }
+
+    private File logFile() {
+        return new File(folder.getRoot(), "datestamps.log");
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private List<String> scan(long from, long until) {
+        return paths(index.scan(from, until, null, null));
+    }
+
+    private static List<String> paths(Iterator<IndexEntry> entries) {
+        final List<String> paths = new ArrayList<>();
+        while (entries.hasNext()) {
+            paths.add(entries.next().getPath());
+        }
+        return paths;
+    }
+
+    private static IndexEntry entry(String path, long datestamp) {
+        final Map<String, String> datastreams = Collections.singletonMap("oai_dc", path + "/dc");
+        return new IndexEntry(path, datestamp, datastreams, sets("s1"));
+    }
+
+    private static List<String> sets(String... sets) {
+        return Arrays.asList(sets);
+    }
+}
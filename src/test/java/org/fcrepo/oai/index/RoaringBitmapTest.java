@@ -0,0 +1,162 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RoaringBitmapTest {
+
+    private static RoaringBitmap bitmap(BitSet values) {
+        final RoaringBitmap bitmap = new RoaringBitmap();
+        for (int v = values.nextSetBit(0); v >= 0; v = values.nextSetBit(v + 1)) {
+            bitmap.add(v);
+        }
+        return bitmap;
+    }
+
+    private static BitSet random(Random random, int bound, int count) {
+        final BitSet values = new BitSet();
+        for (int i = 0; i < count; i++) {
+            values.set(random.nextInt(bound));
+        }
+        return values;
+    }
+
+    private static void assertSame(BitSet expected, RoaringBitmap actual) {
+        assertEquals(expected.cardinality(), actual.getCardinality());
+        int v = actual.next(0);
+        for (int e = expected.nextSetBit(0); e >= 0; e = expected.nextSetBit(e + 1)) {
+            assertEquals(e, v);
+            assertTrue(actual.contains(e));
+            v = actual.next(v + 1);
+        }
+        assertEquals(-1, v);
+    }
+
+    @Test
+    public void testAddContainsNext() {
+        final RoaringBitmap bitmap = new RoaringBitmap();
+        bitmap.add(70000);
+        bitmap.add(3);
+        bitmap.add(65535);
+        bitmap.add(3);
+        assertEquals(3, bitmap.getCardinality());
+        assertTrue(bitmap.contains(3));
+        assertTrue(bitmap.contains(65535));
+        assertFalse(bitmap.contains(65536));
+        assertEquals(3, bitmap.next(0));
+        assertEquals(65535, bitmap.next(4));
+        assertEquals(70000, bitmap.next(65536));
+        assertEquals(-1, bitmap.next(70001));
+        assertEquals(-1, new RoaringBitmap().next(0));
+    }
+
+    @Test
+    public void testContainerConversion() {
+        final BitSet values = new BitSet();
+        final RoaringBitmap bitmap = new RoaringBitmap();
+        for (int v = 0; v < 4096 * 2; v += 2) {
+            values.set(v);
+            bitmap.add(v);
+        }
+        /* a full array container takes two bytes per value */
+        final long arraySize = bitmap.getSizeInBytes();
+        assertTrue(arraySize >= 4096 * 2);
+        assertTrue(arraySize < 8192 + 512);
+        bitmap.add(1);
+        values.set(1);
+        /* one more value turns it into a bitmap of 8 kilobytes */
+        assertTrue(bitmap.getSizeInBytes() >= 8192);
+        assertSame(values, bitmap);
+
+        /* an intersection small enough is stored as an array again */
+        final RoaringBitmap sparse = new RoaringBitmap();
+        sparse.add(1);
+        sparse.add(2);
+        sparse.add(3);
+        final RoaringBitmap dense = new RoaringBitmap();
+        for (int v = 0; v < 10000; v++) {
+            dense.add(v);
+        }
+        final RoaringBitmap and = RoaringBitmap.and(bitmap, dense);
+        final BitSet expected = (BitSet) values.clone();
+        expected.clear(10000, Integer.MAX_VALUE);
+        assertSame(expected, and);
+        /* the intersection holds more values than an array container does */
+        assertTrue(and.getSizeInBytes() >= 8192);
+        final RoaringBitmap small = RoaringBitmap.and(bitmap, sparse);
+        assertTrue(small.getSizeInBytes() < 1024);
+        final BitSet smallExpected = new BitSet();
+        smallExpected.set(1);
+        smallExpected.set(2);
+        assertSame(smallExpected, small);
+    }
+
+    @Test
+    public void testAndOr() {
+        final Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            /* mix sparse and dense chunks over several keys */
+            final BitSet a = random(random, 300000, round % 2 == 0 ? 2000 : 150000);
+            final BitSet b = random(random, 300000, round % 3 == 0 ? 100000 : 3000);
+            final RoaringBitmap ra = bitmap(a);
+            final RoaringBitmap rb = bitmap(b);
+
+            final BitSet and = (BitSet) a.clone();
+            and.and(b);
+            assertSame(and, RoaringBitmap.and(ra, rb));
+            assertSame(and, RoaringBitmap.and(rb, ra));
+
+            final BitSet or = (BitSet) a.clone();
+            or.or(b);
+            assertSame(or, RoaringBitmap.or(ra, rb));
+            assertSame(or, RoaringBitmap.or(rb, ra));
+
+            /* the operands are not modified */
+            assertSame(a, ra);
+            assertSame(b, rb);
+        }
+    }
+
+    @Test
+    public void testRangeCardinality() {
+        final Random random = new Random(7);
+        final BitSet values = random(random, 400000, 120000);
+        values.set(0);
+        values.set(65535);
+        values.set(65536);
+        final RoaringBitmap bitmap = bitmap(values);
+        final int[][] ranges = { { 0, 1 }, { 0, 65536 }, { 65535, 65537 }, { 0, 400000 }, { 100, 100 },
+                { 131072, 196608 }, { 131071, 196609 }, { 399999, 500000 }, { 500000, 600000 } };
+        for (int[] range : ranges) {
+            assertEquals(values.get(range[0], range[1]).cardinality(),
+                    bitmap.getCardinality(range[0], range[1]));
+        }
+        for (int i = 0; i < 200; i++) {
+            final int from = random.nextInt(400000);
+            final int to = from + random.nextInt(150000);
+            assertEquals(values.get(from, to).cardinality(), bitmap.getCardinality(from, to));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SetIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DatestampIndex index;
+
+    @Before
+    public void setup() throws IOException {
+        index = new DatestampIndex();
+        index.setDirectory(folder.getRoot().getAbsolutePath());
+        index.setJournalSize(10);
+        index.open();
+        for (int i = 0; i < 20; i++) {
+            index.put(entry("/objects/" + (char) ('a' + i), 1000 + i * 10, i % 2 == 0 ? "even" : "odd"));
+        }
+    }
+
+    @After
+    public void teardown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void testScanAndCount() {
+        final SetIndex setIndex = SetIndex.build(index);
+        assertTrue(setIndex.isCurrent());
+        assertEquals(0, setIndex.getPendingChanges());
+        assertEquals(20, setIndex.size());
+        assertEquals(2, setIndex.getSetCount());
+        assertEquals(Arrays.asList("/objects/a", "/objects/c", "/objects/e"),
+                paths(setIndex.scan(1000, 1040, null, null, sets("even"), "oai_dc")));
+        assertEquals(Arrays.asList("/objects/e"),
+                paths(setIndex.scan(1000, 1040, 1020L, "/objects/c", sets("even"), "oai_dc")));
+        assertEquals(3, setIndex.count(1000, 1040, sets("even"), "oai_dc"));
+        assertEquals(20, setIndex.count(Long.MIN_VALUE, Long.MAX_VALUE, null, "oai_dc"));
+        assertEquals(0, setIndex.count(Long.MIN_VALUE, Long.MAX_VALUE, null, "mods"));
+        assertEquals(0, setIndex.count(Long.MIN_VALUE, Long.MAX_VALUE, sets("none"), "oai_dc"));
+    }
+
+    @Test
+    public void testPatchModifiedEntries() throws IOException {
+        final SetIndex setIndex = SetIndex.build(index);
+        /* moved to the end and into the other set, a new object, a removed one and one moved within the range */
+        index.put(entry("/objects/a", 2000, "odd"));
+        index.put(entry("/objects/new", 1015, "even"));
+        index.remove("/objects/c");
+        index.put(entry("/objects/e", 1005, "even"));
+        assertEquals(4, setIndex.getPendingChanges());
+
+        final SetIndex rebuilt = SetIndex.build(index);
+        for (Collection<String> sets : Arrays.asList(sets("even"), sets("odd"), sets("even", "odd"), null)) {
+            for (long[] range : new long[][] { { Long.MIN_VALUE, Long.MAX_VALUE }, { 1000, 1040 },
+                    { 1010, 1015 }, { 1900, 2000 } }) {
+                assertEquals(paths(rebuilt.scan(range[0], range[1], null, null, sets, "oai_dc")),
+                        paths(setIndex.scan(range[0], range[1], null, null, sets, "oai_dc")));
+                assertEquals(paths(rebuilt.scan(range[0], range[1], 1005L, "/objects/e", sets, "oai_dc")),
+                        paths(setIndex.scan(range[0], range[1], 1005L, "/objects/e", sets, "oai_dc")));
+                assertEquals(rebuilt.count(range[0], range[1], sets, "oai_dc"),
+                        setIndex.count(range[0], range[1], sets, "oai_dc"));
+            }
+        }
+        assertEquals(Arrays.asList("/objects/e", "/objects/new", "/objects/g"),
+                paths(setIndex.scan(1000, 1060, null, null, sets("even"), "oai_dc")));
+    }
+
+    @Test
+    public void testJournalOverrun() throws IOException {
+        final SetIndex setIndex = SetIndex.build(index);
+        for (int i = 0; i < 11; i++) {
+            index.put(entry("/objects/" + (char) ('a' + i), 3000 + i, "even"));
+        }
+        assertEquals(-1, setIndex.getPendingChanges());
+        assertNull(index.getModifiedPaths(index.getModCount() - 11));
+        try {
+            setIndex.count(Long.MIN_VALUE, Long.MAX_VALUE, null, "oai_dc");
+            throw new AssertionError("An outdated index must not be used");
+        } catch (IllegalStateException e) {
+            /* expected */
+        }
+        assertEquals(0, SetIndex.build(index).getPendingChanges());
+    }
+
+    @Test
+    public void testModifiedPaths() throws IOException {
+        final long modCount = index.getModCount();
+        assertEquals(Collections.<String>emptySet(), index.getModifiedPaths(modCount));
+        index.put(entry("/objects/b", 5000, "odd"));
+        index.put(entry("/objects/a", 5000, "odd"));
+        index.put(entry("/objects/b", 5001, "odd"));
+        assertEquals(Arrays.asList("/objects/b", "/objects/a"), new ArrayList<>(index.getModifiedPaths(modCount)));
+        assertNull(index.getModifiedPaths(modCount + 4));
+    }
+
+    private static List<String> paths(Iterator<IndexEntry> entries) {
+        final List<String> paths = new ArrayList<>();
+        while (entries.hasNext()) {
+            paths.add(entries.next().getPath());
+        }
+        return paths;
+    }
+
+    private static IndexEntry entry(String path, long datestamp, String set) {
+        final Map<String, String> datastreams = Collections.singletonMap("oai_dc", path + "/dc");
+        return new IndexEntry(path, datestamp, datastreams, sets(set));
+    }
+
+    private static List<String> sets(String... sets) {
+        return Arrays.asList(sets);
+    }
+}
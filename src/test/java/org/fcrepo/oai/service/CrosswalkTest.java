@@ -0,0 +1,108 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import javax.xml.transform.TransformerException;
+
+import org.fcrepo.oai.MetadataFormat;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CrosswalkTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SECRET = "do-not-disclose";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Crosswalk crosswalk;
+
+    private MetadataFormat mods;
+
+    @Before
+    public void setup() {
+        crosswalk = new Crosswalk(65536);
+        mods = new MetadataFormat();
+        mods.setPrefix("mods");
+        mods.setSourcePrefix("oai_dc");
+        mods.setStylesheet("classpath:xslt/oai_dc2mods.xsl");
+    }
+
+    @Test
+    public void testTransform() throws Exception {
+        try (final InputStream src = getClass().getResourceAsStream("/test-data/oaidc.xml")) {
+            final String record = new String(crosswalk.transform(mods, "/objects/a/dc", 1000, src), UTF8);
+            assertTrue(record.contains("<title>New railroad map of the state of Maryland"));
+            assertFalse(record.startsWith("<?xml"));
+        }
+        /* the second transformation is served from the cache */
+        crosswalk.transform(mods, "/objects/a/dc", 1000, null);
+        assertEquals(1, crosswalk.getHits());
+        assertEquals(1, crosswalk.getMisses());
+    }
+
+    @Test
+    public void testRejectExternalEntity() throws Exception {
+        final File secret = folder.newFile();
+        Files.write(secret.toPath(), SECRET.getBytes(UTF8));
+        assertRejected("<!DOCTYPE dc [<!ENTITY xxe SYSTEM \"" + secret.toURI() + "\">]>" + dc("&xxe;"));
+    }
+
+    @Test
+    public void testRejectExternalDtd() throws Exception {
+        final File dtd = folder.newFile();
+        Files.write(dtd.toPath(), "<!ENTITY title \"from the dtd\">".getBytes(UTF8));
+        assertRejected("<!DOCTYPE dc SYSTEM \"" + dtd.toURI() + "\">" + dc("&title;"));
+    }
+
+    @Test
+    public void testRejectInternalSubset() throws Exception {
+        /* entity expansion of an internal subset could still exhaust the memory */
+        assertRejected("<!DOCTYPE dc [<!ENTITY a \"aaaaaaaaaa\">]>" + dc("&a;&a;"));
+    }
+
+    private void assertRejected(String source) {
+        try {
+            final byte[] record = crosswalk.transform(mods, "/objects/a/dc", 1000,
+                    new ByteArrayInputStream(source.getBytes(UTF8)));
+            fail("The source datastream has been transformed to " + new String(record, UTF8));
+        } catch (TransformerException e) {
+            assertFalse(String.valueOf(e.getMessage()).contains(SECRET));
+        }
+        assertEquals(0, crosswalk.size());
+    }
+
+    private static String dc(String title) {
+        return "<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\" "
+                + "xmlns:dc=\"http://purl.org/dc/elements/1.1/\"><dc:title>" + title + "</dc:title></oai_dc:dc>";
+    }
+}
@@ -0,0 +1,57 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.fcrepo.oai.service.DumpGenerator.Format;
+import org.junit.Test;
+
+public class DumpGeneratorTest {
+
+    @Test
+    public void testPlainPrefix() {
+        assertEquals("oai_dc.xml.gz", DumpGenerator.dumpName("oai_dc", null, Format.XML));
+        assertEquals("oai_dc.ndjson.gz", DumpGenerator.dumpName("oai_dc", "", Format.NDJSON));
+    }
+
+    @Test
+    public void testReplacedCharactersDoNotCollide() {
+        final String colon = DumpGenerator.dumpName("oai_dc", "a:b", Format.XML);
+        final String underscore = DumpGenerator.dumpName("oai_dc", "a_b", Format.XML);
+        assertTrue(colon.startsWith("oai_dc-a_b-"));
+        assertTrue(underscore.startsWith("oai_dc-a_b-"));
+        assertFalse(colon.equals(underscore));
+    }
+
+    @Test
+    public void testPrefixAndSetDoNotCollide() {
+        assertFalse(DumpGenerator.dumpName("a-b", null, Format.XML).equals(
+                DumpGenerator.dumpName("a", "b", Format.XML)));
+        assertFalse(DumpGenerator.dumpName("a-b", "c", Format.XML).equals(
+                DumpGenerator.dumpName("a", "b-c", Format.XML)));
+    }
+
+    @Test
+    public void testNamesAreStableAndServable() {
+        final String name = DumpGenerator.dumpName("oai_dc", "col:1/sub 2", Format.NDJSON);
+        assertTrue(name.matches("oai_dc-col_1_sub_2-[0-9a-f]{8}\\.ndjson\\.gz"));
+        assertEquals(name, DumpGenerator.dumpName("oai_dc", "col:1/sub 2", Format.NDJSON));
+    }
+}
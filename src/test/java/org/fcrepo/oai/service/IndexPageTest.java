@@ -0,0 +1,122 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.fcrepo.oai.index.DatestampIndex;
+import org.fcrepo.oai.index.IndexEntry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexPageTest {
+
+    private static final int MAX_LIST_SIZE = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DatestampIndex index;
+
+    @Before
+    public void setup() throws IOException {
+        index = new DatestampIndex();
+        index.setDirectory(folder.getRoot().getAbsolutePath());
+        index.open();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        index.close();
+    }
+
+    @Test
+    public void testHarvestExactMultipleOfPageSize() throws Exception {
+        for (int i = 0; i < 3 * MAX_LIST_SIZE; i++) {
+            index.put(entry(String.format("/objects/%02d", i), 1000 + i, "oai_dc", "s1"));
+        }
+        /* entries without a record of the format follow the last page */
+        index.put(entry("/objects/mods", 5000, "mods", "s1"));
+        assertEquals(Arrays.asList(5, 5, 5), harvest("oai_dc", null));
+    }
+
+    @Test
+    public void testHarvestPartialLastPage() throws Exception {
+        for (int i = 0; i < 2 * MAX_LIST_SIZE + 2; i++) {
+            index.put(entry(String.format("/objects/%02d", i), 1000 + i, "oai_dc", "s1"));
+        }
+        assertEquals(Arrays.asList(5, 5, 2), harvest("oai_dc", null));
+    }
+
+    @Test
+    public void testHarvestExactMultipleOfPageSizeInSet() throws Exception {
+        for (int i = 0; i < 4 * MAX_LIST_SIZE; i++) {
+            index.put(entry(String.format("/objects/%02d", i), 1000 + i, "oai_dc", i % 2 == 0 ? "s1" : "s2"));
+        }
+        assertEquals(Arrays.asList(5, 5), harvest("oai_dc", Collections.singletonList("s1")));
+    }
+
+    @Test
+    public void testEmptyList() throws Exception {
+        final List<IndexEntry> page = new ArrayList<>();
+        assertFalse(OAIProviderService.takeIndexPage(index.scan(Long.MIN_VALUE, Long.MAX_VALUE, null, null),
+                "oai_dc", null, MAX_LIST_SIZE, page));
+        assertTrue(page.isEmpty());
+    }
+
+    /**
+     * Harvest all pages, continuing after the last entry of a page as long as more entries are announced
+     *
+     * @return the sizes of the pages
+     */
+    private List<Integer> harvest(String metadataPrefix, Collection<String> sets) {
+        final List<Integer> sizes = new ArrayList<>();
+        Long afterDatestamp = null;
+        String afterPath = null;
+        boolean more;
+        do {
+            final List<IndexEntry> page = new ArrayList<>();
+            more = OAIProviderService.takeIndexPage(index.scan(Long.MIN_VALUE, Long.MAX_VALUE, afterDatestamp,
+                    afterPath), metadataPrefix, sets, MAX_LIST_SIZE, page);
+            /* a resumption token must never lead to an empty page */
+            assertFalse(page.isEmpty());
+            sizes.add(page.size());
+            final IndexEntry last = page.get(page.size() - 1);
+            afterDatestamp = last.getDatestamp();
+            afterPath = last.getPath();
+        } while (more);
+        return sizes;
+    }
+
+    private static IndexEntry entry(String path, long datestamp, String metadataPrefix, String set) {
+        final Map<String, String> datastreams = Collections.singletonMap(metadataPrefix, path + "/" + metadataPrefix);
+        return new IndexEntry(path, datestamp, datastreams, Collections.singletonList(set));
+    }
+}
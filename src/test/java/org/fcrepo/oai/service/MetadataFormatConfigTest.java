@@ -0,0 +1,78 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.fcrepo.oai.MetadataFormat;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetadataFormatConfigTest {
+
+    private OAIProviderService service;
+
+    @Before
+    public void setup() throws Exception {
+        service = new OAIProviderService();
+    }
+
+    @Test
+    public void testSixtyFourFormats() {
+        service.setMetadataFormats(formats(Long.SIZE));
+        assertEquals(Long.SIZE, service.getMetadataFormats().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyFormats() {
+        service.setMetadataFormats(formats(Long.SIZE + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyDiffersFromPrefix() {
+        final Map<String, MetadataFormat> formats = formats(1);
+        formats.put("mods", formats.remove("format0"));
+        service.setMetadataFormats(formats);
+    }
+
+    @Test
+    public void testFormatsAddedLaterAreIgnored() {
+        final Map<String, MetadataFormat> formats = formats(2);
+        service.setMetadataFormats(formats);
+        formats.put("format2", format("format2"));
+        assertEquals(2, service.getMetadataFormats().size());
+    }
+
+    private static Map<String, MetadataFormat> formats(int count) {
+        final Map<String, MetadataFormat> formats = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            formats.put("format" + i, format("format" + i));
+        }
+        return formats;
+    }
+
+    private static MetadataFormat format(String prefix) {
+        final MetadataFormat mdf = new MetadataFormat();
+        mdf.setPrefix(prefix);
+        mdf.setNamespace("http://example.org/" + prefix);
+        mdf.setPropertyName("http://example.org/has_" + prefix);
+        return mdf;
+    }
+}
@@ -0,0 +1,44 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import java.util.Collection;
+
+import org.fcrepo.oai.MetadataFormat;
+import org.fcrepo.oai.ResumptionToken;
+
+/**
+ * Exposes the package private parts of the provider service which are run for every page or record, so that they
+ * can be measured by the benchmarks
+ */
+public class OAIProviderServiceAccessor {
+
+    private final OAIProviderService service;
+
+    public OAIProviderServiceAccessor(OAIProviderService service) {
+        this.service = service;
+    }
+
+    public String buildListQuery(MetadataFormat mdf, String from, String until, Collection<String> sets,
+            ResumptionToken token, boolean cursor, int limit) {
+        return service.buildListQuery(mdf, from, until, sets, token, cursor, limit);
+    }
+
+    public String formatDatestamp(long millis) {
+        return service.formatDatestamp(millis);
+    }
+}
@@ -0,0 +1,126 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.codec.binary.Base64;
+import org.fcrepo.oai.ResumptionToken;
+import org.junit.Test;
+
+public class ResumptionTokenCodecTest {
+
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes();
+
+    private final ResumptionTokenCodec codec = new ResumptionTokenCodec(SECRET, 0);
+
+    private static long now() {
+        /* tokens keep the time they have been issued at with a precision of seconds */
+        return System.currentTimeMillis() / 1000 * 1000;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final long issued = now();
+        final ResumptionToken token = new ResumptionToken("ListRecords", "oai_dc", "2014-01-01T00:00:00Z",
+                "2014-12-31T23:59:59Z", 250, "a:b", "2014-06-01T12:00:00.123Z", "http://localhost/rest/object",
+                200, issued);
+        final ResumptionToken decoded = codec.decode(codec.encode(token));
+        assertEquals("ListRecords", decoded.getVerb());
+        assertEquals("oai_dc", decoded.getMetadataPrefix());
+        assertEquals("2014-01-01T00:00:00Z", decoded.getFrom());
+        assertEquals("2014-12-31T23:59:59Z", decoded.getUntil());
+        assertEquals("a:b", decoded.getSet());
+        assertEquals(250, decoded.getOffset());
+        assertEquals(200, decoded.getCursor());
+        assertEquals(issued, decoded.getIssued());
+        assertEquals("2014-06-01T12:00:00.123Z", decoded.getLastDatestamp());
+        assertEquals("http://localhost/rest/object", decoded.getLastIdentifier());
+    }
+
+    @Test
+    public void testRoundTripOptionalFields() {
+        final ResumptionToken token = new ResumptionToken("ListSets", null, null, null, 5, null, null, null, 5,
+                now());
+        final ResumptionToken decoded = codec.decode(codec.encode(token));
+        assertEquals("ListSets", decoded.getVerb());
+        assertNull(decoded.getMetadataPrefix());
+        assertNull(decoded.getFrom());
+        assertNull(decoded.getUntil());
+        assertNull(decoded.getSet());
+        assertNull(decoded.getLastDatestamp());
+        assertNull(decoded.getLastIdentifier());
+        assertEquals(5, decoded.getOffset());
+    }
+
+    @Test
+    public void testTampered() {
+        final String encoded = codec.encode(new ResumptionToken("ListIdentifiers", "oai_dc", null, null, 10, null,
+                null, null, 10, now()));
+        final byte[] data = Base64.decodeBase64(encoded);
+        for (int i = 1; i < data.length; i++) {
+            final byte[] tampered = data.clone();
+            tampered[i] ^= 1;
+            assertRejected(Base64.encodeBase64URLSafeString(tampered));
+        }
+        /* a token signed with another key */
+        final ResumptionTokenCodec other = new ResumptionTokenCodec(0);
+        assertRejected(other.encode(codec.decode(encoded)));
+        assertRejected(encoded.substring(0, encoded.length() - 4));
+        assertRejected("");
+        assertRejected("not a token");
+    }
+
+    @Test
+    public void testExpired() {
+        final ResumptionTokenCodec expiring = new ResumptionTokenCodec(SECRET, 60000);
+        final ResumptionToken fresh = new ResumptionToken("ListRecords", "oai_dc", null, null, 10, null, null,
+                null, 10, now() - 30000);
+        assertEquals(10, expiring.decode(expiring.encode(fresh)).getOffset());
+        assertEquals(fresh.getIssued() + 60000, expiring.getExpiration(fresh));
+        final ResumptionToken stale = new ResumptionToken("ListRecords", "oai_dc", null, null, 10, null, null,
+                null, 10, now() - 120000);
+        final String encoded = expiring.encode(stale);
+        assertRejected(expiring, encoded);
+        /* tokens do not expire without a time to live */
+        assertEquals(10, codec.decode(encoded).getOffset());
+        assertEquals(0, codec.getExpiration(stale));
+    }
+
+    @Test
+    public void testVersionMismatch() {
+        final byte[] data = Base64.decodeBase64(codec.encode(new ResumptionToken("ListRecords", "oai_dc", null,
+                null, 10, null, null, null, 10, now())));
+        data[0] = 2;
+        assertRejected(Base64.encodeBase64URLSafeString(data));
+    }
+
+    private void assertRejected(String token) {
+        assertRejected(codec, token);
+    }
+
+    private static void assertRejected(ResumptionTokenCodec codec, String token) {
+        try {
+            codec.decode(token);
+            fail("The token " + token + " has been accepted");
+        } catch (IllegalArgumentException e) {
+            /* expected */
+        }
+    }
+}
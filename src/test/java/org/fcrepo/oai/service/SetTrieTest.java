@@ -0,0 +1,74 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SetTrieTest {
+
+    @Test
+    public void testValidSpec() {
+        assertTrue(SetTrie.isValidSpec("a"));
+        assertTrue(SetTrie.isValidSpec("a:b-c_d.e!f~g*h'i(j)"));
+        assertFalse(SetTrie.isValidSpec(null));
+        assertFalse(SetTrie.isValidSpec(""));
+        assertFalse(SetTrie.isValidSpec("a::b"));
+        assertFalse(SetTrie.isValidSpec("a:"));
+        assertFalse(SetTrie.isValidSpec("a b"));
+        assertFalse(SetTrie.isValidSpec("a/b"));
+    }
+
+    @Test
+    public void testStorableSpec() {
+        assertTrue(SetTrie.isStorableSpec("a:b-c_d.e!f~g"));
+        assertTrue(SetTrie.isStorableSpec("a:...:b"));
+        assertFalse(SetTrie.isStorableSpec("a*"));
+        assertFalse(SetTrie.isStorableSpec("a'b"));
+        assertFalse(SetTrie.isStorableSpec("a:(b)"));
+        assertFalse(SetTrie.isStorableSpec("."));
+        assertFalse(SetTrie.isStorableSpec("a:.."));
+        assertFalse(SetTrie.isStorableSpec("..:a"));
+        assertFalse(SetTrie.isStorableSpec("a:.:b"));
+    }
+
+    @Test
+    public void testExpand() {
+        final Map<String, String> names = new HashMap<>();
+        names.put("a", "A");
+        names.put("a:b", "AB");
+        names.put("a:b:c", "ABC");
+        names.put("d", "D");
+        final SetTrie trie = new SetTrie(names);
+        assertEquals(Arrays.asList("a", "a:b", "a:b:c"), trie.expand("a"));
+        assertEquals(Arrays.asList("d"), trie.expand("d"));
+        assertEquals(Arrays.asList("x:y"), trie.expand("x:y"));
+        assertTrue(trie.contains("a:b"));
+        assertFalse(trie.contains("a:x"));
+        assertEquals(4, trie.getSets().size());
+        assertEquals("a:b", SetTrie.getParent("a:b:c"));
+        assertNull(SetTrie.getParent("a"));
+    }
+}
@@ -0,0 +1,186 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.session;
+
+import static org.fcrepo.oai.session.MemoryHarvestSessionStoreTest.session;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileHarvestSessionStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = folder.newFolder("sessions");
+    }
+
+    private FileHarvestSessionStore open() throws IOException {
+        final FileHarvestSessionStore store = new FileHarvestSessionStore();
+        store.setDirectory(directory.getAbsolutePath());
+        store.setMaxSessions(3);
+        store.setTimeToLive(60000);
+        store.open();
+        return store;
+    }
+
+    private File file(String id) {
+        return new File(directory, id + ".session");
+    }
+
+    @Test
+    public void testRecoverAfterRestart() throws Exception {
+        FileHarvestSessionStore store = open();
+        store.put(session("a", 1));
+        store.put(session("a", 2));
+        store.put(session("b", 1));
+        assertTrue(file("a").exists());
+        assertTrue(file("b").exists());
+
+        store = open();
+        assertEquals(2, store.size());
+        final HarvestSession a = store.get("a");
+        assertNotNull(a);
+        assertEquals(2, a.getPage());
+        assertEquals(42, a.getCompleteListSize());
+        assertEquals(10, a.getToken(2).getOffset());
+        assertEquals("oai_dc", a.getToken(2).getMetadataPrefix());
+        assertNotNull(store.get("b"));
+    }
+
+    @Test
+    public void testDropExpiredOnRestart() throws Exception {
+        FileHarvestSessionStore store = open();
+        final HarvestSession stale = session("a", 1);
+        stale.setLastAccess(System.currentTimeMillis() - 30000);
+        store.put(stale);
+        store.put(session("b", 1));
+
+        store = new FileHarvestSessionStore();
+        store.setDirectory(directory.getAbsolutePath());
+        store.setTimeToLive(10000);
+        store.open();
+        assertEquals(1, store.size());
+        assertNull(store.get("a"));
+        assertFalse(file("a").exists());
+        assertNotNull(store.get("b"));
+    }
+
+    @Test
+    public void testRestoreAccessOrder() throws Exception {
+        FileHarvestSessionStore store = open();
+        final long now = System.currentTimeMillis();
+        final long[] lastAccess = { now - 2000, now - 3000, now - 1000 };
+        final String[] ids = { "a", "b", "c" };
+        for (int i = 0; i < ids.length; i++) {
+            final HarvestSession session = session(ids[i], 1);
+            session.setLastAccess(lastAccess[i]);
+            store.put(session);
+        }
+
+        store = open();
+        store.put(session("d", 1));
+        /* b has been used least recently before the restart */
+        assertNull(store.get("b"));
+        assertFalse(file("b").exists());
+        assertTrue(file("d").exists());
+    }
+
+    @Test
+    public void testRemoveDeletesFile() throws Exception {
+        final FileHarvestSessionStore store = open();
+        store.put(session("a", 1));
+        store.put(session("b", 1));
+        store.put(session("c", 1));
+        store.put(session("d", 1));
+        assertFalse(file("a").exists());
+        store.remove("b");
+        assertFalse(file("b").exists());
+        assertTrue(file("c").exists());
+        assertTrue(file("d").exists());
+    }
+
+    @Test
+    public void testDeleteUnreadableFile() throws Exception {
+        try (final FileOutputStream out = new FileOutputStream(file("broken"))) {
+            out.write(new byte[] { 0, 0, 0, 7 });
+        }
+        final FileHarvestSessionStore store = open();
+        assertEquals(0, store.size());
+        assertFalse(file("broken").exists());
+    }
+
+    @Test
+    public void testConcurrentPutsKeepLastSession() throws Exception {
+        final FileHarvestSessionStore store = open();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final String id = "s" + t;
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        for (int page = 1; page <= 200; page++) {
+                            store.put(session(id, page));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        final FileHarvestSessionStore reopened = new FileHarvestSessionStore();
+        reopened.setDirectory(directory.getAbsolutePath());
+        reopened.open();
+        for (int t = 0; t < 4; t++) {
+            final HarvestSession stored = store.peek("s" + t);
+            final HarvestSession read = reopened.get("s" + t);
+            if (stored == null) {
+                assertNull(read);
+            } else {
+                assertEquals(stored.getPage(), read.getPage());
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.fcrepo.oai.ResumptionToken;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryHarvestSessionStoreTest {
+
+    private MemoryHarvestSessionStore store;
+
+    @Before
+    public void setup() {
+        store = new MemoryHarvestSessionStore();
+        store.setMaxSessions(3);
+        store.setTimeToLive(60000);
+    }
+
+    static HarvestSession session(String id, int page) {
+        final ResumptionToken token = new ResumptionToken("ListRecords", "oai_dc", null, null, page * 5, null,
+                null, null, page * 5, System.currentTimeMillis());
+        return new HarvestSession(id, page, token, null, 42);
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        final HarvestSession session = session("a", 1);
+        store.put(session);
+        assertSame(session, store.get("a"));
+        assertNull(store.get("b"));
+        final HarvestSession next = session("a", 2);
+        store.put(next);
+        assertSame(next, store.get("a"));
+        assertEquals(1, store.size());
+        assertEquals(next.getSize(), store.getBytes());
+        store.remove("a");
+        assertNull(store.get("a"));
+        assertEquals(0, store.getBytes());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        store.put(session("a", 1));
+        store.put(session("b", 1));
+        store.put(session("c", 1));
+        /* using a makes b the least recently used session */
+        assertNotNull(store.get("a"));
+        store.put(session("d", 1));
+        assertEquals(3, store.size());
+        assertEquals(1, store.getEvictions());
+        assertNull(store.get("b"));
+        assertNotNull(store.get("a"));
+        assertNotNull(store.get("c"));
+        assertNotNull(store.get("d"));
+    }
+
+    @Test
+    public void testEvictByBytes() throws Exception {
+        final HarvestSession a = session("a", 1);
+        store.setMaxBytes(a.getSize() * 2);
+        store.put(a);
+        store.put(session("b", 1));
+        store.put(session("c", 1));
+        assertEquals(2, store.size());
+        assertNull(store.get("a"));
+        /* a session larger than the bound is kept on its own */
+        store.setMaxBytes(1);
+        store.put(session("d", 1));
+        assertEquals(1, store.size());
+        assertNotNull(store.get("d"));
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        final long now = System.currentTimeMillis();
+        final HarvestSession stale = session("a", 1);
+        stale.setLastAccess(now - 120000);
+        store.put(stale);
+        final HarvestSession fresh = session("b", 1);
+        store.put(fresh);
+        assertNull(store.get("a"));
+        assertSame(fresh, store.get("b"));
+        assertEquals(1, store.getExpirations());
+        assertEquals(0, store.getEvictions());
+
+        fresh.setLastAccess(now - 120000);
+        assertNull(store.get("b"));
+        assertEquals(0, store.size());
+        assertEquals(2, store.getExpirations());
+    }
+
+    @Test
+    public void testGetRefreshesLastAccess() throws Exception {
+        final HarvestSession session = session("a", 1);
+        session.setLastAccess(System.currentTimeMillis() - 59000);
+        store.put(session);
+        assertSame(session, store.get("a"));
+        assertEquals(System.currentTimeMillis(), session.getLastAccess(), 1000);
+    }
+}
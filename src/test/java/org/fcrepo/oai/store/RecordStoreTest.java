@@ -0,0 +1,208 @@
+/* 
+ * Copyright 2014 Frank Asseg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+
+package org.fcrepo.oai.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RecordStoreTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* the segment header and the fields of a record besides its key and data */
+    private static final int HEADER_SIZE = 8;
+
+    private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 4 + 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RecordStore store;
+
+    @Before
+    public void setup() throws IOException {
+        store = open(4096, 16);
+    }
+
+    @After
+    public void teardown() {
+        store.close();
+    }
+
+    private RecordStore open(int segmentSize, int maxSegments) throws IOException {
+        return open(folder.getRoot(), segmentSize, maxSegments);
+    }
+
+    private static RecordStore open(File directory, int segmentSize, int maxSegments) throws IOException {
+        final RecordStore recordStore = new RecordStore();
+        recordStore.setDirectory(directory.getAbsolutePath());
+        recordStore.setSegmentSize(segmentSize);
+        recordStore.setMaxSegments(maxSegments);
+        recordStore.open();
+        return recordStore;
+    }
+
+    private RecordStore reopen() throws IOException {
+        store.close();
+        store = open(4096, 16);
+        return store;
+    }
+
+    private static byte[] record(String identifier) {
+        return ("<record><header><identifier>" + identifier + "</identifier></header></record>").getBytes(UTF8);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private File[] segments() {
+        return segments(folder.getRoot());
+    }
+
+    private static File[] segments(File directory) {
+        return directory.listFiles();
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        store.put("oai:a", "oai_dc", 1000, 2000, record("oai:a"));
+        store.put("oai:a", "mods", 1000, 2000, record("oai:a mods"));
+        assertArrayEquals(record("oai:a"), bytes(store.get("oai:a", "oai_dc", 1000, 2000)));
+        assertArrayEquals(record("oai:a mods"), bytes(store.get("oai:a", "mods", 1000, 2000)));
+        assertEquals(2, store.size());
+        assertEquals(2, store.getHitCount());
+
+        /* a modified datastream or header is not served */
+        assertNull(store.get("oai:a", "oai_dc", 1001, 2000));
+        assertNull(store.get("oai:a", "oai_dc", 1000, 2001));
+        assertNull(store.get("oai:b", "oai_dc", 1000, 2000));
+        assertEquals(3, store.getMissCount());
+
+        /* a new version replaces the old one */
+        store.put("oai:a", "oai_dc", 1001, 2001, record("oai:a v2"));
+        assertArrayEquals(record("oai:a v2"), bytes(store.get("oai:a", "oai_dc", 1001, 2001)));
+        assertNull(store.get("oai:a", "oai_dc", 1000, 2000));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        store.put("oai:a", "oai_dc", 1000, 2000, record("oai:a"));
+        store.put("oai:b", "oai_dc", 1000, 2000, record("oai:b"));
+        store.put("oai:a", "oai_dc", 1001, 2001, record("oai:a v2"));
+        reopen();
+        assertEquals(2, store.size());
+        assertArrayEquals(record("oai:a v2"), bytes(store.get("oai:a", "oai_dc", 1001, 2001)));
+        assertArrayEquals(record("oai:b"), bytes(store.get("oai:b", "oai_dc", 1000, 2000)));
+        assertNull(store.get("oai:a", "oai_dc", 1000, 2000));
+
+        /* records appended after reopening follow the ones read */
+        store.put("oai:c", "oai_dc", 1000, 2000, record("oai:c"));
+        reopen();
+        assertEquals(3, store.size());
+        assertArrayEquals(record("oai:c"), bytes(store.get("oai:c", "oai_dc", 1000, 2000)));
+    }
+
+    @Test
+    public void testTornLastRecord() throws Exception {
+        store.put("oai:a", "oai_dc", 1000, 2000, record("oai:a"));
+        store.put("oai:b", "oai_dc", 1000, 2000, record("oai:b"));
+        store.close();
+        /* flip the last byte of the second record, as if it had only been written partially */
+        final int first = RECORD_OVERHEAD + "oai_dc oai:a".length() + record("oai:a").length;
+        final int second = RECORD_OVERHEAD + "oai_dc oai:b".length() + record("oai:b").length;
+        final File segment = segments()[0];
+        try (final RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            final long pos = HEADER_SIZE + first + second - 1;
+            raf.seek(pos);
+            final int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xff);
+        }
+        store = open(4096, 16);
+        assertEquals(1, store.size());
+        assertArrayEquals(record("oai:a"), bytes(store.get("oai:a", "oai_dc", 1000, 2000)));
+        assertNull(store.get("oai:b", "oai_dc", 1000, 2000));
+
+        /* the torn record is overwritten by the next one */
+        store.put("oai:c", "oai_dc", 1000, 2000, record("oai:c"));
+        reopen();
+        assertEquals(2, store.size());
+        assertArrayEquals(record("oai:c"), bytes(store.get("oai:c", "oai_dc", 1000, 2000)));
+    }
+
+    @Test
+    public void testEvictOldestSegment() throws Exception {
+        store.close();
+        final File directory = folder.newFolder();
+        final int recordSize = RECORD_OVERHEAD + "oai_dc oai:00".length() + record("oai:00").length;
+        /* room for two records per segment */
+        final int segmentSize = HEADER_SIZE + 2 * recordSize + 4;
+        store = open(directory, segmentSize, 2);
+        for (int i = 0; i < 6; i++) {
+            final String id = String.format("oai:%02d", i);
+            store.put(id, "oai_dc", 1000, 2000, record(id));
+        }
+        /* the first two segments have been deleted along with their records */
+        assertEquals(2, segments(directory).length);
+        assertEquals(4, store.size());
+        assertNull(store.get("oai:00", "oai_dc", 1000, 2000));
+        assertNull(store.get("oai:01", "oai_dc", 1000, 2000));
+        assertArrayEquals(record("oai:05"), bytes(store.get("oai:05", "oai_dc", 1000, 2000)));
+
+        store.close();
+        store = open(directory, segmentSize, 2);
+        assertEquals(4, store.size());
+        assertArrayEquals(record("oai:02"), bytes(store.get("oai:02", "oai_dc", 1000, 2000)));
+    }
+
+    @Test
+    public void testSkipOversizedRecord() throws Exception {
+        store.put("oai:big", "oai_dc", 1000, 2000, new byte[8192]);
+        assertEquals(0, store.size());
+        assertNull(store.get("oai:big", "oai_dc", 1000, 2000));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        store.put("oai:a", "oai_dc", 1000, 2000, record("oai:a"));
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.get("oai:a", "oai_dc", 1000, 2000));
+        assertEquals(1, segments().length);
+        reopen();
+        assertEquals(0, store.size());
+        assertTrue(segments().length > 0);
+    }
+}